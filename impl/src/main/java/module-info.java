@@ -3,8 +3,9 @@ module org.derecalliance.derec.lib.impl {
     requires protobuf.java;
     requires jdk.httpserver;
     requires java.net.http;
+    requires java.management;
     requires org.slf4j;
-    requires derec.crypto.bridge;
+
     exports org.derecalliance.derec.lib.impl;
     exports org.derecalliance.derec.lib.impl.commands;
 
@@ -19,4 +19,28 @@ package org.derecalliance.derec.lib.impl;
 
 public interface Command {
     void execute();
+
+    /**
+     * @return the CommandClass used for admission control and prioritization on the command queue
+     */
+    default CommandClass getCommandClass() {
+        return CommandClass.USER_API;
+    }
+
+    /**
+     * Commands with equal partition keys are executed in order on the same CommandProcessor lane; commands with
+     * different keys may run in parallel. Commands touching one secret use its secret id.
+     *
+     * @return the partition key, or null to run in lane 0
+     */
+    default Object getPartitionKey() {
+        return null;
+    }
+
+    /**
+     * @return the number of bytes of message data this command holds while queued
+     */
+    default long getQueuedBytes() {
+        return 0;
+    }
 }
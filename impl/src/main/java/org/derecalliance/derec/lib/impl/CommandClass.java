@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+/**
+ * Kinds of commands on the command queue, in order of priority: the CommandProcessors run queued commands of an
+ * earlier class before those of a later one. Admission limits are configured per class in LibState.
+ */
+public enum CommandClass {
+    // Requests made through the library's API by the application
+    USER_API,
+    // Decrypted responses from peers (messages carrying helper message bodies)
+    INBOUND_RESPONSE,
+    // Other messages received from peers, including all messages that have not been decrypted yet
+    INBOUND_REQUEST,
+    // Periodic work ticks
+    PERIODIC
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execution metrics of the command processors, per concrete Command class: how many commands were enqueued and
+ * executed, how long they waited in the queue, how long they took to execute and how many failed. Read them with
+ * snapshot(), or through JMX once registerMBeans() has been called (see LibState.setJmxEnabled).
+ */
+public class CommandMetrics {
+    static final String JMX_DOMAIN = "org.derecalliance.derec";
+    private final ConcurrentHashMap<String, CommandTypeStats> stats = new ConcurrentHashMap<>();
+    private volatile boolean mbeansRegistered = false;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * Metrics of one Command class, read through JMX
+     */
+    public interface CommandTypeMetricsMXBean {
+        long getEnqueuedCount();
+
+        long getExecutedCount();
+
+        long getFailureCount();
+
+        double getAverageQueueWaitMillis();
+
+        double getMaxQueueWaitMillis();
+
+        double getAverageExecutionMillis();
+
+        double getMaxExecutionMillis();
+    }
+
+    /**
+     * Depth of the command queue, read through JMX
+     */
+    public interface CommandQueueMetricsMXBean {
+        int getQueueDepth();
+
+        int getMaxQueueDepth();
+    }
+
+    /**
+     * Counters of one Command class
+     */
+    static class CommandTypeStats implements CommandTypeMetricsMXBean {
+        final String commandType;
+        final LongAdder enqueued = new LongAdder();
+        final LongAdder executed = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder totalQueueWaitNanos = new LongAdder();
+        final AtomicLong maxQueueWaitNanos = new AtomicLong();
+        final LongAdder totalExecutionNanos = new LongAdder();
+        final AtomicLong maxExecutionNanos = new AtomicLong();
+        volatile Instant lastEnqueued = null;
+
+        CommandTypeStats(String commandType) {
+            this.commandType = commandType;
+        }
+
+        @Override
+        public long getEnqueuedCount() {
+            return enqueued.sum();
+        }
+
+        @Override
+        public long getExecutedCount() {
+            return executed.sum();
+        }
+
+        @Override
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        @Override
+        public double getAverageQueueWaitMillis() {
+            long count = executed.sum();
+            return count == 0 ? 0 : totalQueueWaitNanos.sum() / 1e6 / count;
+        }
+
+        @Override
+        public double getMaxQueueWaitMillis() {
+            return maxQueueWaitNanos.get() / 1e6;
+        }
+
+        @Override
+        public double getAverageExecutionMillis() {
+            long count = executed.sum();
+            return count == 0 ? 0 : totalExecutionNanos.sum() / 1e6 / count;
+        }
+
+        @Override
+        public double getMaxExecutionMillis() {
+            return maxExecutionNanos.get() / 1e6;
+        }
+
+        CommandTypeSnapshot snapshot() {
+            return new CommandTypeSnapshot(
+                    commandType,
+                    enqueued.sum(),
+                    executed.sum(),
+                    failures.sum(),
+                    Duration.ofNanos(totalQueueWaitNanos.sum()),
+                    Duration.ofNanos(maxQueueWaitNanos.get()),
+                    Duration.ofNanos(totalExecutionNanos.sum()),
+                    Duration.ofNanos(maxExecutionNanos.get()),
+                    lastEnqueued);
+        }
+    }
+
+    /**
+     * Metrics of one Command class at the time of a snapshot
+     *
+     * @param commandType        simple name of the Command class
+     * @param enqueued           number of commands enqueued
+     * @param executed           number of commands executed, including failed ones
+     * @param failures           number of commands that threw an exception
+     * @param totalQueueWait     total time executed commands waited in the queue
+     * @param maxQueueWait       longest time a command waited in the queue
+     * @param totalExecutionTime total time spent executing commands
+     * @param maxExecutionTime   longest execution of a command
+     * @param lastEnqueued       time the last command was enqueued, or null
+     */
+    public record CommandTypeSnapshot(
+            String commandType,
+            long enqueued,
+            long executed,
+            long failures,
+            Duration totalQueueWait,
+            Duration maxQueueWait,
+            Duration totalExecutionTime,
+            Duration maxExecutionTime,
+            Instant lastEnqueued) {
+        public Duration averageQueueWait() {
+            return executed == 0 ? Duration.ZERO : totalQueueWait.dividedBy(executed);
+        }
+
+        public Duration averageExecutionTime() {
+            return executed == 0 ? Duration.ZERO : totalExecutionTime.dividedBy(executed);
+        }
+    }
+
+    /**
+     * Metrics of the command processors at the time of a snapshot
+     *
+     * @param commandTypes       metrics per Command class, by simple class name
+     * @param queueDepth         number of queued commands
+     * @param maxQueueDepth      largest number of commands that have been queued at the same time
+     * @param queueDepthsByClass number of queued commands per CommandClass
+     */
+    public record Snapshot(
+            Map<String, CommandTypeSnapshot> commandTypes,
+            int queueDepth,
+            int maxQueueDepth,
+            Map<CommandClass, Integer> queueDepthsByClass) {}
+
+    private CommandTypeStats statsFor(Command command) {
+        return stats.computeIfAbsent(command.getClass().getSimpleName(), commandType -> {
+            CommandTypeStats typeStats = new CommandTypeStats(commandType);
+            if (mbeansRegistered) {
+                registerMBean("type=CommandMetrics,command=" + ObjectName.quote(commandType), typeStats);
+            }
+            return typeStats;
+        });
+    }
+
+    /**
+     * Records that a command was enqueued
+     *
+     * @param command Command
+     */
+    void recordEnqueued(Command command) {
+        CommandTypeStats typeStats = statsFor(command);
+        typeStats.enqueued.increment();
+        typeStats.lastEnqueued = Instant.now();
+    }
+
+    /**
+     * Records the execution of a command
+     *
+     * @param command        Command
+     * @param queueWaitNanos time the command waited in the queue
+     * @param executionNanos time the command took to execute
+     * @param failed         whether the command threw an exception
+     */
+    void recordExecuted(Command command, long queueWaitNanos, long executionNanos, boolean failed) {
+        CommandTypeStats typeStats = statsFor(command);
+        typeStats.executed.increment();
+        if (failed) {
+            typeStats.failures.increment();
+        }
+        typeStats.totalQueueWaitNanos.add(queueWaitNanos);
+        typeStats.maxQueueWaitNanos.accumulateAndGet(queueWaitNanos, Math::max);
+        typeStats.totalExecutionNanos.add(executionNanos);
+        typeStats.maxExecutionNanos.accumulateAndGet(executionNanos, Math::max);
+    }
+
+    /**
+     * @return the current metrics
+     */
+    public Snapshot snapshot() {
+        TreeMap<String, CommandTypeSnapshot> commandTypes = new TreeMap<>();
+        for (CommandTypeStats typeStats : stats.values()) {
+            commandTypes.put(typeStats.commandType, typeStats.snapshot());
+        }
+        CommandQueue queue = LibState.getInstance().getCommandQueue();
+        EnumMap<CommandClass, Integer> depths = queue.getDepths();
+        return new Snapshot(commandTypes, queue.size(), queue.getPeakDepth(), depths);
+    }
+
+    /**
+     * Registers the metrics as JMX MBeans with the platform MBean server: one for the command queue and one per
+     * Command class, including classes seen later.
+     */
+    public synchronized void registerMBeans() {
+        if (mbeansRegistered) {
+            return;
+        }
+        mbeansRegistered = true;
+        registerMBean("type=CommandQueue", new CommandQueueMetricsMXBean() {
+            @Override
+            public int getQueueDepth() {
+                return LibState.getInstance().getCommandQueue().size();
+            }
+
+            @Override
+            public int getMaxQueueDepth() {
+                return LibState.getInstance().getCommandQueue().getPeakDepth();
+            }
+        });
+        for (CommandTypeStats typeStats : stats.values()) {
+            registerMBean("type=CommandMetrics,command=" + ObjectName.quote(typeStats.commandType), typeStats);
+        }
+    }
+
+    private void registerMBean(String keyProperties, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":" + keyProperties);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(mbean, name);
+            }
+        } catch (Exception ex) {
+            logger.error("Could not register MBean " + keyProperties, ex);
+        }
+    }
+}
@@ -17,26 +17,44 @@
 
 package org.derecalliance.derec.lib.impl;
 
-import java.util.concurrent.BlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class CommandProcessor implements Runnable {
-    private final BlockingQueue<Command> queue;
+    private final CommandQueue queue;
+    private final int lane;
 
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
-    public CommandProcessor(BlockingQueue<Command> queue) {
+    public CommandProcessor(CommandQueue queue, int lane) {
         this.queue = queue;
+        this.lane = lane;
     }
 
     @Override
     public void run() {
         try {
             while (true) {
-                Command command = queue.take();
+                CommandQueue.Entry entry = queue.takeEntry(lane);
+                Command command = entry.command;
+                long startNanos = System.nanoTime();
+                boolean failed = false;
                 logger.debug("Got command out of the queue: " + command);
-                command.execute();
+                // Messages sent while executing the command are batched per destination and sent together
+                MessageCoalescer.beginWindow();
+                try {
+                    command.execute();
+                } catch (Exception ex) {
+                    // Keep the lane running
+                    failed = true;
+                    logger.error("Exception executing command " + command, ex);
+                } finally {
+                    MessageCoalescer.flush();
+                }
+                LibState.getInstance()
+                        .getCommandMetrics()
+                        .recordExecuted(
+                                command, startNanos - entry.enqueuedNanos, System.nanoTime() - startNanos, failed);
                 logger.debug("Executed command: " + command + "\n---------------------\n");
             }
         } catch (InterruptedException e) {
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of commands waiting for the CommandProcessors. The number of queued commands is limited overall
+ * (commandQueueCapacity) and per CommandClass, and the bytes held by queued commands are limited by
+ * commandQueueMaxBytes. Commands from the application's own API calls are always admitted so that they are never
+ * lost; they still count toward the limits of the other classes.
+ *
+ * <p>The queue is split into lanes, each drained by its own CommandProcessor thread. A command goes to the lane picked
+ * by its partition key, so commands with the same key run in order on one thread while commands with different keys
+ * run in parallel. Commands without a partition key go to lane 0.
+ *
+ * <p>Each lane is a multi-level queue with one FIFO per CommandClass. The processor takes from the highest priority
+ * class that has commands, except that a command that has waited longer than commandStarvationTimeout is taken first
+ * regardless of its class, so that a steady stream of high priority work cannot starve the lower classes. Commands
+ * are therefore run in order within a class, but not across classes.
+ */
+public class CommandQueue {
+    private static final CommandClass[] classes = CommandClass.values();
+    private final Lane[] lanes;
+    private final EnumMap<CommandClass, Integer> depths = new EnumMap<>(CommandClass.class);
+    private final EnumMap<CommandClass, Integer> peakDepths = new EnumMap<>(CommandClass.class);
+    private final EnumMap<CommandClass, Long> starvedTakes = new EnumMap<>(CommandClass.class);
+    private int depth = 0;
+    private int peakDepth = 0;
+    private long queuedBytes = 0;
+    // Bytes of received messages that are still being read, held against commandQueueMaxBytes, see reserveBytes
+    private long reservedBytes = 0;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * A queued command and the time it was queued
+     */
+    static class Entry {
+        final Command command;
+        final long enqueuedNanos;
+
+        Entry(Command command) {
+            this.command = command;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The queues of one lane, one per CommandClass
+     */
+    private static class Lane {
+        final ArrayDeque<Entry>[] queues;
+        int size = 0;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Lane() {
+            queues = new ArrayDeque[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    public CommandQueue(int laneCount) {
+        lanes = new Lane[Math.max(laneCount, 1)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        for (CommandClass commandClass : classes) {
+            depths.put(commandClass, 0);
+            peakDepths.put(commandClass, 0);
+            starvedTakes.put(commandClass, 0L);
+        }
+    }
+
+    /**
+     * Enqueues a command if the queue has room for it
+     *
+     * @param command Command to enqueue
+     * @return true if the command was enqueued, false if it was rejected because the queue is over capacity
+     */
+    public boolean offer(Command command) {
+        return enqueue(command, command.getCommandClass() != CommandClass.USER_API, 0);
+    }
+
+    /**
+     * Reserves room in the byte budget for a command whose bytes are still being received, so that they are only
+     * allocated if the command can be queued. The reservation is handed over to the command with offerReserved, or
+     * returned with releaseBytes if the command is never offered.
+     *
+     * @param bytes number of bytes to reserve
+     * @return false if the queue does not have room for the bytes
+     */
+    public synchronized boolean reserveBytes(long bytes) {
+        if (queuedBytes + reservedBytes + bytes > LibState.getInstance().getCommandQueueMaxBytes()) {
+            logger.debug("Command queue over its byte budget, not reserving " + bytes + " bytes");
+            return false;
+        }
+        reservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Returns bytes reserved with reserveBytes
+     *
+     * @param bytes number of bytes to return
+     */
+    public synchronized void releaseBytes(long bytes) {
+        reservedBytes -= bytes;
+    }
+
+    /**
+     * Enqueues a command whose bytes were reserved with reserveBytes. The reservation is used up whether or not the
+     * command is enqueued.
+     *
+     * @param command  Command to enqueue
+     * @param reserved bytes reserved for the command
+     * @return true if the command was enqueued, false if it was rejected because the queue is over capacity
+     */
+    public boolean offerReserved(Command command, long reserved) {
+        return enqueue(command, true, reserved);
+    }
+
+    /**
+     * Enqueues a command that continues work already admitted to the queue, e.g. a received message that was
+     * decrypted in one lane and is handed to the lane of its secret. Not subject to the limits.
+     *
+     * @param command Command to enqueue
+     */
+    public void forward(Command command) {
+        enqueue(command, false, 0);
+    }
+
+    /**
+     * Enqueues a command. The limits are checked and the counters updated in one critical section, so that
+     * concurrent offers cannot all pass the check and overshoot the limits together.
+     *
+     * @param command     Command to enqueue
+     * @param checkLimits whether the command is subject to the limits
+     * @param reserved    bytes reserved for the command with reserveBytes
+     * @return false if the command was rejected because the queue is over capacity
+     */
+    private boolean enqueue(Command command, boolean checkLimits, long reserved) {
+        CommandClass commandClass = command.getCommandClass();
+        synchronized (this) {
+            reservedBytes -= reserved;
+            if (checkLimits) {
+                LibState libState = LibState.getInstance();
+                if (depth >= libState.getCommandQueueCapacity()
+                        || depths.get(commandClass) >= libState.getCommandClassLimit(commandClass)
+                        || queuedBytes + reservedBytes + command.getQueuedBytes()
+                                > libState.getCommandQueueMaxBytes()) {
+                    logger.debug("Command queue over capacity, rejecting " + commandClass + " command");
+                    return false;
+                }
+            }
+            depth++;
+            peakDepth = Math.max(peakDepth, depth);
+            int classDepth = depths.merge(commandClass, 1, Integer::sum);
+            peakDepths.merge(commandClass, classDepth, Math::max);
+            queuedBytes += command.getQueuedBytes();
+        }
+        LibState.getInstance().getCommandMetrics().recordEnqueued(command);
+        Lane lane = lanes[laneFor(command)];
+        synchronized (lane) {
+            lane.queues[commandClass.ordinal()].add(new Entry(command));
+            lane.size++;
+            lane.notify();
+        }
+        return true;
+    }
+
+    /**
+     * @param command Command
+     * @return index of the lane the command runs in
+     */
+    int laneFor(Command command) {
+        Object partitionKey = command.getPartitionKey();
+        return partitionKey == null ? 0 : Math.floorMod(partitionKey.hashCode(), lanes.length);
+    }
+
+    /**
+     * @return the number of lanes
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Enqueues a command, rejecting it with an exception if the queue is over capacity
+     *
+     * @param command Command to enqueue
+     * @throws IllegalStateException if the command was rejected
+     */
+    public void add(Command command) {
+        if (!offer(command)) {
+            throw new IllegalStateException("Command queue full");
+        }
+    }
+
+    /**
+     * Removes the next command from a lane, waiting for one if the lane is empty
+     *
+     * @param lane index of the lane
+     * @return the next Command
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Command take(int lane) throws InterruptedException {
+        return takeEntry(lane).command;
+    }
+
+    /**
+     * Removes the next command from a lane, waiting for one if the lane is empty
+     *
+     * @param lane index of the lane
+     * @return the next Command, with the time it was enqueued
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Entry takeEntry(int lane) throws InterruptedException {
+        Lane l = lanes[lane];
+        Entry entry;
+        boolean starved;
+        synchronized (l) {
+            while (l.size == 0) {
+                l.wait();
+            }
+            int index = pickQueue(l);
+            starved = index != firstNonEmptyQueue(l);
+            entry = l.queues[index].poll();
+            l.size--;
+        }
+        Command command = entry.command;
+        synchronized (this) {
+            depth--;
+            depths.merge(command.getCommandClass(), -1, Integer::sum);
+            queuedBytes -= command.getQueuedBytes();
+            if (starved) {
+                starvedTakes.merge(command.getCommandClass(), 1L, Long::sum);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Picks the queue to take from: the one holding the longest waiting command if that command has waited longer
+     * than the starvation timeout, otherwise the highest priority non-empty queue.
+     *
+     * @param lane Lane, non-empty, locked by the caller
+     * @return index of the queue
+     */
+    private int pickQueue(Lane lane) {
+        long timeoutNanos = LibState.getInstance().getCommandStarvationTimeout().toNanos();
+        long now = System.nanoTime();
+        int oldest = -1;
+        for (int i = 0; i < lane.queues.length; i++) {
+            Entry head = lane.queues[i].peek();
+            if (head != null
+                    && now - head.enqueuedNanos > timeoutNanos
+                    && (oldest < 0 || head.enqueuedNanos - lane.queues[oldest].peek().enqueuedNanos < 0)) {
+                oldest = i;
+            }
+        }
+        return oldest >= 0 ? oldest : firstNonEmptyQueue(lane);
+    }
+
+    private int firstNonEmptyQueue(Lane lane) {
+        for (int i = 0; i < lane.queues.length; i++) {
+            if (!lane.queues[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of queued commands
+     */
+    public synchronized int size() {
+        return depth;
+    }
+
+    /**
+     * @param commandClass CommandClass
+     * @return the number of queued commands of the given class
+     */
+    public synchronized int size(CommandClass commandClass) {
+        return depths.get(commandClass);
+    }
+
+    /**
+     * @return the number of queued commands of each class
+     */
+    public synchronized EnumMap<CommandClass, Integer> getDepths() {
+        return new EnumMap<>(depths);
+    }
+
+    /**
+     * @return the largest number of commands that have been queued at the same time
+     */
+    public synchronized int getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * @param commandClass CommandClass
+     * @return the largest number of commands of the given class that have been queued at the same time
+     */
+    public synchronized int getPeakDepth(CommandClass commandClass) {
+        return peakDepths.get(commandClass);
+    }
+
+    /**
+     * @param commandClass CommandClass
+     * @return the number of commands of the given class that were taken ahead of higher priority work because they
+     *     had waited longer than the starvation timeout
+     */
+    public synchronized long getStarvedTakes(CommandClass commandClass) {
+        return starvedTakes.get(commandClass);
+    }
+}
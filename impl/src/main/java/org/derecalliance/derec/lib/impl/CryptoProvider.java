@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import java.util.List;
+
+/**
+ * Cryptographic operations used by the library: splitting secrets into shares and recovering them, and the
+ * sign-then-encrypt envelope of every message. The library uses the provider configured in LibState, which by default
+ * is NativeCryptoProvider (the derec-crypto-bridge). JdkCryptoProvider is only used when it is set explicitly, or
+ * allowed as a fallback with LibState.setJdkCryptoProviderAllowed.
+ * Keys are opaque byte arrays to the library; a peer can only talk to peers whose keys come from the same provider.
+ */
+public interface CryptoProvider {
+    /**
+     * A generated key pair
+     *
+     * @param publicKey  encoded public key
+     * @param privateKey encoded private key
+     */
+    record KeyPair(byte[] publicKey, byte[] privateKey) {}
+
+    /**
+     * What a key is used for
+     */
+    enum KeyUse {
+        PUBLIC_ENCRYPTION,
+        PRIVATE_ENCRYPTION,
+        PUBLIC_SIGNATURE,
+        PRIVATE_SIGNATURE
+    }
+
+    /**
+     * A decoded key, with the provider's working form of it
+     *
+     * @param encoded key bytes
+     * @param handle  provider-specific form of the key (for example a parsed key object), or null if the provider
+     *                works on the key bytes
+     */
+    record PreparedKey(byte[] encoded, Object handle) {}
+
+    /**
+     * Splits a secret into shares, any threshold of which recover it
+     *
+     * @param secretId  secret id
+     * @param version   version number
+     * @param secret    value to protect
+     * @param count     number of shares
+     * @param threshold number of shares needed to recover the secret
+     * @return serialized CommittedDeRecShare messages, one per share
+     */
+    List<byte[]> share(byte[] secretId, int version, byte[] secret, int count, int threshold);
+
+    /**
+     * Recovers a secret from its shares
+     *
+     * @param secretId secret id
+     * @param version  version number
+     * @param shares   serialized CommittedDeRecShare messages
+     * @return the secret, or null or an empty array if it could not be recovered
+     */
+    byte[] recover(byte[] secretId, int version, List<byte[]> shares);
+
+    /**
+     * Signs a message and encrypts the signature followed by the message
+     *
+     * @param message             message bytes
+     * @param privateSignatureKey sender's private signature key
+     * @param publicEncryptionKey receiver's public encryption key
+     * @return encrypted message
+     */
+    byte[] signThenEncrypt(byte[] message, byte[] privateSignatureKey, byte[] publicEncryptionKey);
+
+    /**
+     * Decrypts a message created by signThenEncrypt
+     *
+     * @param ciphertext           encrypted message
+     * @param privateEncryptionKey receiver's private encryption key
+     * @return the 64-byte signature followed by the message
+     */
+    byte[] decrypt(byte[] ciphertext, byte[] privateEncryptionKey);
+
+    /**
+     * Verifies a message's signature
+     *
+     * @param message            message bytes
+     * @param signature          signature returned by decrypt
+     * @param publicSignatureKey sender's public signature key
+     * @return whether the signature is valid
+     */
+    boolean verify(byte[] message, byte[] signature, byte[] publicSignatureKey);
+
+    /**
+     * Prepares a key for repeated use. The library prepares each key once, caches it (see KeyCache), and passes it to
+     * the PreparedKey forms of signThenEncrypt, decrypt and verify. By default the key bytes are used as they are.
+     *
+     * @param use     what the key is used for
+     * @param encoded key bytes
+     * @return PreparedKey
+     */
+    default PreparedKey prepareKey(KeyUse use, byte[] encoded) {
+        return new PreparedKey(encoded, null);
+    }
+
+    /**
+     * signThenEncrypt with prepared keys
+     */
+    default byte[] signThenEncrypt(byte[] message, PreparedKey privateSignatureKey, PreparedKey publicEncryptionKey) {
+        return signThenEncrypt(message, privateSignatureKey.encoded(), publicEncryptionKey.encoded());
+    }
+
+    /**
+     * decrypt with a prepared key
+     */
+    default byte[] decrypt(byte[] ciphertext, PreparedKey privateEncryptionKey) {
+        return decrypt(ciphertext, privateEncryptionKey.encoded());
+    }
+
+    /**
+     * verify with a prepared key
+     */
+    default boolean verify(byte[] message, byte[] signature, PreparedKey publicSignatureKey) {
+        return verify(message, signature, publicSignatureKey.encoded());
+    }
+
+    /**
+     * @return a new encryption key pair
+     */
+    KeyPair encryptionKeyGen();
+
+    /**
+     * @return a new signature key pair
+     */
+    KeyPair signatureKeyGen();
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Library-wide scheduler for delayed work. A single daemon thread waits for the delays to expire and then posts each
+ * command to the command queue, so that the deferred action runs on a CommandProcessor, in the lane of its partition
+ * key, instead of on a timer thread of its own.
+ */
+public class DelayedCommandScheduler {
+    private final ScheduledThreadPoolExecutor executor;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    public DelayedCommandScheduler() {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "derec-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Enqueues a command after a delay. The command has already been accepted by the library, so it bypasses the
+     * command queue's admission limits when it is enqueued.
+     *
+     * @param command Command to run
+     * @param delay   delay from now
+     * @return ScheduledFuture that can be used to cancel the command before it is enqueued
+     */
+    public ScheduledFuture<?> schedule(Command command, Duration delay) {
+        return executor.schedule(
+                () -> {
+                    try {
+                        LibState.getInstance().getCommandQueue().forward(command);
+                    } catch (Exception ex) {
+                        logger.error("Exception enqueueing delayed command", ex);
+                    }
+                },
+                delay.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+}
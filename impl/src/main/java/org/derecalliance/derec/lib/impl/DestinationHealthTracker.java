@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the health of each destination address with a circuit breaker. After circuitBreakerFailureThreshold
+ * consecutive failed sends the circuit opens and sends to the destination fail fast. Once the backoff has elapsed a
+ * single probe message is let through (half-open): if it is delivered the circuit closes, otherwise it opens again
+ * with twice the backoff, up to retryBackoffMax. Backoffs are jittered so that many sharers do not probe a helper in
+ * lockstep.
+ *
+ * <p>A destination is forgotten once nothing is being sent to it and its circuit is closed without failures, and
+ * whatever its state once it has not been used for longer than retryBackoffMax, so that a long-running sharer does
+ * not keep an entry for every helper it ever contacted.
+ */
+public class DestinationHealthTracker {
+    /**
+     * Circuit state of a destination
+     */
+    public enum State {
+        // Healthy, all sends go through
+        CLOSED,
+        // Failing, sends fail fast until the backoff has elapsed
+        OPEN,
+        // Backoff elapsed, one probe is in flight
+        HALF_OPEN
+    }
+
+    private final ConcurrentHashMap<String, DestinationHealth> destinations = new ConcurrentHashMap<>();
+    private volatile long lastSweepNanos = System.nanoTime();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    private static class DestinationHealth {
+        State state = State.CLOSED;
+        int consecutiveFailures = 0;
+        long backoffNanos = 0;
+        long retryAtNanos = 0;
+        long lastUsedNanos = System.nanoTime();
+
+        synchronized boolean isAvailable(long now) {
+            return state == State.CLOSED || (state == State.OPEN && now >= retryAtNanos);
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            lastUsedNanos = now;
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN && now >= retryAtNanos) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void recordSuccess(long now) {
+            lastUsedNanos = now;
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            backoffNanos = 0;
+        }
+
+        synchronized boolean recordFailure(long now) {
+            lastUsedNanos = now;
+            consecutiveFailures++;
+            LibState libState = LibState.getInstance();
+            if (state != State.HALF_OPEN && consecutiveFailures < libState.getCircuitBreakerFailureThreshold()) {
+                return false;
+            }
+            long maxBackoffNanos = libState.getRetryBackoffMax().toNanos();
+            backoffNanos = backoffNanos == 0
+                    ? libState.getRetryBackoffInitial().toNanos()
+                    : Math.min(backoffNanos * 2, maxBackoffNanos);
+            double jitter = libState.getRetryBackoffJitter();
+            double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+            retryAtNanos = now + (long) (backoffNanos * factor);
+            state = State.OPEN;
+            return true;
+        }
+
+        /**
+         * @return whether the destination is in the state of one that was never used
+         */
+        synchronized boolean isPristine() {
+            return state == State.CLOSED && consecutiveFailures == 0;
+        }
+
+        synchronized boolean isStale(long now, long staleNanos) {
+            return now - lastUsedNanos > staleNanos;
+        }
+    }
+
+    private DestinationHealth getHealth(String toUri) {
+        return destinations.computeIfAbsent(toUri, d -> new DestinationHealth());
+    }
+
+    /**
+     * Checks, without changing any state, whether a send to the destination would currently be attempted. Callers can
+     * use this to skip building messages for a destination that is known to be down.
+     *
+     * @param toUri destination address
+     * @return false if the destination's circuit is open and its backoff has not elapsed, or a probe is in flight
+     */
+    public boolean isAvailable(String toUri) {
+        DestinationHealth health = destinations.get(toUri);
+        return health == null || health.isAvailable(System.nanoTime());
+    }
+
+    /**
+     * Asks to send a message to the destination. When the circuit is half-open only the first caller gets through as
+     * the probe, and it must report the outcome with recordResult.
+     *
+     * @param toUri destination address
+     * @return true if the message should be sent, false if it should fail fast
+     */
+    public boolean tryAcquire(String toUri) {
+        return getHealth(toUri).tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Records the outcome of a send
+     *
+     * @param toUri     destination address
+     * @param status    status code the transport reported, or null if the send failed with an exception
+     * @param exception exception the send failed with, or null
+     */
+    public void recordResult(String toUri, Integer status, Throwable exception) {
+        DestinationHealth health = getHealth(toUri);
+        if (exception == null && status != null && status >= 200 && status < 300) {
+            health.recordSuccess(System.nanoTime());
+        } else if (health.recordFailure(System.nanoTime())) {
+            logger.debug("Circuit open for " + toUri + " after " + health.consecutiveFailures + " failures");
+        }
+    }
+
+    /**
+     * Forgets a destination that nothing is being sent to, if its circuit is closed without failures: a new entry
+     * would be the same. At most once per retryBackoffMax, also forgets every destination that has not been used for
+     * longer than retryBackoffMax; its backoff has elapsed, so the next send to it goes through as a probe would.
+     *
+     * @param toUri destination address that has no messages queued or in flight
+     */
+    public void evictIfIdle(String toUri) {
+        destinations.computeIfPresent(toUri, (uri, health) -> health.isPristine() ? null : health);
+        long now = System.nanoTime();
+        long staleNanos = LibState.getInstance().getRetryBackoffMax().toNanos();
+        if (now - lastSweepNanos > staleNanos) {
+            lastSweepNanos = now;
+            destinations.values().removeIf(health -> health.isStale(now, staleNanos));
+        }
+    }
+
+    /**
+     * @return the number of destinations tracked
+     */
+    public int size() {
+        return destinations.size();
+    }
+
+    /**
+     * @param toUri destination address
+     * @return circuit state of the destination
+     */
+    public State getState(String toUri) {
+        DestinationHealth health = destinations.get(toUri);
+        if (health == null) {
+            return State.CLOSED;
+        }
+        synchronized (health) {
+            return health.state;
+        }
+    }
+}
@@ -18,10 +18,9 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.createGetSecretIdsVersionsRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.*;
 import org.derecalliance.derec.protobuf.Derecmessage;
 import org.derecalliance.derec.protobuf.ResultOuterClass;
@@ -38,9 +37,11 @@ public class GetSecretIdsVersionsMessages {
      * @param receiverId  DeRecIdentity of the message receiver
      * @param secretId    SecretId this message is being sent in the context of
      * @param publicKeyId publicKeyId of the receiver
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendGetSecretIdsVersionsRequestMessage(
-            DeRecIdentity senderId, DeRecIdentity receiverId, DeRecSecret.Id secretId, int publicKeyId) {
+    public static CompletableFuture<Secretidsversions.GetSecretIdsVersionsResponseMessage>
+            sendGetSecretIdsVersionsRequestMessage(
+                    DeRecIdentity senderId, DeRecIdentity receiverId, DeRecSecret.Id secretId, int publicKeyId) {
         var hs = (HelperStatusImpl)
                 ((SecretImpl) LibState.getInstance().getMeSharer().getSecret(secretId)).getHelperStatusById(receiverId);
         // Deliver a notification
@@ -56,9 +57,16 @@ public class GetSecretIdsVersionsMessages {
 
         Derecmessage.DeRecMessage deRecMessage =
                 createGetSecretIdsVersionsRequestMessage(senderId, receiverId, secretId);
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), true, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        CompletableFuture<Secretidsversions.GetSecretIdsVersionsResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(
+                        PendingRequests.RequestType.GET_SECRET_IDS_VERSIONS,
+                        receiverId,
+                        secretId,
+                        0,
+                        receiverId.getAddress());
+        return PendingRequests.failOnDeliveryError(
+                response, MessageCoalescer.submit(deRecMessage, true, secretId, receiverId, receiverId.getAddress()));
     }
 
     /**
@@ -70,8 +78,9 @@ public class GetSecretIdsVersionsMessages {
      * @param publicKeyId         publicKeyId of the message receiver
      * @param result              Handling status of the message
      * @param secretIdAndVersions Map of known secretIds and versions
+     * @return Future of the message's delivery status
      */
-    public static void sendGetSecretIdsVersionsResponseMessage(
+    public static CompletableFuture<Integer> sendGetSecretIdsVersionsResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -85,9 +94,7 @@ public class GetSecretIdsVersionsMessages {
                 senderId, receiverId, secretId, result, secretIdAndVersions);
         staticLogger.debug("Generated sendGetSecretIdsVersionsResponseMessage: ");
         MessageParser.printDeRecMessage(deRecMessage, "Sending sendGetSecretIdsVersionsResponseMessage ");
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), false, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, secretId, receiverId, receiverId.getAddress());
     }
 
     /**
@@ -194,6 +201,9 @@ public class GetSecretIdsVersionsMessages {
 
         try {
             staticLogger.debug("In handleGetSecretIdsVersionsResponse from " + senderId.getName());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(PendingRequests.RequestType.GET_SECRET_IDS_VERSIONS, senderId, secretId, 0, message);
             // Get HelperStatus from the senderId
             Optional<HelperStatusImpl> helperStatusOptional = (Optional<HelperStatusImpl>)
                     LibState.getInstance().getMeSharer().getSecret(secretId).getHelperStatuses().stream()
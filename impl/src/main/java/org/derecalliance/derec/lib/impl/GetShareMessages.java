@@ -18,11 +18,10 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.createGetShareRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
 import java.util.Base64;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.*;
 import org.derecalliance.derec.protobuf.*;
 import org.slf4j.Logger;
@@ -38,8 +37,9 @@ public class GetShareMessages {
      * @param recoveringSecretId The secretId to recover
      * @param publicKeyId        publicKeyId of the receiver
      * @param shareVersion       Version number to recover
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendGetShareRequestMessage(
+    public static CompletableFuture<Getshare.GetShareResponseMessage> sendGetShareRequestMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id currentSecretId,
@@ -49,16 +49,19 @@ public class GetShareMessages {
         Logger staticLogger = LoggerFactory.getLogger(GetShareMessages.class.getName());
         Derecmessage.DeRecMessage deRecMessage =
                 createGetShareRequestMessage(senderId, receiverId, currentSecretId, recoveringSecretId, shareVersion);
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(),
-                deRecMessage.toByteArray(),
-                true,
-                currentSecretId,
-                receiverId,
-                true);
         staticLogger.debug("***** In sendGetShareRequestMessage sending GetShareRequest to " + receiverId.getName()
                 + " for version " + shareVersion);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        CompletableFuture<Getshare.GetShareResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(
+                        PendingRequests.RequestType.GET_SHARE,
+                        receiverId,
+                        currentSecretId,
+                        shareVersion,
+                        receiverId.getAddress());
+        return PendingRequests.failOnDeliveryError(
+                response,
+                MessageCoalescer.submit(deRecMessage, true, currentSecretId, receiverId, receiverId.getAddress()));
     }
 
     /**
@@ -71,8 +74,9 @@ public class GetShareMessages {
      * @param publicKeyId         publicKeyId of the message receiver
      * @param result              Handling status of the message
      * @param committedDeRecShare CommittedDeRecShare to return to Sharer
+     * @return Future of the message's delivery status
      */
-    public static void sendGetShareResponseMessage(
+    public static CompletableFuture<Integer> sendGetShareResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id currentSecretId,
@@ -86,14 +90,7 @@ public class GetShareMessages {
                 senderId, receiverId, currentSecretId, recoveringSecretId, result, committedDeRecShare);
         staticLogger.debug("Generated response: ");
         MessageParser.printDeRecMessage(deRecMessage, "Sending messsage ");
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(),
-                deRecMessage.toByteArray(),
-                false,
-                currentSecretId,
-                receiverId,
-                true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, currentSecretId, receiverId, receiverId.getAddress());
     }
 
     /**
@@ -206,6 +203,14 @@ public class GetShareMessages {
             Storeshare.DeRecShare deRecShare = Storeshare.DeRecShare.parseFrom(
                     message.getCommittedDeRecShare().getDeRecShare());
             staticLogger.debug("Version: " + deRecShare.getVersion());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(
+                            PendingRequests.RequestType.GET_SHARE,
+                            senderId,
+                            secretId,
+                            deRecShare.getVersion(),
+                            message);
 
             Optional<HelperStatusImpl> helperStatusOptional = (Optional<HelperStatusImpl>)
                     LibState.getInstance().getMeSharer().getSecret(secretId).getHelperStatuses().stream()
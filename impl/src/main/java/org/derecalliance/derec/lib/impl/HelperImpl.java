@@ -18,7 +18,10 @@
 package org.derecalliance.derec.lib.impl;
 
 import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
@@ -42,7 +45,7 @@ public class HelperImpl implements DeRecHelper {
     // previously stored shares, the helper must map the recovering sharer's public key to their previous lost
     // identity that they were helping.
     // Maps the public key of the recovering helper to their previous DeRecIdentity
-    public HashMap<String, List<SharerStatusImpl>> publicKeyToLostSharerMap = new HashMap<>();
+    public ConcurrentHashMap<String, List<SharerStatusImpl>> publicKeyToLostSharerMap = new ConcurrentHashMap<>();
 
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
@@ -54,6 +57,9 @@ public class HelperImpl implements DeRecHelper {
     private final ConcurrentHashMap<String, ConcurrentHashMap<DeRecSecret.Id, ConcurrentHashMap<Integer, ShareImpl>>>
             recdCommittedDeRecShares;
 
+    // Journal of the Helper's state, null if journaling is disabled or while the journal is being replayed
+    private HelperJournal journal = null;
+
     public class Notification implements DeRecHelper.Notification {
         DeRecHelper.Notification.Type type;
         DeRecIdentity sharerId;
@@ -121,10 +127,32 @@ public class HelperImpl implements DeRecHelper {
     }
 
     public HelperImpl(String name, String contact, String address) {
+        // Fails here, rather than on first use, if no cryptography provider is available
+        LibState.getInstance().initCryptoProvider();
         recdCommittedDeRecShares = new ConcurrentHashMap<>();
-        myLibId = new LibIdentity(name, contact, address);
         parameterRange = Parameterrange.ParameterRange.newBuilder().build();
 
+        Path journalDirectory = LibState.getInstance().getJournalDirectory();
+        if (journalDirectory == null) {
+            myLibId = new LibIdentity(name, contact, address);
+        } else {
+            // Resume with the keys, sharers and shares from the journal, so that the sharers need not pair again
+            HelperJournal helperJournal;
+            try {
+                helperJournal = new HelperJournal(this, journalDirectory);
+            } catch (IOException ex) {
+                throw new RuntimeException("Could not open the journal in " + journalDirectory, ex);
+            }
+            myLibId = helperJournal.recoverIdentity(name, contact, address);
+            if (myLibId == null) {
+                myLibId = new LibIdentity(name, contact, address);
+                helperJournal.recordIdentity(myLibId).join();
+            }
+            helperJournal.replaySharersAndShares();
+            journal = helperJournal;
+            logger.debug("Recovered from the journal: " + sharerStatusesToString() + sharesToString());
+        }
+
         // Register in the messageHashAndSecretIdToIdentityMap table for self id.
         // Since we are a helper, we don't have a secret id, hence register with a null secret id
         logger.debug("Adding myself (Helper) " + name + " to messageHashAndSecretIdToIdentityMap");
@@ -186,6 +214,9 @@ public class HelperImpl implements DeRecHelper {
     public void removeSharer(SharerStatus sharerStatus) {
         // This removes all SharerStatuses for all secretIds for the given sharerStatus
         sharerStatuses.remove(sharerStatus.getId());
+        if (journal != null) {
+            journal.recordSharerRemoved(sharerStatus.getId(), null);
+        }
     }
 
     /**
@@ -224,6 +255,9 @@ public class HelperImpl implements DeRecHelper {
             logger.debug("In removeSharer, could not find shares for " + sharerId.getName());
             return false;
         }
+        if (journal != null) {
+            journal.recordSharerRemoved(sharerId, secretId);
+        }
         return true;
     }
 
@@ -243,6 +277,9 @@ public class HelperImpl implements DeRecHelper {
         if (secretMaps != null) {
             secretMaps.remove(secretId);
         }
+        if (journal != null) {
+            journal.recordSecretRemoved(sharerStatus.getId(), secretId);
+        }
     }
 
     @Override
@@ -257,6 +294,9 @@ public class HelperImpl implements DeRecHelper {
                 versionMap.remove(versionNumber);
             }
         }
+        if (journal != null) {
+            journal.recordVersionRemoved(sharerStatus.getId(), secretId, versionNumber);
+        }
         logger.debug("After removing version: recdCommittedDeRecShares are: " + sharesToString());
     }
 
@@ -290,8 +330,10 @@ public class HelperImpl implements DeRecHelper {
      * @param secretId      SecretId of the share
      * @param versionNumber Version number of the share
      * @param share         The share
+     * @return future completed once the share is durable in the journal (right away if journaling is disabled)
      */
-    void addShare(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId, int versionNumber, ShareImpl share) {
+    CompletableFuture<Void> addShare(
+            SharerStatusImpl sharerStatus, DeRecSecret.Id secretId, int versionNumber, ShareImpl share) {
         logger.debug(
                 "in addshare, sharer pubEncryptionKey: " + sharerStatus.getId().getPublicEncryptionKey() + "the "
                         + "recdCommittedDeRecShares map is:\n" + sharesToString());
@@ -302,6 +344,7 @@ public class HelperImpl implements DeRecHelper {
             ConcurrentHashMap<Integer, ShareImpl> versionMap = secretMaps.get(secretId);
             if (versionMap != null) {
                 versionMap.put(versionNumber, share);
+                return journal != null ? journal.recordShare(share) : CompletableFuture.completedFuture(null);
             } else {
                 // secretId does not exist for the given sharerStatus
                 throw new IllegalArgumentException("Secret ID not found for the provided Sharer Status.");
@@ -327,18 +370,23 @@ public class HelperImpl implements DeRecHelper {
      * Adds a new sharer (identified by SharerStatusImpl) for which this helper will start storing data
      *
      * @param sharerStatus
+     * @return future completed once the sharer is journaled (immediately if journaling is disabled)
      */
-    void addSharer(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId) {
+    CompletableFuture<Void> addSharer(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId) {
         if (!sharerStatuses.containsKey(sharerStatus.getId())) {
             sharerStatuses.put(sharerStatus.getId(), new ConcurrentHashMap<>());
         }
         sharerStatuses.get(sharerStatus.getId()).put(secretId, sharerStatus);
+        CompletableFuture<Void> recorded = journal != null
+                ? journal.recordSharer(sharerStatus, secretId)
+                : CompletableFuture.completedFuture(null);
 
         if (recdCommittedDeRecShares.get(sharerStatus.getId().getPublicEncryptionKey()) == null) {
             recdCommittedDeRecShares.put(sharerStatus.getId().getPublicEncryptionKey(), new ConcurrentHashMap<>());
             logger.debug("-------- added sharer to recdCommittedDeRecShares map ------------------------");
         }
         logger.debug("in addsharer, the recdCommittedDeRecShares map is:\n" + sharesToString());
+        return recorded;
     }
 
     SharerStatusImpl getSharerStatus(DeRecIdentity sharerId, DeRecSecret.Id secretId) {
@@ -388,6 +436,25 @@ public class HelperImpl implements DeRecHelper {
         return myLibId;
     }
 
+    /**
+     * Records a change of a sharer's status, such as its pairing status, in the journal
+     *
+     * @param sharerStatus Sharer
+     * @param secretId     Secret id
+     */
+    void journalSharerStatus(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId) {
+        if (journal != null) {
+            journal.recordSharer(sharerStatus, secretId);
+        }
+    }
+
+    /**
+     * @return the Helper's journal, or null if journaling is disabled
+     */
+    public HelperJournal getJournal() {
+        return journal;
+    }
+
     /**
      * isPaused() and setPaused() are used only for demo purposes to show a Helper losing connectivity for some time
      */
@@ -462,6 +529,9 @@ public class HelperImpl implements DeRecHelper {
                         .get(sharerId.getPublicEncryptionKey())
                         .get(secretId)
                         .remove(storedVersionNumber);
+                if (journal != null) {
+                    journal.recordVersionRemoved(sharerId, secretId, storedVersionNumber);
+                }
             } else {
                 logger.debug("Not Deleting version " + storedVersionNumber + " it is in the keeplist");
             }
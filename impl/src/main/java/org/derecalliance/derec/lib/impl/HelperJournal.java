@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import static org.derecalliance.derec.lib.impl.Journal.readIdentity;
+import static org.derecalliance.derec.lib.impl.Journal.readKeys;
+import static org.derecalliance.derec.lib.impl.Journal.readString;
+import static org.derecalliance.derec.lib.impl.Journal.write;
+import static org.derecalliance.derec.lib.impl.Journal.writeBytes;
+import static org.derecalliance.derec.lib.impl.Journal.writeIdentity;
+import static org.derecalliance.derec.lib.impl.Journal.writeKeys;
+import static org.derecalliance.derec.lib.impl.Journal.writeString;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.intToByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readInt;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.derecalliance.derec.lib.api.DeRecHelper;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecPairingStatus;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.protobuf.Storeshare;
+
+/**
+ * Durable state of the Helper: its keys, the sharers it is paired with, and the shares it stores. The state changes
+ * are appended to a Journal in LibState.journalDirectory, so that a restarted Helper resumes with the same keys and
+ * shares instead of every sharer pairing again and re-sending its shares. The journal holds the Helper's private keys
+ * in the clear; Journal creates its files readable by the owner only, and the directory should not be shared.
+ */
+public class HelperJournal {
+    private static final byte HELPER_KEYS = 1;
+    private static final byte SHARER = 2;
+    private static final byte SHARE = 3;
+    private static final byte VERSION_REMOVED = 4;
+    private static final byte SECRET_REMOVED = 5;
+    private static final byte SHARER_REMOVED = 6;
+    private final HelperImpl helper;
+    private final Journal journal;
+    private final List<byte[]> recoveredRecords;
+
+    /**
+     * Opens the Helper's journal and reads the records to replay
+     *
+     * @param helper    Helper whose state is journaled
+     * @param directory journal directory
+     * @throws IOException if the journal could not be opened
+     */
+    HelperJournal(HelperImpl helper, Path directory) throws IOException {
+        this.helper = helper;
+        this.journal = new Journal(directory, "helper", this::snapshot);
+        this.recoveredRecords = journal.open();
+    }
+
+    /**
+     * Gets the Helper's keys from the journal
+     *
+     * @param name    Helper's name
+     * @param contact Helper's contact
+     * @param address Helper's address
+     * @return LibIdentity with the journaled keys, or null if the journal is new
+     */
+    LibIdentity recoverIdentity(String name, String contact, String address) {
+        LibIdentity identity = null;
+        for (byte[] record : recoveredRecords) {
+            if (record[0] == HELPER_KEYS) {
+                identity = readKeys(new ByteArrayInputStream(record, 1, record.length - 1), name, contact, address);
+            }
+        }
+        return identity;
+    }
+
+    /**
+     * Replays the sharer and share records into the Helper. Must be called before the Helper starts journaling,
+     * since the replayed changes go through the Helper's regular methods.
+     */
+    void replaySharersAndShares() {
+        for (byte[] record : recoveredRecords) {
+            if (record[0] == HELPER_KEYS) {
+                continue;
+            }
+            ByteArrayInputStream in = new ByteArrayInputStream(record, 1, record.length - 1);
+            DeRecIdentity sharerId = readIdentity(in);
+            byte[] secretIdBytes = readByteArray(in);
+            DeRecSecret.Id secretId = secretIdBytes.length == 0 ? null : new DeRecSecret.Id(secretIdBytes);
+            if (record[0] == SHARER) {
+                SharerStatusImpl sharerStatus = new SharerStatusImpl(sharerId);
+                sharerStatus.setPairingStatus(DeRecPairingStatus.PairingStatus.valueOf(readString(in)));
+                sharerStatus.setRecovering(readInt(in) != 0);
+                // Register the sharer the same way pairing does, so that its messages can be attributed to it
+                LibState.getInstance()
+                        .registerMessageHashAndSecretIdToIdentity(
+                                ByteString.copyFrom(sharerId.getPublicEncryptionKeyDigest()), secretId, sharerId);
+                helper.addSharer(sharerStatus, secretId);
+                helper.addSecret(sharerStatus, secretId);
+            } else if (record[0] == SHARE) {
+                int versionNumber = readInt(in);
+                SharerStatusImpl sharerStatus = findSharerStatus(sharerId, secretId);
+                if (sharerStatus == null) {
+                    continue;
+                }
+                try {
+                    Storeshare.CommittedDeRecShare cds = Storeshare.CommittedDeRecShare.parseFrom(readByteArray(in));
+                    helper.addShare(
+                            sharerStatus,
+                            secretId,
+                            versionNumber,
+                            new ShareImpl(secretId, versionNumber, sharerStatus, cds));
+                } catch (IOException ex) {
+                    helper.logger.error("Could not parse a journaled share of " + sharerId.getName(), ex);
+                }
+            } else if (record[0] == VERSION_REMOVED) {
+                helper.removeVersion(new SharerStatusImpl(sharerId), secretId, readInt(in));
+            } else if (record[0] == SECRET_REMOVED) {
+                helper.removeSecret(new SharerStatusImpl(sharerId), secretId);
+            } else if (record[0] == SHARER_REMOVED) {
+                if (secretId == null) {
+                    helper.removeSharer(new SharerStatusImpl(sharerId));
+                } else if (findSharerStatus(sharerId, secretId) != null) {
+                    helper.removeSharer(sharerId, secretId);
+                }
+            }
+        }
+        recoveredRecords.clear();
+    }
+
+    CompletableFuture<Void> recordIdentity(LibIdentity identity) {
+        return journal.append(keysRecord(identity));
+    }
+
+    CompletableFuture<Void> recordSharer(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId) {
+        return journal.append(sharerRecord(sharerStatus, secretId));
+    }
+
+    CompletableFuture<Void> recordShare(ShareImpl share) {
+        return journal.append(shareRecord(share));
+    }
+
+    CompletableFuture<Void> recordVersionRemoved(DeRecIdentity sharerId, DeRecSecret.Id secretId, int versionNumber) {
+        ByteArrayOutputStream out = newRecord(VERSION_REMOVED, sharerId, secretId);
+        write(out, intToByteArray(versionNumber));
+        return journal.append(out.toByteArray());
+    }
+
+    CompletableFuture<Void> recordSecretRemoved(DeRecIdentity sharerId, DeRecSecret.Id secretId) {
+        return journal.append(newRecord(SECRET_REMOVED, sharerId, secretId).toByteArray());
+    }
+
+    /**
+     * @param sharerId DeRecIdentity of the sharer
+     * @param secretId secret id, or null if the sharer was removed for all secrets
+     */
+    CompletableFuture<Void> recordSharerRemoved(DeRecIdentity sharerId, DeRecSecret.Id secretId) {
+        return journal.append(newRecord(SHARER_REMOVED, sharerId, secretId).toByteArray());
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return records recreating the Helper's current state
+     */
+    private List<byte[]> snapshot() {
+        List<byte[]> records = new ArrayList<>();
+        records.add(keysRecord(helper.getMyLibId()));
+        for (Map.Entry<DeRecIdentity, ConcurrentHashMap<DeRecSecret.Id, SharerStatusImpl>> sharerEntry :
+                helper.sharerStatuses.entrySet()) {
+            for (Map.Entry<DeRecSecret.Id, SharerStatusImpl> secretEntry :
+                    sharerEntry.getValue().entrySet()) {
+                records.add(sharerRecord(secretEntry.getValue(), secretEntry.getKey()));
+            }
+        }
+        for (ShareImpl share : helper.getShares()) {
+            records.add(shareRecord(share));
+        }
+        return records;
+    }
+
+    private SharerStatusImpl findSharerStatus(DeRecIdentity sharerId, DeRecSecret.Id secretId) {
+        Map<DeRecSecret.Id, SharerStatusImpl> secretMap = helper.sharerStatuses.get(sharerId);
+        return secretMap == null ? null : secretMap.get(secretId);
+    }
+
+    private static byte[] keysRecord(LibIdentity identity) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HELPER_KEYS);
+        writeKeys(out, identity);
+        return out.toByteArray();
+    }
+
+    private static byte[] sharerRecord(SharerStatusImpl sharerStatus, DeRecSecret.Id secretId) {
+        ByteArrayOutputStream out = newRecord(SHARER, sharerStatus.getId(), secretId);
+        writeString(out, sharerStatus.getStatus().name());
+        write(out, intToByteArray(sharerStatus.isRecovering() ? 1 : 0));
+        return out.toByteArray();
+    }
+
+    private static byte[] shareRecord(ShareImpl share) {
+        DeRecHelper.SharerStatus sharerStatus = share.getSharerStatus();
+        ByteArrayOutputStream out = newRecord(SHARE, sharerStatus.getId(), share.getSecretId());
+        write(out, intToByteArray(share.getVersionNumber()));
+        writeBytes(out, share.getCommittedDeRecShare().toByteArray());
+        return out.toByteArray();
+    }
+
+    /**
+     * Starts a record with its type, the sharer's identity and the secret id, the fields common to all but the
+     * HELPER_KEYS records
+     */
+    private static ByteArrayOutputStream newRecord(byte type, DeRecIdentity sharerId, DeRecSecret.Id secretId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(type);
+        writeIdentity(out, sharerId);
+        writeBytes(out, secretId == null ? new byte[0] : secretId.getBytes());
+        return out;
+    }
+}
@@ -34,6 +34,7 @@ public class HelperStatusImpl implements DeRecHelperStatus {
     SecretImpl secret;
     DeRecPairingStatus.PairingStatus pairingStatus;
     Instant lastVerificationTime;
+    final VerificationPolicy.Stats verificationStats = new VerificationPolicy.Stats();
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     public HelperStatusImpl(SecretImpl secret, DeRecIdentity id, long nonce) {
@@ -56,6 +57,13 @@ public class HelperStatusImpl implements DeRecHelperStatus {
         lastVerificationTime = currentTime;
     }
 
+    /**
+     * @return the verification history used by the VerificationPolicy
+     */
+    public VerificationPolicy.Stats getVerificationStats() {
+        return verificationStats;
+    }
+
     @Override
     public DeRecPairingStatus.PairingStatus getStatus() {
         return pairingStatus;
@@ -63,6 +71,7 @@ public class HelperStatusImpl implements DeRecHelperStatus {
 
     public void setStatus(DeRecPairingStatus.PairingStatus pairingStatus) {
         this.pairingStatus = pairingStatus;
+        secret.journalHelperStatus(this);
     }
 
     /**
@@ -94,7 +103,7 @@ public class HelperStatusImpl implements DeRecHelperStatus {
                 nonce,
                 LibState.getInstance().getMeSharer().getParameterRange());
         // Update the pairing status of the helper
-        pairingStatus = PairingStatus.INVITED;
+        setStatus(PairingStatus.INVITED);
     }
 
     public SecretImpl getSecret() {
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Default transport: messages are POSTed with ProtobufHttpClient and received by ProtobufHttpServer.
+ */
+public class HttpTransport implements Transport {
+    @Override
+    public void startListening(URI address) {
+        LibState.getInstance().startHttpServer(address);
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(String toUri, byte[] msgBytes) {
+        return ProtobufHttpClient.sendHttpRequestAsync(toUri, msgBytes);
+    }
+}
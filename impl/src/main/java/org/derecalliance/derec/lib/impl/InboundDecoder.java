@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.derecalliance.derec.lib.impl.commands.ParsedMessageCommand;
+import org.derecalliance.derec.protobuf.Derecmessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel stage between admission of received messages and the command lanes that own the protocol state. Received
+ * messages are decrypted, verified and parsed on a pool of decoding threads; only messages whose signature verifies
+ * are passed on, as ParsedMessageCommands, to the lane of the secret (or sharer) they belong to. Messages sent to one
+ * publicKeyId are passed on in the order they were received, whichever decoding thread finishes first. When the
+ * pool's queue is full, the command thread handing a message over decodes it itself, which slows down admission.
+ */
+public class InboundDecoder {
+    // Completes when the last message received for a publicKeyId has been passed on (or dropped)
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> publicKeyIdTails = new ConcurrentHashMap<>();
+    private final LongAdder decodedMessages = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private volatile ThreadPoolExecutor executor = null;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * Decodes a received message on the decoding pool, and passes it on to its lane. Returns without waiting.
+     *
+     * @param publicKeyId      publicKeyId the message was sent to
+     * @param myIdentity       LibIdentity of that publicKeyId
+     * @param encryptedMessage byte[] containing the encrypted message that followed the publicKeyId
+     */
+    public void decode(int publicKeyId, LibIdentity myIdentity, byte[] encryptedMessage) {
+        CompletableFuture<Derecmessage.DeRecMessage> decoded = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            try {
+                decoded.complete(MessageFactory.decodePackagedBytes(myIdentity, encryptedMessage));
+            } catch (Exception ex) {
+                decoded.completeExceptionally(ex);
+            }
+        });
+
+        CompletableFuture<Void> passedOn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = publicKeyIdTails.put(publicKeyId, passedOn);
+        CompletableFuture<Void> turn = previous == null ? CompletableFuture.completedFuture(null) : previous;
+        turn.thenCompose(v -> decoded).whenComplete((message, ex) -> {
+            try {
+                if (message == null) {
+                    if (ex != null) {
+                        logger.error("Exception decoding message", ex);
+                    }
+                    droppedMessages.increment();
+                } else {
+                    decodedMessages.increment();
+                    LibState.getInstance().getCommandQueue().forward(new ParsedMessageCommand(publicKeyId, message));
+                }
+            } finally {
+                passedOn.complete(null);
+                publicKeyIdTails.remove(publicKeyId, passedOn);
+            }
+        });
+    }
+
+    /**
+     * @return number of messages decoded and passed on to their lanes
+     */
+    public long getDecodedMessages() {
+        return decodedMessages.sum();
+    }
+
+    /**
+     * @return number of messages dropped because they could not be decrypted or parsed, their sender is not known,
+     *     or their signature does not verify
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    LibState libState = LibState.getInstance();
+                    int threads = libState.getDecodingThreads();
+                    AtomicInteger threadCount = new AtomicInteger();
+                    executor = new ThreadPoolExecutor(
+                            threads,
+                            threads,
+                            60,
+                            TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(libState.getDecodingQueueCapacity()),
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "derec-decoder-" + threadCount.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+                }
+                current = executor;
+            }
+        }
+        return current;
+    }
+}
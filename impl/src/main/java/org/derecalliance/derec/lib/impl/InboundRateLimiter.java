@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket rate limiter for received messages. LibState keeps one keyed by the sender's remote address, so that a
+ * peer that floods us only has its own messages rejected, and one keyed by the publicKeyId prefix, as an aggregate
+ * limit on the messages to each of our identities. Messages over the rate are rejected before they are queued or
+ * decrypted. Buckets that have refilled completely are dropped once there are more than MAX_BUCKETS, so a stream of
+ * new sources cannot grow the table without bound.
+ *
+ * @param <K> key of the buckets
+ */
+class InboundRateLimiter<K> {
+    static final int MAX_BUCKETS = 10000;
+    private final ConcurrentHashMap<K, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private static class TokenBucket {
+        double tokens;
+        long lastRefillNanos;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefillNanos = now;
+        }
+
+        synchronized boolean tryAcquire(double ratePerSecond, int burst, long now) {
+            refill(ratePerSecond, burst, now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(double ratePerSecond, int burst, long now) {
+            refill(ratePerSecond, burst, now);
+            return tokens >= burst;
+        }
+
+        private void refill(double ratePerSecond, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerSecond / 1_000_000_000.0);
+            lastRefillNanos = now;
+        }
+    }
+
+    /**
+     * Takes a token for a message from the given key
+     *
+     * @param key           source address or publicKeyId of the received message
+     * @param ratePerSecond messages admitted per second, 0 or less to admit every message
+     * @param burst         messages admitted at once after the key has been idle
+     * @return true if the message may be processed, false if it exceeds the rate for the key
+     */
+    boolean tryAcquire(K key, double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (buckets.size() >= MAX_BUCKETS && !buckets.containsKey(key)) {
+            // A full bucket admits the same messages as a new one, so dropping it changes nothing
+            buckets.values().removeIf(bucket -> bucket.isFull(ratePerSecond, burst, now));
+        }
+        TokenBucket bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(burst, now));
+        return bucket.tryAcquire(ratePerSecond, burst, now);
+    }
+
+    /**
+     * @return the number of keys with a bucket
+     */
+    int size() {
+        return buckets.size();
+    }
+}
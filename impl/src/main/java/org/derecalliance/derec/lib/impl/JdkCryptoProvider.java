@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.derecalliance.derec.protobuf.Storeshare;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CryptoProvider using only the JDK, for building, testing and profiling the library on machines without the native
+ * DeRec cryptography library. Messages are signed with Ed25519 and encrypted to an X25519 key (ECIES with
+ * AES-256-GCM). A secret is encrypted with AES-256-GCM under a random key, the key is split with Shamir's scheme over
+ * GF(256), and the shares are committed to with a SHA-384 Merkle tree, as CommittedDeRecShare describes. Its keys and
+ * ciphertexts are not interchangeable with those of the native library.
+ */
+public class JdkCryptoProvider implements CryptoProvider {
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int SECRET_KEY_LENGTH = 32;
+    // Exponent and logarithm tables of GF(256) with the AES polynomial, generator 3
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    private final SecureRandom random = new SecureRandom();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x] = i;
+            x ^= (x << 1) ^ ((x & 0x80) != 0 ? 0x11b : 0);
+        }
+    }
+
+    @Override
+    public List<byte[]> share(byte[] secretId, int version, byte[] secret, int count, int threshold) {
+        if (threshold < 1 || threshold > count || count > 255) {
+            throw new IllegalArgumentException("Cannot split into " + count + " shares with threshold " + threshold);
+        }
+        byte[] key = new byte[SECRET_KEY_LENGTH];
+        random.nextBytes(key);
+        ByteString encryptedSecret = ByteString.copyFrom(aesEncrypt(key, secret));
+
+        // Share each byte of the key with its own random polynomial of degree threshold - 1, evaluated at x = 1..count
+        byte[][] ys = new byte[count][SECRET_KEY_LENGTH];
+        byte[] coefficients = new byte[threshold];
+        for (int b = 0; b < SECRET_KEY_LENGTH; b++) {
+            random.nextBytes(coefficients);
+            coefficients[0] = key[b];
+            for (int i = 0; i < count; i++) {
+                int y = 0;
+                for (int c = threshold - 1; c >= 0; c--) {
+                    y = multiply(y, i + 1) ^ (coefficients[c] & 0xff);
+                }
+                ys[i][b] = (byte) y;
+            }
+        }
+        Arrays.fill(key, (byte) 0);
+
+        List<byte[]> deRecShares = new ArrayList<>();
+        List<byte[]> leafHashes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] deRecShare = Storeshare.DeRecShare.newBuilder()
+                    .setEncryptedSecret(encryptedSecret)
+                    .setX(ByteString.copyFrom(new byte[] {(byte) (i + 1)}))
+                    .setY(ByteString.copyFrom(ys[i]))
+                    .setSecretId(ByteString.copyFrom(secretId))
+                    .setVersion(version)
+                    .build()
+                    .toByteArray();
+            deRecShares.add(deRecShare);
+            leafHashes.add(sha384(deRecShare));
+        }
+        List<List<byte[]>> merkleLevels = merkleLevels(leafHashes);
+        ByteString commitment =
+                ByteString.copyFrom(merkleLevels.get(merkleLevels.size() - 1).get(0));
+
+        List<byte[]> committedDeRecShares = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Storeshare.CommittedDeRecShare.Builder builder = Storeshare.CommittedDeRecShare.newBuilder()
+                    .setDeRecShare(ByteString.copyFrom(deRecShares.get(i)))
+                    .setCommitment(commitment);
+            int index = i;
+            for (int level = 0; level < merkleLevels.size() - 1; level++) {
+                int sibling = index ^ 1;
+                if (sibling < merkleLevels.get(level).size()) {
+                    builder.addMerklePath(Storeshare.CommittedDeRecShare.SiblingHash.newBuilder()
+                            .setIsLeft(sibling < index)
+                            .setHash(ByteString.copyFrom(merkleLevels.get(level).get(sibling))));
+                }
+                index /= 2;
+            }
+            committedDeRecShares.add(builder.build().toByteArray());
+        }
+        return committedDeRecShares;
+    }
+
+    @Override
+    public byte[] recover(byte[] secretId, int version, List<byte[]> shares) {
+        // Group the shares whose Merkle path leads to their commitment by commitment, and by x within a commitment
+        Map<ByteString, TreeMap<Integer, Storeshare.DeRecShare>> sharesByCommitment = new LinkedHashMap<>();
+        for (byte[] shareBytes : shares) {
+            try {
+                Storeshare.CommittedDeRecShare cds = Storeshare.CommittedDeRecShare.parseFrom(shareBytes);
+                if (!verifyMerklePath(cds)) {
+                    logger.debug("Ignoring share whose Merkle path does not match its commitment");
+                    continue;
+                }
+                Storeshare.DeRecShare drs = Storeshare.DeRecShare.parseFrom(cds.getDeRecShare());
+                if (drs.getVersion() != version
+                        || !Arrays.equals(drs.getSecretId().toByteArray(), secretId)
+                        || drs.getX().size() != 1
+                        || drs.getY().size() != SECRET_KEY_LENGTH) {
+                    continue;
+                }
+                sharesByCommitment
+                        .computeIfAbsent(cds.getCommitment(), c -> new TreeMap<>())
+                        .put(drs.getX().byteAt(0) & 0xff, drs);
+            } catch (InvalidProtocolBufferException ex) {
+                logger.debug("Ignoring share that could not be parsed", ex);
+            }
+        }
+
+        List<TreeMap<Integer, Storeshare.DeRecShare>> candidates = new ArrayList<>(sharesByCommitment.values());
+        candidates.sort(Comparator.comparingInt(TreeMap<Integer, Storeshare.DeRecShare>::size)
+                .reversed());
+        for (TreeMap<Integer, Storeshare.DeRecShare> candidate : candidates) {
+            byte[] key = interpolateAtZero(candidate);
+            try {
+                // Too few shares interpolate to a wrong key, which the authentication tag rejects
+                return aesDecrypt(
+                        key,
+                        candidate.firstEntry().getValue().getEncryptedSecret().toByteArray());
+            } catch (GeneralSecurityException ex) {
+                logger.debug("Could not recover the secret from " + candidate.size() + " shares");
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] signThenEncrypt(byte[] message, byte[] privateSignatureKey, byte[] publicEncryptionKey) {
+        try {
+            return signThenEncrypt(
+                    message, privateKey("Ed25519", privateSignatureKey), publicKey("X25519", publicEncryptionKey));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not sign and encrypt the message", ex);
+        }
+    }
+
+    @Override
+    public byte[] signThenEncrypt(byte[] message, PreparedKey privateSignatureKey, PreparedKey publicEncryptionKey) {
+        if (privateSignatureKey.handle() == null || publicEncryptionKey.handle() == null) {
+            return signThenEncrypt(message, privateSignatureKey.encoded(), publicEncryptionKey.encoded());
+        }
+        try {
+            return signThenEncrypt(
+                    message, (PrivateKey) privateSignatureKey.handle(), (PublicKey) publicEncryptionKey.handle());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not sign and encrypt the message", ex);
+        }
+    }
+
+    private byte[] signThenEncrypt(byte[] message, PrivateKey privateSignatureKey, PublicKey publicEncryptionKey)
+            throws GeneralSecurityException {
+        Signature signer = Signature.getInstance("Ed25519");
+        signer.initSign(privateSignatureKey);
+        signer.update(message);
+        byte[] signature = signer.sign();
+
+        java.security.KeyPair ephemeral = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        byte[] ephemeralPublicKey = ephemeral.getPublic().getEncoded();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(
+                Cipher.ENCRYPT_MODE,
+                messageKey(ephemeral.getPrivate(), publicEncryptionKey, ephemeralPublicKey),
+                new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+
+        // Ephemeral public key length, ephemeral public key, nonce, then the encrypted signature and message
+        ByteBuffer output = ByteBuffer.allocate(
+                4 + ephemeralPublicKey.length + NONCE_LENGTH + cipher.getOutputSize(signature.length + message.length));
+        output.putInt(ephemeralPublicKey.length).put(ephemeralPublicKey).put(nonce);
+        cipher.update(ByteBuffer.wrap(signature), output);
+        cipher.doFinal(ByteBuffer.wrap(message), output);
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, byte[] privateEncryptionKey) {
+        try {
+            return decrypt(ciphertext, privateKey("X25519", privateEncryptionKey));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not decrypt the message", ex);
+        }
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, PreparedKey privateEncryptionKey) {
+        if (privateEncryptionKey.handle() == null) {
+            return decrypt(ciphertext, privateEncryptionKey.encoded());
+        }
+        try {
+            return decrypt(ciphertext, (PrivateKey) privateEncryptionKey.handle());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Could not decrypt the message", ex);
+        }
+    }
+
+    private byte[] decrypt(byte[] ciphertext, PrivateKey privateEncryptionKey) throws GeneralSecurityException {
+        ByteBuffer input = ByteBuffer.wrap(ciphertext);
+        int ephemeralKeyLength = input.getInt();
+        if (ephemeralKeyLength < 0 || ephemeralKeyLength + NONCE_LENGTH > input.remaining()) {
+            throw new IllegalArgumentException("Malformed ciphertext");
+        }
+        byte[] ephemeralPublicKey = new byte[ephemeralKeyLength];
+        input.get(ephemeralPublicKey);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        input.get(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(
+                Cipher.DECRYPT_MODE,
+                messageKey(privateEncryptionKey, publicKey("X25519", ephemeralPublicKey), ephemeralPublicKey),
+                new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+        return cipher.doFinal(ciphertext, input.position(), input.remaining());
+    }
+
+    @Override
+    public boolean verify(byte[] message, byte[] signature, byte[] publicSignatureKey) {
+        try {
+            return verify(message, signature, publicKey("Ed25519", publicSignatureKey));
+        } catch (GeneralSecurityException ex) {
+            logger.debug("Could not verify signature", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] message, byte[] signature, PreparedKey publicSignatureKey) {
+        if (publicSignatureKey.handle() == null) {
+            return verify(message, signature, publicSignatureKey.encoded());
+        }
+        try {
+            return verify(message, signature, (PublicKey) publicSignatureKey.handle());
+        } catch (GeneralSecurityException ex) {
+            logger.debug("Could not verify signature", ex);
+            return false;
+        }
+    }
+
+    private static boolean verify(byte[] message, byte[] signature, PublicKey publicSignatureKey)
+            throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance("Ed25519");
+        verifier.initVerify(publicSignatureKey);
+        verifier.update(message);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * Parses the key, so that it is not parsed again for every message. Keys that cannot be parsed are left as bytes,
+     * and fail when they are used.
+     */
+    @Override
+    public PreparedKey prepareKey(KeyUse use, byte[] encoded) {
+        try {
+            if (use == KeyUse.PUBLIC_ENCRYPTION) {
+                return new PreparedKey(encoded, publicKey("X25519", encoded));
+            } else if (use == KeyUse.PRIVATE_ENCRYPTION) {
+                return new PreparedKey(encoded, privateKey("X25519", encoded));
+            } else if (use == KeyUse.PUBLIC_SIGNATURE) {
+                return new PreparedKey(encoded, publicKey("Ed25519", encoded));
+            } else {
+                return new PreparedKey(encoded, privateKey("Ed25519", encoded));
+            }
+        } catch (GeneralSecurityException ex) {
+            logger.debug("Could not parse " + use + " key", ex);
+            return new PreparedKey(encoded, null);
+        }
+    }
+
+    private static PublicKey publicKey(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private static PrivateKey privateKey(String algorithm, byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+
+    @Override
+    public KeyPair encryptionKeyGen() {
+        return generateKeyPair("X25519");
+    }
+
+    @Override
+    public KeyPair signatureKeyGen() {
+        return generateKeyPair("Ed25519");
+    }
+
+    private static KeyPair generateKeyPair(String algorithm) {
+        try {
+            java.security.KeyPair keyPair =
+                    KeyPairGenerator.getInstance(algorithm).generateKeyPair();
+            return new KeyPair(
+                    keyPair.getPublic().getEncoded(), keyPair.getPrivate().getEncoded());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not generate " + algorithm + " key pair", ex);
+        }
+    }
+
+    /**
+     * Derives the AES key of a message: SHA-256 of the X25519 shared secret and the ephemeral public key
+     */
+    private static SecretKeySpec messageKey(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralPublicKey)
+            throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("X25519");
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(keyAgreement.generateSecret());
+        digest.update(ephemeralPublicKey);
+        return new SecretKeySpec(digest.digest(), "AES");
+    }
+
+    private byte[] aesEncrypt(byte[] key, byte[] plaintext) {
+        try {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(
+                    Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            byte[] output = Arrays.copyOf(nonce, NONCE_LENGTH + cipher.getOutputSize(plaintext.length));
+            cipher.doFinal(plaintext, 0, plaintext.length, output, NONCE_LENGTH);
+            return output;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not encrypt the secret", ex);
+        }
+    }
+
+    private static byte[] aesDecrypt(byte[] key, byte[] nonceAndCiphertext) throws GeneralSecurityException {
+        if (nonceAndCiphertext.length < NONCE_LENGTH) {
+            throw new GeneralSecurityException("Encrypted secret too short");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(
+                Cipher.DECRYPT_MODE,
+                new SecretKeySpec(key, "AES"),
+                new GCMParameterSpec(TAG_LENGTH_BITS, nonceAndCiphertext, 0, NONCE_LENGTH));
+        return cipher.doFinal(nonceAndCiphertext, NONCE_LENGTH, nonceAndCiphertext.length - NONCE_LENGTH);
+    }
+
+    /**
+     * Lagrange interpolation of the shares' polynomials at x = 0, byte by byte
+     */
+    private static byte[] interpolateAtZero(TreeMap<Integer, Storeshare.DeRecShare> shares) {
+        int[] xs = shares.keySet().stream().mapToInt(Integer::intValue).toArray();
+        int[] basis = new int[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            basis[i] = 1;
+            for (int j = 0; j < xs.length; j++) {
+                if (i != j) {
+                    basis[i] = multiply(basis[i], divide(xs[j], xs[j] ^ xs[i]));
+                }
+            }
+        }
+        byte[] key = new byte[SECRET_KEY_LENGTH];
+        int i = 0;
+        for (Storeshare.DeRecShare share : shares.values()) {
+            for (int b = 0; b < SECRET_KEY_LENGTH; b++) {
+                key[b] ^= (byte) multiply(share.getY().byteAt(b) & 0xff, basis[i]);
+            }
+            i++;
+        }
+        return key;
+    }
+
+    private static int multiply(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int divide(int a, int b) {
+        return a == 0 ? 0 : EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+    /**
+     * @return the levels of the Merkle tree, from the leaves to the root; an odd node is carried up unchanged
+     */
+    private static List<List<byte[]>> merkleLevels(List<byte[]> leafHashes) {
+        List<List<byte[]>> levels = new ArrayList<>();
+        List<byte[]> level = leafHashes;
+        levels.add(level);
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                parents.add(i + 1 < level.size() ? sha384(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            levels.add(parents);
+            level = parents;
+        }
+        return levels;
+    }
+
+    private static boolean verifyMerklePath(Storeshare.CommittedDeRecShare cds) {
+        byte[] hash = sha384(cds.getDeRecShare().toByteArray());
+        for (Storeshare.CommittedDeRecShare.SiblingHash sibling : cds.getMerklePathList()) {
+            byte[] siblingHash = sibling.getHash().toByteArray();
+            hash = sibling.getIsLeft() ? sha384(siblingHash, hash) : sha384(hash, siblingHash);
+        }
+        return MessageDigest.isEqual(hash, cds.getCommitment().toByteArray());
+    }
+
+    private static byte[] sha384(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-384");
+            for (byte[] part : parts) {
+                digest.update(part);
+            }
+            return digest.digest();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.intToByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readInt;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.writeToByteArrayOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only write-ahead journal of state changes, with a snapshot to bound the replay time.
+ * <p>
+ * Records are written by a single writer thread. All records appended while a batch is being written go into the
+ * next batch, which is written with one fsync (group commit); the future returned by append completes once its
+ * record is durable. When the journal grows past LibState.journalSnapshotThreshold, the writer thread writes the
+ * records returned by the snapshot supplier to a new snapshot file, atomically replaces the previous snapshot with
+ * it, and truncates the journal.
+ * <p>
+ * Records must be idempotent (puts and removals of whole entries), and the state must be changed before its record
+ * is appended: a snapshot may already contain the changes of records still queued, which are then replayed on top
+ * of it.
+ * <p>
+ * Both files are a sequence of records, each a 4 byte length, the 4 byte CRC32 of the payload, and the payload.
+ * Reading stops at the first incomplete or corrupt record, as left behind by a crash in the middle of a write.
+ * <p>
+ * The records may contain private keys, so on file systems with POSIX permissions the directory and files are
+ * created readable and writable by the owner only (and existing files are restricted when they are opened). On other
+ * file systems the directory must be protected by other means.
+ */
+public class Journal {
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_BATCH_RECORDS = 1024;
+    private static final String OWNER_ONLY_FILE = "rw-------";
+    private static final String OWNER_ONLY_DIRECTORY = "rwx------";
+    private final Path directory;
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final Path snapshotTempPath;
+    private final Supplier<List<byte[]>> snapshotSupplier;
+    private final LinkedBlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    // Size of the journal up to the last durable batch
+    private long committedSize = 0;
+    private volatile long appendedRecords = 0;
+    private volatile long committedBatches = 0;
+    private volatile long snapshotsWritten = 0;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * A record waiting to be written, with the future completed once it is durable. A null payload asks the writer
+     * thread to stop.
+     */
+    private static class PendingRecord {
+        final byte[] payload;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingRecord(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @param directory        directory of the journal and snapshot files
+     * @param name             base name of the files
+     * @param snapshotSupplier returns the records that recreate the current state
+     */
+    public Journal(Path directory, String name, Supplier<List<byte[]>> snapshotSupplier) {
+        this.directory = directory;
+        this.journalPath = directory.resolve(name + ".journal");
+        this.snapshotPath = directory.resolve(name + ".snapshot");
+        this.snapshotTempPath = directory.resolve(name + ".snapshot.tmp");
+        this.snapshotSupplier = snapshotSupplier;
+    }
+
+    /**
+     * Reads the snapshot and the journal, drops any incomplete record at the end of the journal, and starts the
+     * writer thread.
+     *
+     * @return the records of the snapshot followed by those of the journal, in the order they were written
+     * @throws IOException if the files could not be read or the journal could not be opened for writing
+     */
+    public synchronized List<byte[]> open() throws IOException {
+        boolean posix = isPosix();
+        Files.createDirectories(directory, ownerOnly(OWNER_ONLY_DIRECTORY));
+        Files.deleteIfExists(snapshotTempPath);
+        if (posix && Files.exists(snapshotPath)) {
+            Files.setPosixFilePermissions(snapshotPath, PosixFilePermissions.fromString(OWNER_ONLY_FILE));
+        }
+        List<byte[]> records = new ArrayList<>();
+        readRecords(snapshotPath, records);
+        committedSize = readRecords(journalPath, records);
+        boolean created = !Files.exists(journalPath);
+        channel = FileChannel.open(
+                journalPath,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                ownerOnly(OWNER_ONLY_FILE));
+        if (posix && !created) {
+            Files.setPosixFilePermissions(journalPath, PosixFilePermissions.fromString(OWNER_ONLY_FILE));
+        }
+        channel.truncate(committedSize);
+        channel.position(committedSize);
+        if (created) {
+            forceDirectory();
+        }
+        logger.debug("Read " + records.size() + " records from " + snapshotPath + " and " + journalPath);
+
+        Thread writerThread = new Thread(this::writeLoop, "derec-journal-" + journalPath.getFileName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        return records;
+    }
+
+    /**
+     * Queues a record to be written in the next batch. Returns immediately.
+     *
+     * @param payload record bytes
+     * @return future completed once the record is durable, or completed exceptionally if it could not be written
+     */
+    public CompletableFuture<Void> append(byte[] payload) {
+        PendingRecord record = new PendingRecord(payload);
+        pendingRecords.add(record);
+        return record.future;
+    }
+
+    /**
+     * Stops the writer thread after the records already queued have been written
+     *
+     * @return future completed once the journal is closed
+     */
+    public CompletableFuture<Void> close() {
+        PendingRecord stop = new PendingRecord(null);
+        pendingRecords.add(stop);
+        return stop.future;
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public long getCommittedBatches() {
+        return committedBatches;
+    }
+
+    public long getSnapshotsWritten() {
+        return snapshotsWritten;
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pendingRecords.take());
+            } catch (InterruptedException ex) {
+                logger.debug("Journal writer interrupted");
+                return;
+            }
+            pendingRecords.drainTo(batch, MAX_BATCH_RECORDS - 1);
+            PendingRecord stop = null;
+            if (batch.get(batch.size() - 1).payload == null) {
+                stop = batch.remove(batch.size() - 1);
+            }
+            writeBatch(batch);
+            batch.clear();
+            if (stop != null) {
+                closeChannel(stop.future);
+                return;
+            }
+            if (committedSize > LibState.getInstance().getJournalSnapshotThreshold()) {
+                try {
+                    writeSnapshot();
+                } catch (Exception ex) {
+                    // The journal is intact, so nothing is lost; the snapshot is attempted again after the next batch
+                    logger.error("Could not write the snapshot " + snapshotPath, ex);
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] payload = batch.get(i).payload;
+                buffers[2 * i] = header(payload);
+                buffers[2 * i + 1] = ByteBuffer.wrap(payload);
+            }
+            writeFully(channel, buffers);
+            channel.force(false);
+            committedSize = channel.position();
+            appendedRecords += batch.size();
+            committedBatches++;
+            batch.forEach(record -> record.future.complete(null));
+        } catch (Exception ex) {
+            logger.error("Could not write to the journal " + journalPath, ex);
+            try {
+                // Drop the partly written batch, so that records appended later are not hidden behind a torn one
+                channel.truncate(committedSize);
+                channel.position(committedSize);
+            } catch (IOException truncateEx) {
+                logger.error("Could not truncate the journal " + journalPath, truncateEx);
+            }
+            batch.forEach(record -> record.future.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * Writes the current state to a new snapshot, replaces the previous snapshot with it, and empties the journal
+     */
+    private void writeSnapshot() throws IOException {
+        List<byte[]> records = snapshotSupplier.get();
+        try (FileChannel snapshotChannel = FileChannel.open(
+                snapshotTempPath,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                ownerOnly(OWNER_ONLY_FILE))) {
+            for (byte[] payload : records) {
+                writeFully(snapshotChannel, new ByteBuffer[] {header(payload), ByteBuffer.wrap(payload)});
+            }
+            snapshotChannel.force(true);
+        }
+        Files.move(snapshotTempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename must be durable before the journal is emptied, or a crash could leave the previous snapshot next
+        // to an empty journal
+        forceDirectory();
+        // A crash before the journal is truncated replays the whole journal on top of the new snapshot, which the
+        // records being idempotent allows
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        committedSize = 0;
+        snapshotsWritten++;
+        logger.debug("Wrote snapshot of " + records.size() + " records to " + snapshotPath);
+    }
+
+    private void closeChannel(CompletableFuture<Void> future) {
+        try {
+            channel.close();
+            future.complete(null);
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+        }
+    }
+
+    private boolean isPosix() {
+        return directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * @param permissions POSIX permissions of a new file or directory
+     * @return the attributes to create it with, or none if the file system does not support POSIX permissions
+     */
+    private FileAttribute<?>[] ownerOnly(String permissions) {
+        if (!isPosix()) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        };
+    }
+
+    /**
+     * Makes the directory entries (creations and renames) durable. Only possible, and needed, on POSIX file systems.
+     */
+    private void forceDirectory() throws IOException {
+        if (!isPosix()) {
+            return;
+        }
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        }
+    }
+
+    private static ByteBuffer header(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .flip();
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer[] buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            fileChannel.write(buffers);
+        }
+    }
+
+    /**
+     * Reads the valid records of a file
+     *
+     * @param path    file to read
+     * @param records list the records are added to
+     * @return length of the file up to the end of the last valid record
+     */
+    private long readRecords(Path path, List<byte[]> records) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long fileSize = Files.size(path);
+        long validSize = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (validSize + HEADER_SIZE <= fileSize) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || validSize + HEADER_SIZE + length > fileSize) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(payload);
+                validSize += HEADER_SIZE + length;
+            }
+        }
+        if (validSize < fileSize) {
+            logger.warn("Ignoring " + (fileSize - validSize) + " bytes after the last valid record of " + path);
+        }
+        return validSize;
+    }
+
+    // Encoding of the fields of records, shared by the journals of the Helper and the sharer
+
+    static void writeIdentity(ByteArrayOutputStream out, DeRecIdentity identity) {
+        try {
+            writeBytes(out, IdentityImpl.serializeDeRecIdentity(identity));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static DeRecIdentity readIdentity(ByteArrayInputStream in) {
+        try {
+            return IdentityImpl.deserializeDeRecIdentity(readByteArray(in));
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new IllegalStateException("Could not read a journaled identity", ex);
+        }
+    }
+
+    static void writeKeys(ByteArrayOutputStream out, LibIdentity identity) {
+        writeString(out, identity.getEncryptionPrivateKey());
+        writeString(out, identity.getEncryptionPublicKey());
+        writeString(out, identity.getSignaturePrivateKey());
+        writeString(out, identity.getSignaturePublicKey());
+        write(out, intToByteArray(identity.getPublicEncryptionKeyId()));
+        write(out, intToByteArray(identity.getPublicSignatureKeyId()));
+    }
+
+    static LibIdentity readKeys(ByteArrayInputStream in, String name, String contact, String address) {
+        String encryptionPrivateKey = readString(in);
+        String encryptionPublicKey = readString(in);
+        String signaturePrivateKey = readString(in);
+        String signaturePublicKey = readString(in);
+        int publicEncryptionKeyId = readInt(in);
+        int publicSignatureKeyId = readInt(in);
+        return new LibIdentity(
+                name,
+                contact,
+                address,
+                encryptionPrivateKey,
+                encryptionPublicKey,
+                signaturePrivateKey,
+                signaturePublicKey,
+                publicEncryptionKeyId,
+                publicSignatureKeyId);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(ByteArrayInputStream in) {
+        return new String(readByteArray(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        try {
+            writeToByteArrayOutputStream(out, bytes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
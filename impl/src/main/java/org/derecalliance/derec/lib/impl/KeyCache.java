@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Peers' public keys, decoded from Base64 and prepared for the crypto provider once rather than for every message.
+ * Keys are looked up by their Base64 form, as carried in the DeRecIdentity of the sharer or helper. When a use has more
+ * than maxCachedKeys keys cached, its cache is cleared and refilled as keys are used again.
+ */
+public class KeyCache {
+    private final EnumMap<CryptoProvider.KeyUse, ConcurrentHashMap<String, CryptoProvider.PreparedKey>> caches =
+            new EnumMap<>(CryptoProvider.KeyUse.class);
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    public KeyCache() {
+        for (CryptoProvider.KeyUse use : CryptoProvider.KeyUse.values()) {
+            caches.put(use, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Gets the prepared form of a key, preparing it on first use
+     *
+     * @param use       what the key is used for
+     * @param base64Key key in Base64
+     * @return PreparedKey
+     */
+    public CryptoProvider.PreparedKey get(CryptoProvider.KeyUse use, String base64Key) {
+        ConcurrentHashMap<String, CryptoProvider.PreparedKey> cache = caches.get(use);
+        CryptoProvider.PreparedKey prepared = cache.get(base64Key);
+        if (prepared != null) {
+            return prepared;
+        }
+        if (cache.size() >= LibState.getInstance().getMaxCachedKeys()) {
+            logger.debug("Key cache for " + use + " is full, clearing it");
+            cache.clear();
+        }
+        return cache.computeIfAbsent(base64Key, key -> prepare(use, key));
+    }
+
+    /**
+     * Prepares a key without caching it, for keys that have not been authenticated yet
+     *
+     * @param use       what the key is used for
+     * @param base64Key key in Base64
+     * @return PreparedKey
+     */
+    public static CryptoProvider.PreparedKey prepare(CryptoProvider.KeyUse use, String base64Key) {
+        return LibState.getInstance()
+                .getCryptoProvider()
+                .prepareKey(use, Base64.getDecoder().decode(base64Key));
+    }
+
+    /**
+     * Drops all cached keys, for example when the crypto provider changes
+     */
+    public void clear() {
+        caches.values().forEach(ConcurrentHashMap::clear);
+    }
+
+    /**
+     * @return number of keys cached
+     */
+    public int size() {
+        return caches.values().stream().mapToInt(ConcurrentHashMap::size).sum();
+    }
+}
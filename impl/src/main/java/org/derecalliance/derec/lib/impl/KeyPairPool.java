@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of pre-generated identity keys (an encryption and a signature key pair with their key ids), so that creating a
+ * secret, sharer or helper does not wait for key generation. The pool is refilled in the background up to
+ * keyPairPoolDepth; a depth of 0 disables it and LibIdentity generates its keys in the caller's thread. Each set of
+ * keys is handed out at most once.
+ */
+public class KeyPairPool {
+    /**
+     * Keys for one LibIdentity
+     *
+     * @param provider              crypto provider that generated the keys
+     * @param encryptionPrivateKey  private encryption key in Base64
+     * @param encryptionPublicKey   public encryption key in Base64
+     * @param signaturePrivateKey   private signature key in Base64
+     * @param signaturePublicKey    public signature key in Base64
+     * @param publicEncryptionKeyId key id of the public encryption key
+     * @param publicSignatureKeyId  key id of the public signature key
+     */
+    public record IdentityKeys(
+            CryptoProvider provider,
+            String encryptionPrivateKey,
+            String encryptionPublicKey,
+            String signaturePrivateKey,
+            String signaturePublicKey,
+            int publicEncryptionKeyId,
+            int publicSignatureKeyId) {}
+
+    private final ConcurrentLinkedQueue<IdentityKeys> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private volatile ThreadPoolExecutor executor = null;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * Generates the keys for one LibIdentity with the current crypto provider
+     *
+     * @return IdentityKeys
+     */
+    public static IdentityKeys generate() {
+        CryptoProvider provider = LibState.getInstance().getCryptoProvider();
+
+        // Generate encryption key pair using crypto library
+        CryptoProvider.KeyPair encryptionKeyPair = provider.encryptionKeyGen();
+        String encryptionPrivateKey = Base64.getEncoder().encodeToString(encryptionKeyPair.privateKey());
+        String encryptionPublicKey = Base64.getEncoder().encodeToString(encryptionKeyPair.publicKey());
+
+        // Generate signature key pair using crypto library
+        CryptoProvider.KeyPair signatureKeyPair = provider.signatureKeyGen();
+        String signaturePrivateKey = Base64.getEncoder().encodeToString(signatureKeyPair.privateKey());
+        String signaturePublicKey = Base64.getEncoder().encodeToString(signatureKeyPair.publicKey());
+
+        return new IdentityKeys(
+                provider,
+                encryptionPrivateKey,
+                encryptionPublicKey,
+                signaturePrivateKey,
+                signaturePublicKey,
+                LibIdentity.getLast32BitsOfMD5(encryptionPublicKey),
+                LibIdentity.getLast32BitsOfMD5(signaturePublicKey));
+    }
+
+    /**
+     * Takes keys from the pool, or generates them in the caller's thread if the pool is empty or disabled. Either way
+     * the pool is topped up in the background.
+     *
+     * @return IdentityKeys that have not been handed out before
+     */
+    public IdentityKeys take() {
+        CryptoProvider provider = LibState.getInstance().getCryptoProvider();
+        IdentityKeys keys;
+        while ((keys = pool.poll()) != null) {
+            size.decrementAndGet();
+            // Keys generated before the crypto provider was changed are dropped
+            if (keys.provider() == provider) {
+                refill();
+                return keys;
+            }
+        }
+        refill();
+        return generate();
+    }
+
+    /**
+     * Starts topping up the pool to keyPairPoolDepth in the background, unless it is already being topped up
+     */
+    public void refill() {
+        // Nothing can be generated before the crypto provider is selected, which refills the pool
+        if (LibState.getInstance().getKeyPairPoolDepth() <= 0
+                || !LibState.getInstance().hasCryptoProvider()
+                || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        getExecutor().execute(() -> {
+            try {
+                while (size.get() < LibState.getInstance().getKeyPairPoolDepth()) {
+                    pool.add(generate());
+                    size.incrementAndGet();
+                }
+            } catch (Exception ex) {
+                logger.error("Could not generate keys for the key pair pool", ex);
+                refilling.set(false);
+                return;
+            }
+            refilling.set(false);
+            // A take may have found the refill still running just before it finished
+            if (size.get() < LibState.getInstance().getKeyPairPoolDepth()) {
+                refill();
+            }
+        });
+    }
+
+    /**
+     * Drops all pooled keys, for example when the crypto provider changes
+     */
+    public void clear() {
+        while (pool.poll() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of keys in the pool
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(
+                            1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                                Thread thread = new Thread(runnable, "derec-keypool");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                }
+                current = executor;
+            }
+        }
+        return current;
+    }
+}
@@ -31,10 +31,14 @@ public class LibIdentity {
     private String signaturePublicKey;
     private int publicEncryptionKeyId;
     private int publicSignatureKeyId;
+    // Private keys decoded and prepared for the crypto provider on first use, reset when the keys change
+    private volatile CryptoProvider.PreparedKey preparedEncryptionPrivateKey;
+    private volatile CryptoProvider.PreparedKey preparedSignaturePrivateKey;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     /**
-     * LibIdentity constructor that generates encryption and signature key pairs and sets class variables
+     * LibIdentity constructor that obtains new encryption and signature key pairs (see KeyPairPool) and sets class
+     * variables
      *
      * @param name    User's name
      * @param contact User's contact
@@ -42,31 +46,19 @@ public class LibIdentity {
      */
     public LibIdentity(String name, String contact, String address) {
         try {
-            Object[] encryptionKeyPair;
-            Object[] signatureKeyPair;
-
-            // Generate encryption key pair using crypto library
-            encryptionKeyPair = LibState.getInstance().getDerecCryptoImpl().encryptionKeyGen();
-            String encryptionPrivateKey = Base64.getEncoder().encodeToString(((byte[]) encryptionKeyPair[1]));
-            String encryptionPublicKey = Base64.getEncoder().encodeToString(((byte[]) encryptionKeyPair[0]));
-            int publicEncryptionKeyId = getLast32BitsOfMD5(encryptionPublicKey);
-
-            // Generate signature key pair using crypto library
-            signatureKeyPair = LibState.getInstance().getDerecCryptoImpl().signatureKeyGen();
-            String signaturePrivateKey = Base64.getEncoder().encodeToString(((byte[]) signatureKeyPair[1]));
-            String signaturePublicKey = Base64.getEncoder().encodeToString(((byte[]) signatureKeyPair[0]));
-            int publicSignatureKeyId = getLast32BitsOfMD5(signaturePublicKey);
-
+            // Taken from the key pair pool if it is enabled, otherwise generated here
+            KeyPairPool.IdentityKeys keys =
+                    LibState.getInstance().getKeyPairPool().take();
             setVariables(
                     name,
                     contact,
                     address,
-                    encryptionPrivateKey,
-                    encryptionPublicKey,
-                    signaturePrivateKey,
-                    signaturePublicKey,
-                    publicEncryptionKeyId,
-                    publicSignatureKeyId);
+                    keys.encryptionPrivateKey(),
+                    keys.encryptionPublicKey(),
+                    keys.signaturePrivateKey(),
+                    keys.signaturePublicKey(),
+                    keys.publicEncryptionKeyId(),
+                    keys.publicSignatureKeyId());
         } catch (Exception ex) {
             logger.error("Exception in LibIdentity", ex);
         }
@@ -142,6 +134,8 @@ public class LibIdentity {
             this.signaturePublicKey = signaturePublicKey;
             this.publicEncryptionKeyId = publicEncryptionKeyId;
             this.publicSignatureKeyId = publicSignatureKeyId;
+            this.preparedEncryptionPrivateKey = null;
+            this.preparedSignaturePrivateKey = null;
         } catch (Exception ex) {
             logger.error("Exception in LibIdentity.setKeys", ex);
         }
@@ -175,6 +169,42 @@ public class LibIdentity {
         return publicSignatureKeyId;
     }
 
+    /**
+     * Gets the private encryption key, decoded and prepared for the crypto provider once rather than per message
+     *
+     * @return prepared private encryption key
+     */
+    public CryptoProvider.PreparedKey getPreparedEncryptionPrivateKey() {
+        CryptoProvider.PreparedKey prepared = preparedEncryptionPrivateKey;
+        if (prepared == null) {
+            prepared = LibState.getInstance()
+                    .getCryptoProvider()
+                    .prepareKey(
+                            CryptoProvider.KeyUse.PRIVATE_ENCRYPTION,
+                            Base64.getDecoder().decode(encryptionPrivateKey));
+            preparedEncryptionPrivateKey = prepared;
+        }
+        return prepared;
+    }
+
+    /**
+     * Gets the private signature key, decoded and prepared for the crypto provider once rather than per message
+     *
+     * @return prepared private signature key
+     */
+    public CryptoProvider.PreparedKey getPreparedSignaturePrivateKey() {
+        CryptoProvider.PreparedKey prepared = preparedSignaturePrivateKey;
+        if (prepared == null) {
+            prepared = LibState.getInstance()
+                    .getCryptoProvider()
+                    .prepareKey(
+                            CryptoProvider.KeyUse.PRIVATE_SIGNATURE,
+                            Base64.getDecoder().decode(signaturePrivateKey));
+            preparedSignaturePrivateKey = prepared;
+        }
+        return prepared;
+    }
+
     /**
      * Used to generate the publicEncryptionKeyId and publicSignatureKeyId
      *
@@ -20,12 +20,19 @@ package org.derecalliance.derec.lib.impl;
 import com.google.protobuf.ByteString;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import org.derecalliance.derec.crypto.DerecCryptoImpl;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import org.derecalliance.derec.lib.api.*;
+import org.derecalliance.derec.lib.impl.commands.MessageReceivedCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,33 +42,126 @@ public class LibState {
     final int minNumberOfHelpersForSendingShares = 2;
     final int minNumberOfHelpersForRecovery = 2;
     final int minNumberOfHelpersForConfirmingShareReceipt = 3;
-    public final int thresholdToMarkHelperRefused = 20;
-    public final int thresholdToMarkHelperFailed = 60;
-    private DerecCryptoImpl derecCryptoImpl = new DerecCryptoImpl();
+    // Outbound HTTP settings. These are read when the shared HttpClient is first used, so they must be set before
+    // the Sharer or Helper is created.
+    private Duration httpConnectTimeout = Duration.ofSeconds(1);
+    private Duration httpRequestTimeout = Duration.ofSeconds(10);
+    private int maxConnectionsPerDestination = 4;
+    private int maxOutboundQueueDepthPerDestination = 256;
+    // Circuit breaker for unreachable destinations, see DestinationHealthTracker
+    private int circuitBreakerFailureThreshold = 3;
+    private Duration retryBackoffInitial = Duration.ofSeconds(1);
+    private Duration retryBackoffMax = Duration.ofMinutes(5);
+    private double retryBackoffJitter = 0.2;
+    // How long a request waits for its response before its future times out
+    private Duration responseTimeout = Duration.ofSeconds(30);
+    // Inbound HTTP settings, read when the HTTP server is started. A null executor selects the default: virtual
+    // threads where available, otherwise a pool of httpServerThreadPoolSize threads.
+    private int httpServerBacklog = 1024;
+    private ExecutorService httpServerExecutor = null;
+    private int httpServerThreadPoolSize = 2 * Runtime.getRuntime().availableProcessors();
+    private int maxInboundMessageSize = 32 * 1024 * 1024;
+    // Upper bound on the bodies merged into one outbound DeRecMessage; keep well below the peers' inbound limit
+    private int maxCoalescedMessageSize = 4 * 1024 * 1024;
+    // Threads that sign and encrypt outbound messages, and the messages that may wait for them before the command
+    // threads package their messages themselves. Read when the first message is sent.
+    private int packagingThreads = Runtime.getRuntime().availableProcessors();
+    private int packagingQueueCapacity = 1024;
+    // Threads that decrypt, verify and parse received messages, and the messages that may wait for them before the
+    // command threads decode their messages themselves. Read when the first message is received.
+    private int decodingThreads = Runtime.getRuntime().availableProcessors();
+    private int decodingQueueCapacity = 1024;
+    // Admission control for the command queue. Received messages over these limits are rejected with 503, and
+    // messages over the rate of their source address, or the aggregate rate of the publicKeyId they are sent to, with
+    // 429, before they are queued or decrypted. Peers behind one proxy or NAT share the rate of its address. The
+    // aggregate per-publicKeyId limit is off by default, since all sharers of a helper send to its one identity.
+    private int commandQueueCapacity = 10000;
+    private long commandQueueMaxBytes = 256L * 1024 * 1024;
+    private final EnumMap<CommandClass, Integer> commandClassLimits = new EnumMap<>(CommandClass.class);
+    private double inboundMessagesPerSecondPerSource = 200;
+    private int inboundMessageBurstPerSource = 400;
+    private double inboundMessagesPerSecondPerKey = 0;
+    private int inboundMessageBurstPerKey = 20000;
+    // Interval of the periodic task runner's ticks, and of retries of a secret's maintenance work while it is
+    // recovering or waiting for enough helpers
+    private Duration periodicWorkInterval = Duration.ofSeconds(1);
+    // A share the helper has not acknowledged is re-sent after shareAckTimeout, doubling with each attempt up to
+    // maxShareAckTimeout
+    private Duration shareAckTimeout = Duration.ofSeconds(10);
+    private Duration maxShareAckTimeout = Duration.ofMinutes(5);
+    // Verification cadence, see VerificationPolicy. Helpers are verified every verificationInterval while they are
+    // failing verifications, and on an interval growing to maxVerificationInterval while they answer correctly.
+    private Duration verificationInterval = Duration.ofSeconds(1);
+    private Duration maxVerificationInterval = Duration.ofHours(1);
+    // A helper failing verifications for this long is marked REFUSED, then FAILED, provided it has missed at least
+    // minUnansweredVerifications requests
+    private Duration helperRefusedAfter = Duration.ofSeconds(20);
+    private Duration helperFailedAfter = Duration.ofSeconds(60);
+    private int minUnansweredVerifications = 3;
+    private VerificationPolicy verificationPolicy = new VerificationPolicy();
+    private VerificationMode verificationMode = VerificationMode.LATEST_PROTECTED;
+    // Time a removed helper (on the sharer's side) or an unpaired sharer (on the helper's side) is kept in
+    // PENDING_REMOVAL before it is dropped
+    private Duration pendingRemovalDelay = Duration.ofSeconds(20);
+    private final DelayedCommandScheduler delayedCommandScheduler = new DelayedCommandScheduler();
+    private final CommandMetrics commandMetrics = new CommandMetrics();
+    // Whether the command metrics are published as JMX MBeans
+    private boolean jmxEnabled = false;
+    // Directory of the journals of the Helper and the sharer, see HelperJournal and SharerJournal. Null disables
+    // journaling; must be set before the Helper or sharer is created. A journal is compacted into a snapshot once it
+    // grows past journalSnapshotThreshold bytes.
+    private Path journalDirectory = null;
+    private long journalSnapshotThreshold = 64L * 1024 * 1024;
+    // Deadlines of the sharer's periodic work, per (secret, version, helper)
+    private final TimerWheel<PeriodicWorkItem> periodicWorkWheel = new TimerWheel<>(Duration.ofMillis(100));
+    // Commands that have waited this long are run ahead of higher priority commands
+    private Duration commandStarvationTimeout = Duration.ofSeconds(2);
+    // Cryptography provider. When none is set, NativeCryptoProvider is selected when the Sharer or Helper is created.
+    // If the native library cannot be loaded, that fails unless jdkCryptoProviderAllowed, in which case
+    // JdkCryptoProvider is used instead. Its keys are not interchangeable with those of the native library.
+    private volatile CryptoProvider cryptoProvider = null;
+    private boolean jdkCryptoProviderAllowed = false;
+    // Peers' public keys prepared for the crypto provider, see KeyCache
+    private final KeyCache keyCache = new KeyCache();
+    private int maxCachedKeys = 10000;
+    // Identity keys generated ahead of time in the background, see KeyPairPool. 0 disables the pool.
+    private final KeyPairPool keyPairPool = new KeyPairPool();
+    private int keyPairPoolDepth = 0;
     ProtobufHttpServer hServer = null;
+    private Transport transport = new SchemeRoutingTransport();
+    private final OutboundDispatcher outboundDispatcher = new OutboundDispatcher();
+    private final OutboundPackager outboundPackager = new OutboundPackager();
+    private final InboundDecoder inboundDecoder = new InboundDecoder();
+    private final DestinationHealthTracker destinationHealthTracker = new DestinationHealthTracker();
+    private final PendingRequests pendingRequests = new PendingRequests();
     private static final LibState instance = new LibState();
     boolean httpServerStarted = false;
-    BlockingQueue<Command> commandQueue = new LinkedBlockingQueue<>();
+    PeriodicTaskRunner periodicTaskRunner = null;
+    private int commandProcessorThreads = Runtime.getRuntime().availableProcessors();
+    CommandQueue commandQueue = new CommandQueue(commandProcessorThreads);
+    private final InboundRateLimiter<String> sourceRateLimiter = new InboundRateLimiter<>();
+    private final InboundRateLimiter<Integer> publicKeyIdRateLimiter = new InboundRateLimiter<>();
     private long myNonce;
     SharerImpl meSharer;
     HelperImpl meHelper;
 
     // maps sender and receiver sha-384 hashes from incoming messages to sender and receiver DeRecIdentities
-    public HashMap<ByteString, HashMap<DeRecSecret.Id, DeRecIdentity>> messageHashAndSecretIdToIdentityMap =
-            new HashMap();
+    // Inner maps are synchronized rather than concurrent because they use a null secret id for the helper's own
+    // identity
+    public ConcurrentHashMap<ByteString, Map<DeRecSecret.Id, DeRecIdentity>> messageHashAndSecretIdToIdentityMap =
+            new ConcurrentHashMap<>();
     // Maps user's publicKeyId to DeRecIdentity. Used to decrypt messages according to the publicKeyId they are sent
-    // with
-    public HashMap<Integer, LibIdentity> publicKeyIdToLibIdentityMap = new HashMap();
+    // with. Read by the transports' receiving threads.
+    public ConcurrentHashMap<Integer, LibIdentity> publicKeyIdToLibIdentityMap = new ConcurrentHashMap<>();
 
     /**
      * Adds an element to messageHashAndSecretIdToIdentityMap
      */
     public void registerMessageHashAndSecretIdToIdentity(
             ByteString messageHash, DeRecSecret.Id secretId, DeRecIdentity deRecIdentity) {
-        if (messageHashAndSecretIdToIdentityMap.get(messageHash) == null) {
-            messageHashAndSecretIdToIdentityMap.put(messageHash, new HashMap<>());
-        }
-        messageHashAndSecretIdToIdentityMap.get(messageHash).put(secretId, deRecIdentity);
+        messageHashAndSecretIdToIdentityMap
+                .computeIfAbsent(messageHash, h -> Collections.synchronizedMap(new HashMap<>()))
+                .put(secretId, deRecIdentity);
         printMessageHashToIdentityMap();
     }
 
@@ -87,12 +187,15 @@ public class LibState {
     public void printMessageHashToIdentityMap() {
         logger.debug("printMessageHashToIdentityMap");
         for (var hashEntry : messageHashAndSecretIdToIdentityMap.entrySet()) {
-            for (var secretEntry : hashEntry.getValue().entrySet()) {
-                logger.debug("Key: "
-                        + Base64.getEncoder().encodeToString(hashEntry.getKey().toByteArray()) + " -> Secret: "
-                        + (secretEntry.getKey() == null
-                                ? "null"
-                                : secretEntry.getKey().toString()) + " -> " + secretEntry.getValue());
+            synchronized (hashEntry.getValue()) {
+                for (var secretEntry : hashEntry.getValue().entrySet()) {
+                    logger.debug("Key: "
+                            + Base64.getEncoder()
+                                    .encodeToString(hashEntry.getKey().toByteArray()) + " -> Secret: "
+                            + (secretEntry.getKey() == null
+                                    ? "null"
+                                    : secretEntry.getKey().toString()) + " -> " + secretEntry.getValue());
+                }
             }
         }
         logger.debug("---- End of printMessageHashToIdentityMap ----");
@@ -121,7 +224,10 @@ public class LibState {
     }
 
     // private constructor to avoid client applications using the constructor
-    private LibState() {}
+    private LibState() {
+        // A backlog of periodic ticks does no more work than a single one
+        commandClassLimits.put(CommandClass.PERIODIC, 2);
+    }
 
     public static LibState getInstance() {
         return instance;
@@ -143,12 +249,580 @@ public class LibState {
         return minNumberOfHelpersForRecovery;
     }
 
-    BlockingQueue<Command> getCommandQueue() {
+    public Duration getHttpConnectTimeout() {
+        return httpConnectTimeout;
+    }
+
+    public void setHttpConnectTimeout(Duration httpConnectTimeout) {
+        this.httpConnectTimeout = httpConnectTimeout;
+    }
+
+    public Duration getHttpRequestTimeout() {
+        return httpRequestTimeout;
+    }
+
+    public void setHttpRequestTimeout(Duration httpRequestTimeout) {
+        this.httpRequestTimeout = httpRequestTimeout;
+    }
+
+    public int getMaxConnectionsPerDestination() {
+        return maxConnectionsPerDestination;
+    }
+
+    public void setMaxConnectionsPerDestination(int maxConnectionsPerDestination) {
+        this.maxConnectionsPerDestination = maxConnectionsPerDestination;
+    }
+
+    public int getMaxOutboundQueueDepthPerDestination() {
+        return maxOutboundQueueDepthPerDestination;
+    }
+
+    public void setMaxOutboundQueueDepthPerDestination(int maxOutboundQueueDepthPerDestination) {
+        this.maxOutboundQueueDepthPerDestination = maxOutboundQueueDepthPerDestination;
+    }
+
+    public int getHttpServerBacklog() {
+        return httpServerBacklog;
+    }
+
+    public void setHttpServerBacklog(int httpServerBacklog) {
+        this.httpServerBacklog = httpServerBacklog;
+    }
+
+    public ExecutorService getHttpServerExecutor() {
+        return httpServerExecutor;
+    }
+
+    public void setHttpServerExecutor(ExecutorService httpServerExecutor) {
+        this.httpServerExecutor = httpServerExecutor;
+    }
+
+    public int getHttpServerThreadPoolSize() {
+        return httpServerThreadPoolSize;
+    }
+
+    public void setHttpServerThreadPoolSize(int httpServerThreadPoolSize) {
+        this.httpServerThreadPoolSize = httpServerThreadPoolSize;
+    }
+
+    public int getMaxInboundMessageSize() {
+        return maxInboundMessageSize;
+    }
+
+    public void setMaxInboundMessageSize(int maxInboundMessageSize) {
+        this.maxInboundMessageSize = maxInboundMessageSize;
+    }
+
+    public int getMaxCoalescedMessageSize() {
+        return maxCoalescedMessageSize;
+    }
+
+    public void setMaxCoalescedMessageSize(int maxCoalescedMessageSize) {
+        this.maxCoalescedMessageSize = maxCoalescedMessageSize;
+    }
+
+    public int getPackagingThreads() {
+        return packagingThreads;
+    }
+
+    public void setPackagingThreads(int packagingThreads) {
+        this.packagingThreads = packagingThreads;
+    }
+
+    public int getPackagingQueueCapacity() {
+        return packagingQueueCapacity;
+    }
+
+    public void setPackagingQueueCapacity(int packagingQueueCapacity) {
+        this.packagingQueueCapacity = packagingQueueCapacity;
+    }
+
+    public int getDecodingThreads() {
+        return decodingThreads;
+    }
+
+    public void setDecodingThreads(int decodingThreads) {
+        this.decodingThreads = decodingThreads;
+    }
+
+    public int getDecodingQueueCapacity() {
+        return decodingQueueCapacity;
+    }
+
+    public void setDecodingQueueCapacity(int decodingQueueCapacity) {
+        this.decodingQueueCapacity = decodingQueueCapacity;
+    }
+
+    public int getMaxCachedKeys() {
+        return maxCachedKeys;
+    }
+
+    public void setMaxCachedKeys(int maxCachedKeys) {
+        this.maxCachedKeys = maxCachedKeys;
+    }
+
+    public int getKeyPairPoolDepth() {
+        return keyPairPoolDepth;
+    }
+
+    /**
+     * Sets how many identity keys are generated ahead of time. The pool starts filling once the cryptography provider
+     * is selected, so setting this before creating many secrets moves key generation off their creation.
+     *
+     * @param keyPairPoolDepth number of identity keys to keep ready, 0 to generate keys when they are needed
+     */
+    public void setKeyPairPoolDepth(int keyPairPoolDepth) {
+        this.keyPairPoolDepth = keyPairPoolDepth;
+        keyPairPool.refill();
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the transport used to send and receive messages. Must be called before init.
+     *
+     * @param transport Transport to use
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the sharer's PeriodicTaskRunner, with its tick lag, or null if it has not been started
+     */
+    public PeriodicTaskRunner getPeriodicTaskRunner() {
+        return periodicTaskRunner;
+    }
+
+    public int getCommandProcessorThreads() {
+        return commandProcessorThreads;
+    }
+
+    /**
+     * Sets the number of CommandProcessor threads (lanes). Must be called before the Sharer or Helper is created.
+     *
+     * @param commandProcessorThreads number of threads
+     */
+    public synchronized void setCommandProcessorThreads(int commandProcessorThreads) {
+        if (httpServerStarted) {
+            logger.error("setCommandProcessorThreads has no effect after init");
+            return;
+        }
+        this.commandProcessorThreads = commandProcessorThreads;
+        commandQueue = new CommandQueue(commandProcessorThreads);
+    }
+
+    public int getCommandQueueCapacity() {
+        return commandQueueCapacity;
+    }
+
+    public void setCommandQueueCapacity(int commandQueueCapacity) {
+        this.commandQueueCapacity = commandQueueCapacity;
+    }
+
+    public long getCommandQueueMaxBytes() {
+        return commandQueueMaxBytes;
+    }
+
+    public void setCommandQueueMaxBytes(long commandQueueMaxBytes) {
+        this.commandQueueMaxBytes = commandQueueMaxBytes;
+    }
+
+    /**
+     * Gets the maximum number of queued commands of a class. Defaults to the commandQueueCapacity.
+     *
+     * @param commandClass CommandClass
+     * @return limit for the class
+     */
+    public int getCommandClassLimit(CommandClass commandClass) {
+        return commandClassLimits.getOrDefault(commandClass, commandQueueCapacity);
+    }
+
+    public void setCommandClassLimit(CommandClass commandClass, int limit) {
+        commandClassLimits.put(commandClass, limit);
+    }
+
+    public Duration getPeriodicWorkInterval() {
+        return periodicWorkInterval;
+    }
+
+    public void setPeriodicWorkInterval(Duration periodicWorkInterval) {
+        this.periodicWorkInterval = periodicWorkInterval;
+    }
+
+    public Duration getShareAckTimeout() {
+        return shareAckTimeout;
+    }
+
+    public void setShareAckTimeout(Duration shareAckTimeout) {
+        this.shareAckTimeout = shareAckTimeout;
+    }
+
+    public Duration getMaxShareAckTimeout() {
+        return maxShareAckTimeout;
+    }
+
+    public void setMaxShareAckTimeout(Duration maxShareAckTimeout) {
+        this.maxShareAckTimeout = maxShareAckTimeout;
+    }
+
+    public Duration getVerificationInterval() {
+        return verificationInterval;
+    }
+
+    public void setVerificationInterval(Duration verificationInterval) {
+        this.verificationInterval = verificationInterval;
+    }
+
+    public Duration getMaxVerificationInterval() {
+        return maxVerificationInterval;
+    }
+
+    public void setMaxVerificationInterval(Duration maxVerificationInterval) {
+        this.maxVerificationInterval = maxVerificationInterval;
+    }
+
+    public Duration getHelperRefusedAfter() {
+        return helperRefusedAfter;
+    }
+
+    public void setHelperRefusedAfter(Duration helperRefusedAfter) {
+        this.helperRefusedAfter = helperRefusedAfter;
+    }
+
+    public Duration getHelperFailedAfter() {
+        return helperFailedAfter;
+    }
+
+    public void setHelperFailedAfter(Duration helperFailedAfter) {
+        this.helperFailedAfter = helperFailedAfter;
+    }
+
+    public int getMinUnansweredVerifications() {
+        return minUnansweredVerifications;
+    }
+
+    public void setMinUnansweredVerifications(int minUnansweredVerifications) {
+        this.minUnansweredVerifications = minUnansweredVerifications;
+    }
+
+    public VerificationPolicy getVerificationPolicy() {
+        return verificationPolicy;
+    }
+
+    public void setVerificationPolicy(VerificationPolicy verificationPolicy) {
+        this.verificationPolicy = verificationPolicy;
+    }
+
+    public VerificationMode getVerificationMode() {
+        return verificationMode;
+    }
+
+    public void setVerificationMode(VerificationMode verificationMode) {
+        this.verificationMode = verificationMode;
+    }
+
+    /**
+     * @return execution metrics of the command processors; call snapshot() on it to read them
+     */
+    public CommandMetrics getCommandMetrics() {
+        return commandMetrics;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Publishes the command metrics as JMX MBeans under the org.derecalliance.derec domain. Once enabled they stay
+     * registered.
+     *
+     * @param jmxEnabled whether to publish the metrics
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        if (jmxEnabled) {
+            commandMetrics.registerMBeans();
+        }
+    }
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public long getJournalSnapshotThreshold() {
+        return journalSnapshotThreshold;
+    }
+
+    public void setJournalSnapshotThreshold(long journalSnapshotThreshold) {
+        this.journalSnapshotThreshold = journalSnapshotThreshold;
+    }
+
+    public Duration getPendingRemovalDelay() {
+        return pendingRemovalDelay;
+    }
+
+    public void setPendingRemovalDelay(Duration pendingRemovalDelay) {
+        this.pendingRemovalDelay = pendingRemovalDelay;
+    }
+
+    /**
+     * Enqueues a command on the command queue after a delay, using the library's shared scheduler thread
+     *
+     * @param command Command to run
+     * @param delay   delay from now
+     * @return ScheduledFuture that can be used to cancel the command before it is enqueued
+     */
+    public ScheduledFuture<?> scheduleCommand(Command command, Duration delay) {
+        return delayedCommandScheduler.schedule(command, delay);
+    }
+
+    public TimerWheel<PeriodicWorkItem> getPeriodicWorkWheel() {
+        return periodicWorkWheel;
+    }
+
+    public Duration getCommandStarvationTimeout() {
+        return commandStarvationTimeout;
+    }
+
+    public void setCommandStarvationTimeout(Duration commandStarvationTimeout) {
+        this.commandStarvationTimeout = commandStarvationTimeout;
+    }
+
+    public double getInboundMessagesPerSecondPerSource() {
+        return inboundMessagesPerSecondPerSource;
+    }
+
+    /**
+     * Sets the rate of received messages admitted per source address. A rate of 0 or less disables the limit.
+     *
+     * @param inboundMessagesPerSecondPerSource messages per second
+     */
+    public void setInboundMessagesPerSecondPerSource(double inboundMessagesPerSecondPerSource) {
+        this.inboundMessagesPerSecondPerSource = inboundMessagesPerSecondPerSource;
+    }
+
+    public int getInboundMessageBurstPerSource() {
+        return inboundMessageBurstPerSource;
+    }
+
+    public void setInboundMessageBurstPerSource(int inboundMessageBurstPerSource) {
+        this.inboundMessageBurstPerSource = inboundMessageBurstPerSource;
+    }
+
+    public double getInboundMessagesPerSecondPerKey() {
+        return inboundMessagesPerSecondPerKey;
+    }
+
+    /**
+     * Sets the aggregate rate of received messages admitted per publicKeyId, from all sources together. A rate of 0
+     * or less (the default) disables the limit.
+     *
+     * @param inboundMessagesPerSecondPerKey messages per second
+     */
+    public void setInboundMessagesPerSecondPerKey(double inboundMessagesPerSecondPerKey) {
+        this.inboundMessagesPerSecondPerKey = inboundMessagesPerSecondPerKey;
+    }
+
+    public int getInboundMessageBurstPerKey() {
+        return inboundMessageBurstPerKey;
+    }
+
+    public void setInboundMessageBurstPerKey(int inboundMessageBurstPerKey) {
+        this.inboundMessageBurstPerKey = inboundMessageBurstPerKey;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public Duration getRetryBackoffInitial() {
+        return retryBackoffInitial;
+    }
+
+    public void setRetryBackoffInitial(Duration retryBackoffInitial) {
+        this.retryBackoffInitial = retryBackoffInitial;
+    }
+
+    public Duration getRetryBackoffMax() {
+        return retryBackoffMax;
+    }
+
+    public void setRetryBackoffMax(Duration retryBackoffMax) {
+        this.retryBackoffMax = retryBackoffMax;
+    }
+
+    public double getRetryBackoffJitter() {
+        return retryBackoffJitter;
+    }
+
+    /**
+     * Sets the random spread applied to backoffs, as a fraction of the backoff (0.2 means +/- 20%)
+     *
+     * @param retryBackoffJitter jitter fraction between 0 and 1
+     */
+    public void setRetryBackoffJitter(double retryBackoffJitter) {
+        this.retryBackoffJitter = retryBackoffJitter;
+    }
+
+    public Duration getResponseTimeout() {
+        return responseTimeout;
+    }
+
+    public void setResponseTimeout(Duration responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    public PendingRequests getPendingRequests() {
+        return pendingRequests;
+    }
+
+    public DestinationHealthTracker getDestinationHealthTracker() {
+        return destinationHealthTracker;
+    }
+
+    OutboundDispatcher getOutboundDispatcher() {
+        return outboundDispatcher;
+    }
+
+    OutboundPackager getOutboundPackager() {
+        return outboundPackager;
+    }
+
+    public InboundDecoder getInboundDecoder() {
+        return inboundDecoder;
+    }
+
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    CommandQueue getCommandQueue() {
         return commandQueue;
     }
 
     /**
-     * Starts the HTTP server and processing
+     * Hands a message received by the transport to the command processor. The sender's address is not known here, so
+     * only the aggregate per-publicKeyId rate applies.
+     *
+     * @param msgBytes packaged message bytes
+     * @return status for the transport to report to the sender, see admitReceivedMessage
+     */
+    public int deliverReceivedMessage(byte[] msgBytes) {
+        if (msgBytes.length < 4) {
+            return 400; // Bad Request
+        }
+        return admitReceivedMessage(ByteBuffer.wrap(msgBytes).getInt(), new MessageReceivedCommand(msgBytes));
+    }
+
+    /**
+     * Checks whether a message addressed to the given publicKeyId may be received. Transports that read the 4-byte
+     * publicKeyId prefix on its own call this before they allocate and read the rest of the message, so that messages
+     * for unknown identities or over the rate limit cost no more than their prefix. A message admitted here is then
+     * handed over with deliverAdmittedMessage.
+     *
+     * @param publicKeyId publicKeyId prefix of the message
+     * @param source      address of the sender, or null if the transport cannot tell
+     * @return 200 if the message may be read, 400 if it is not addressed to any of our identities, or 429 if the
+     *     source or the publicKeyId is over its rate
+     */
+    public int admitPublicKeyId(int publicKeyId, String source) {
+        if (!publicKeyIdToLibIdentityMap.containsKey(publicKeyId)) {
+            logger.debug("Rejecting message with unknown publicKeyId: " + publicKeyId);
+            return 400; // Bad Request
+        }
+        if (source != null
+                && !sourceRateLimiter.tryAcquire(
+                        source, inboundMessagesPerSecondPerSource, inboundMessageBurstPerSource)) {
+            logger.debug("Rejecting message over the rate limit for source: " + source);
+            return 429; // Too Many Requests
+        }
+        if (!publicKeyIdRateLimiter.tryAcquire(
+                publicKeyId, inboundMessagesPerSecondPerKey, inboundMessageBurstPerKey)) {
+            logger.debug("Rejecting message over the aggregate rate limit for publicKeyId: " + publicKeyId);
+            return 429; // Too Many Requests
+        }
+        return 200;
+    }
+
+    /**
+     * Reserves room for a message's body in the command queue's byte budget. Transports call this after
+     * admitPublicKeyId and before they allocate the body at the length the sender declared, so that senders cannot make
+     * us allocate more than the queue could hold. The reservation is used up by deliverAdmittedMessage, and must be
+     * returned with releaseReceivedBytes if the body is not read in full.
+     *
+     * @param length declared length of the encrypted message
+     * @return false if the queue has no room for the message, which should be answered with 503
+     */
+    public boolean reserveReceivedBytes(int length) {
+        return commandQueue.reserveBytes(length);
+    }
+
+    /**
+     * Returns room reserved with reserveReceivedBytes for a message that was not delivered
+     *
+     * @param length reserved length
+     */
+    public void releaseReceivedBytes(int length) {
+        commandQueue.releaseBytes(length);
+    }
+
+    /**
+     * Hands a message whose publicKeyId was admitted by admitPublicKeyId, and whose length was reserved with
+     * reserveReceivedBytes, to the command processor. Lets the transport read the encrypted message straight into its
+     * own array.
+     *
+     * @param publicKeyId      publicKeyId the message was sent to
+     * @param encryptedMessage encrypted message bytes that followed the publicKeyId
+     * @return 200 if the message was queued, or 503 if the command queue is over capacity
+     */
+    public int deliverAdmittedMessage(int publicKeyId, byte[] encryptedMessage) {
+        if (!commandQueue.offerReserved(
+                new MessageReceivedCommand(publicKeyId, encryptedMessage), encryptedMessage.length)) {
+            return 503; // Service Unavailable
+        }
+        return 200;
+    }
+
+    /**
+     * Applies admission control to a received message and enqueues it if admitted
+     *
+     * @param publicKeyId publicKeyId prefix of the message
+     * @param command     MessageReceivedCommand for the message
+     * @return 200 if the message was queued, otherwise the status returned by admitPublicKeyId or
+     *     enqueueReceivedMessage
+     */
+    private int admitReceivedMessage(int publicKeyId, MessageReceivedCommand command) {
+        int status = admitPublicKeyId(publicKeyId, null);
+        if (status != 200) {
+            return status;
+        }
+        return enqueueReceivedMessage(command);
+    }
+
+    private int enqueueReceivedMessage(MessageReceivedCommand command) {
+        if (!commandQueue.offer(command)) {
+            return 503; // Service Unavailable
+        }
+        return 200;
+    }
+
+    /**
+     * Starts listening on the transport, and starts processing
      *
      * @param contact contact info
      * @param address address to communicate
@@ -158,21 +832,26 @@ public class LibState {
         logger.info("Info log");
         logger.trace("Trace log");
         logger.error("Error log");
+        try {
+            // Every sharer or helper listens at its own address; the http transport only starts one server
+            transport.startListening(new URI(address));
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        } catch (Exception ex) {
+            logger.error("Could not start transport\n", ex);
+        }
         if (!httpServerStarted) {
-            try {
-                startHttpServer(new URI(address));
-                httpServerStarted = true;
-                // Start the processor in a thread
-                Thread processorThread = new Thread(new CommandProcessor(commandQueue));
+            httpServerStarted = true;
+            // Start one processor thread per lane of the command queue
+            for (int lane = 0; lane < commandQueue.getLaneCount(); lane++) {
+                Thread processorThread = new Thread(new CommandProcessor(commandQueue, lane), "derec-command-" + lane);
                 processorThread.start();
+            }
 
-                if (getMeSharer() != null) {
-                    logger.debug("Init starting periodic task runner for the sharer");
-                    PeriodicTaskRunner runner = new PeriodicTaskRunner();
-                    runner.startProcessing();
-                }
-            } catch (URISyntaxException e) {
-                throw new RuntimeException(e);
+            if (getMeSharer() != null) {
+                logger.debug("Init starting periodic task runner for the sharer");
+                periodicTaskRunner = new PeriodicTaskRunner();
+                periodicTaskRunner.startProcessing();
             }
         }
     }
@@ -216,7 +895,86 @@ public class LibState {
         this.meHelper = meHelper;
     }
 
-    public DerecCryptoImpl getDerecCryptoImpl() {
-        return derecCryptoImpl;
+    /**
+     * @return the cryptography provider
+     * @throws IllegalStateException if no provider has been set or selected yet
+     */
+    public CryptoProvider getCryptoProvider() {
+        CryptoProvider provider = cryptoProvider;
+        if (provider == null) {
+            throw new IllegalStateException("No cryptography provider, create the Sharer or Helper first");
+        }
+        return provider;
+    }
+
+    /**
+     * Sets the cryptography provider. Must be called before the Sharer or Helper is created, since their keys come
+     * from the provider.
+     *
+     * @param cryptoProvider CryptoProvider to use
+     */
+    public synchronized void setCryptoProvider(CryptoProvider cryptoProvider) {
+        this.cryptoProvider = cryptoProvider;
+        keyCache.clear();
+        keyPairPool.clear();
+        keyPairPool.refill();
+    }
+
+    public boolean isJdkCryptoProviderAllowed() {
+        return jdkCryptoProviderAllowed;
+    }
+
+    /**
+     * Sets whether JdkCryptoProvider is used when the native cryptography library cannot be loaded. Off by default, so
+     * that a missing native library is not silently replaced by keys other peers cannot use.
+     *
+     * @param jdkCryptoProviderAllowed whether to fall back to JdkCryptoProvider
+     */
+    public void setJdkCryptoProviderAllowed(boolean jdkCryptoProviderAllowed) {
+        this.jdkCryptoProviderAllowed = jdkCryptoProviderAllowed;
+    }
+
+    /**
+     * Selects the cryptography provider, unless one has been set. Called when the Sharer or Helper is created, before
+     * any of their keys are generated.
+     *
+     * @throws IllegalStateException if the native library cannot be loaded and JdkCryptoProvider is not allowed
+     */
+    public synchronized void initCryptoProvider() {
+        if (cryptoProvider == null) {
+            cryptoProvider = selectCryptoProvider();
+            keyPairPool.refill();
+        }
+    }
+
+    /**
+     * Selects the native provider if derec-crypto-bridge and its native library can be loaded, otherwise the pure-JDK
+     * provider if it is allowed
+     *
+     * @return CryptoProvider
+     * @throws IllegalStateException if the native library cannot be loaded and JdkCryptoProvider is not allowed
+     */
+    CryptoProvider selectCryptoProvider() {
+        try {
+            // Loads the bridge and links the native library, see NativeCryptoProvider
+            CryptoProvider nativeProvider = new NativeCryptoProvider();
+            logger.debug("Using the native cryptography library");
+            return nativeProvider;
+        } catch (LinkageError | RuntimeException ex) {
+            if (!jdkCryptoProviderAllowed) {
+                throw new IllegalStateException(
+                        "Native cryptography library not available; set a CryptoProvider or allow JdkCryptoProvider",
+                        ex);
+            }
+            logger.warn("Native cryptography library not available, using JdkCryptoProvider: " + ex);
+            return new JdkCryptoProvider();
+        }
+    }
+
+    /**
+     * @return whether a cryptography provider has been set or selected
+     */
+    boolean hasCryptoProvider() {
+        return cryptoProvider != null;
     }
 }
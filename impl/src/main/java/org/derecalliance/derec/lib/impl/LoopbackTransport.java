@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory transport that routes messages by address inside the JVM, without sockets. Addresses are matched exactly,
+ * so peers must use the same address string they were initialized with.
+ *
+ * <p>startListening delivers to LibState, which is a singleton holding one sharer and one helper, so every address
+ * registered that way reaches the same library instance. A JVM can therefore host only one DeRec peer of its own;
+ * other peers, e.g. in tests or simulations, have to register their own receivers with {@link #register}.
+ */
+public class LoopbackTransport implements Transport {
+    // Shared by all LoopbackTransport instances in the JVM
+    private static final ConcurrentHashMap<String, ToIntFunction<byte[]>> endpoints = new ConcurrentHashMap<>();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    @Override
+    public void startListening(URI address) {
+        register(address.toString(), msgBytes -> LibState.getInstance().deliverReceivedMessage(msgBytes));
+        logger.debug("Loopback transport listening on " + address);
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(String toUri, byte[] msgBytes) {
+        ToIntFunction<byte[]> endpoint = endpoints.get(toUri);
+        if (endpoint == null) {
+            logger.debug("No loopback endpoint at " + toUri);
+            return CompletableFuture.completedFuture(400);
+        }
+        return CompletableFuture.completedFuture(endpoint.applyAsInt(msgBytes));
+    }
+
+    /**
+     * Registers a receiver for an address, replacing any previous one.
+     *
+     * @param address  address to receive messages at
+     * @param receiver called with the bytes of every message sent to the address; returns the delivery status
+     */
+    public static void register(String address, ToIntFunction<byte[]> receiver) {
+        endpoints.put(address, receiver);
+    }
+
+    /**
+     * Removes the receiver for an address. Messages sent to it afterward fail with status 400.
+     *
+     * @param address address to stop receiving at
+     */
+    public static void unregister(String address) {
+        endpoints.remove(address);
+    }
+}
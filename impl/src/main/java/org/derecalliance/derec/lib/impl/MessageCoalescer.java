@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.derecalliance.derec.lib.impl.MessageParser.printDeRecMessage;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.protobuf.Derecmessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups outbound message bodies that share the same sender, receiver and secret id into a single DeRecMessage, so
+ * that they are signed, encrypted and sent once. The flush window is one command: the CommandProcessor opens a window
+ * before executing a command and flushes it afterward. Messages submitted outside a window are sent right away.
+ */
+public class MessageCoalescer {
+    private static final ThreadLocal<LinkedHashMap<BatchKey, Batch>> pendingBatches = new ThreadLocal<>();
+
+    /**
+     * Identifies the messages that can be merged into one DeRecMessage
+     */
+    private static class BatchKey {
+        final ByteString sender;
+        final ByteString receiver;
+        final ByteString secretId;
+        final boolean isSharer;
+        final String toUri;
+
+        BatchKey(Derecmessage.DeRecMessage message, boolean isSharer, String toUri) {
+            this.sender = message.getSender();
+            this.receiver = message.getReceiver();
+            this.secretId = message.getSecretId();
+            this.isSharer = isSharer;
+            this.toUri = toUri;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BatchKey key)) return false;
+            return isSharer == key.isSharer
+                    && sender.equals(key.sender)
+                    && receiver.equals(key.receiver)
+                    && secretId.equals(key.secretId)
+                    && Objects.equals(toUri, key.toUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sender, receiver, secretId, isSharer, toUri);
+        }
+    }
+
+    /**
+     * Message bodies waiting to be sent together, and the future reporting their delivery status
+     */
+    private static class Batch {
+        final Derecmessage.DeRecMessage firstMessage;
+        final boolean isSharer;
+        final DeRecSecret.Id secretId;
+        final DeRecIdentity receiverId;
+        final String toUri;
+        final ArrayList<Derecmessage.DeRecMessage.SharerMessageBody> sharerBodies = new ArrayList<>();
+        final ArrayList<Derecmessage.DeRecMessage.HelperMessageBody> helperBodies = new ArrayList<>();
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        int size = 0;
+
+        Batch(
+                Derecmessage.DeRecMessage firstMessage,
+                boolean isSharer,
+                DeRecSecret.Id secretId,
+                DeRecIdentity receiverId,
+                String toUri) {
+            this.firstMessage = firstMessage;
+            this.isSharer = isSharer;
+            this.secretId = secretId;
+            this.receiverId = receiverId;
+            this.toUri = toUri;
+        }
+
+        void add(Derecmessage.DeRecMessage message) {
+            Derecmessage.DeRecMessage.MessageBodies bodies = message.getMessageBodies();
+            sharerBodies.addAll(bodies.getSharerMessageBodies().getSharerMessageBodyList());
+            helperBodies.addAll(bodies.getHelperMessageBodies().getHelperMessageBodyList());
+            size += bodies.getSerializedSize();
+        }
+
+        Derecmessage.DeRecMessage build() {
+            if (sharerBodies.size() + helperBodies.size() <= 1) {
+                return firstMessage;
+            }
+            Derecmessage.DeRecMessage.MessageBodies.Builder bodiesBuilder =
+                    Derecmessage.DeRecMessage.MessageBodies.newBuilder();
+            if (firstMessage.getMessageBodies().hasSharerMessageBodies()) {
+                bodiesBuilder.setSharerMessageBodies(Derecmessage.DeRecMessage.SharerMessageBodies.newBuilder()
+                        .addAllSharerMessageBody(sharerBodies)
+                        .build());
+            } else {
+                bodiesBuilder.setHelperMessageBodies(Derecmessage.DeRecMessage.HelperMessageBodies.newBuilder()
+                        .addAllHelperMessageBody(helperBodies)
+                        .build());
+            }
+            return firstMessage.toBuilder().setMessageBodies(bodiesBuilder).build();
+        }
+    }
+
+    /**
+     * Opens a flush window on the current thread
+     */
+    static void beginWindow() {
+        pendingBatches.set(new LinkedHashMap<>());
+    }
+
+    /**
+     * Sends all messages batched in the current thread's flush window and closes the window
+     */
+    static void flush() {
+        LinkedHashMap<BatchKey, Batch> batches = pendingBatches.get();
+        pendingBatches.remove();
+        if (batches == null) {
+            return;
+        }
+        for (Batch batch : batches.values()) {
+            sendBatch(batch);
+        }
+    }
+
+    /**
+     * Submits a message for sending. Pairing messages, messages submitted outside a flush window and messages too
+     * large to batch are packaged and sent right away; the rest are merged with other messages for the same
+     * (sender, receiver, secret id) and sent when the window is flushed.
+     *
+     * @param deRecMessage DeRecMessage to send
+     * @param isSharer     True if message sender is a sharer. False otherwise.
+     * @param secretId     secret id corresponding to the message
+     * @param receiverId   DeRecIdentity of the message receiver
+     * @param toUri        URI address to send the message to
+     * @return Future of the message's delivery status
+     */
+    public static CompletableFuture<Integer> submit(
+            Derecmessage.DeRecMessage deRecMessage,
+            boolean isSharer,
+            DeRecSecret.Id secretId,
+            DeRecIdentity receiverId,
+            String toUri) {
+        LinkedHashMap<BatchKey, Batch> batches = pendingBatches.get();
+        Batch single = new Batch(deRecMessage, isSharer, secretId, receiverId, toUri);
+        single.add(deRecMessage);
+        int maxBatchSize = LibState.getInstance().getMaxCoalescedMessageSize();
+        if (batches == null || isPairingMessage(deRecMessage) || single.size >= maxBatchSize) {
+            return sendBatch(single);
+        }
+
+        BatchKey key = new BatchKey(deRecMessage, isSharer, toUri);
+        Batch batch = batches.get(key);
+        if (batch != null && batch.size + single.size > maxBatchSize) {
+            // This batch is full, send it now and start a new one
+            batches.remove(key);
+            sendBatch(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batches.put(key, single);
+            return single.future;
+        }
+        batch.add(deRecMessage);
+        return batch.future;
+    }
+
+    /**
+     * Hands a batch to the OutboundPackager, which packages it and passes it on to the OutboundDispatcher
+     *
+     * @param batch Batch to send
+     * @return Future of the batch's delivery status
+     */
+    private static CompletableFuture<Integer> sendBatch(Batch batch) {
+        Logger staticLogger = LoggerFactory.getLogger(MessageCoalescer.class.getName());
+        try {
+            Derecmessage.DeRecMessage message = batch.build();
+            if (message != batch.firstMessage) {
+                staticLogger.debug("Coalesced " + (batch.sharerBodies.size() + batch.helperBodies.size())
+                        + " message bodies for " + batch.receiverId.getName());
+            }
+            // Look up the keys here, where the sharer or helper state may be read, and package the message on the
+            // packaging pool
+            MessageFactory.PackagingKeys keys =
+                    MessageFactory.findPackagingKeys(batch.isSharer, batch.secretId, batch.receiverId);
+            if (keys == null) {
+                batch.future.completeExceptionally(
+                        new IllegalArgumentException("Unknown receiver " + batch.receiverId.getName()));
+                return batch.future;
+            }
+            printDeRecMessage(message, "Sending ");
+            LibState.getInstance()
+                    .getOutboundPackager()
+                    .packageAndSend(batch.toUri, batch.receiverId.getPublicEncryptionKeyId(), message, keys)
+                    .whenComplete((status, ex) -> {
+                        if (ex != null) {
+                            batch.future.completeExceptionally(ex);
+                        } else {
+                            batch.future.complete(status);
+                        }
+                    });
+        } catch (Exception ex) {
+            staticLogger.error("Exception in sendBatch", ex);
+            batch.future.completeExceptionally(ex);
+        }
+        return batch.future;
+    }
+
+    /**
+     * Pairing messages are never batched: the receiver reads the sender's signature key from the first body before
+     * it knows the sender.
+     *
+     * @param message DeRecMessage
+     * @return whether the message carries a PairRequestMessage or PairResponseMessage
+     */
+    private static boolean isPairingMessage(Derecmessage.DeRecMessage message) {
+        Derecmessage.DeRecMessage.MessageBodies bodies = message.getMessageBodies();
+        return bodies.getSharerMessageBodies().getSharerMessageBodyList().stream()
+                        .anyMatch(Derecmessage.DeRecMessage.SharerMessageBody::hasPairRequestMessage)
+                || bodies.getHelperMessageBodies().getHelperMessageBodyList().stream()
+                        .anyMatch(Derecmessage.DeRecMessage.HelperMessageBody::hasPairResponseMessage);
+    }
+}
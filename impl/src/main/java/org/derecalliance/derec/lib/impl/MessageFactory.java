@@ -21,6 +21,7 @@ import static org.derecalliance.derec.lib.impl.MessageParser.logger;
 import static org.derecalliance.derec.lib.impl.MessageParser.printDeRecMessage;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Timestamp;
 import java.nio.ByteBuffer;
@@ -430,6 +431,15 @@ class MessageFactory {
         return deRecMessage;
     }
 
+    /**
+     * Keys used to sign and encrypt a message
+     *
+     * @param privateSignatureKey our private signature key
+     * @param publicEncryptionKey receiver's public encryption key
+     */
+    public record PackagingKeys(
+            CryptoProvider.PreparedKey privateSignatureKey, CryptoProvider.PreparedKey publicEncryptionKey) {}
+
     /**
      * Prepares the message to be sent over the wire
      *
@@ -449,8 +459,6 @@ class MessageFactory {
             DeRecSecret.Id secretId,
             DeRecIdentity receiverId,
             boolean shouldSign) {
-        Logger staticLogger = LoggerFactory.getLogger(MessageFactory.class.getName());
-
         try {
             Derecmessage.DeRecMessage msg = Derecmessage.DeRecMessage.parseFrom(serializedDeRecMessage);
             printDeRecMessage(msg, "Sending ");
@@ -458,16 +466,32 @@ class MessageFactory {
             throw new RuntimeException(e);
         }
 
-        String privateSignatureKey = "";
-        String publicEncryptionKey = "";
+        PackagingKeys keys = findPackagingKeys(isSharer, secretId, receiverId);
+        if (keys == null) {
+            return null;
+        }
+        return packageMessage(publicKeyId, serializedDeRecMessage, keys);
+    }
+
+    /**
+     * Finds our privateSignatureKey, and receiver's publicEncryptionKey.
+     * If we are the sharer, finds the publicEncryptionKey of the helper.
+     * And if we are the helper, finds the publicEncryptionKey of the sharer
+     *
+     * @param isSharer   True if message sender is a sharer. False otherwise.
+     * @param secretId   secret id corresponding to the message
+     * @param receiverId DeRecIdentity of the message receiver
+     * @return PackagingKeys, or null if the receiver is not known
+     */
+    public static PackagingKeys findPackagingKeys(boolean isSharer, DeRecSecret.Id secretId, DeRecIdentity receiverId) {
+        Logger staticLogger = LoggerFactory.getLogger(MessageFactory.class.getName());
+        CryptoProvider.PreparedKey privateSignatureKey;
+        String publicEncryptionKey;
 
-        // Find our privateSignatureKey, and receiver's publicEncryptionKey.
-        // If we are the sharer, find the publicEncryptionKey of the helper.
-        // And if we are the helper, find the publicEncryptionKey of the sharer
         if (isSharer) {
             SecretImpl secret =
                     (SecretImpl) LibState.getInstance().getMeSharer().getSecret(secretId);
-            privateSignatureKey = secret.getLibId().getSignaturePrivateKey();
+            privateSignatureKey = secret.getLibId().getPreparedSignaturePrivateKey();
             Optional<? extends DeRecHelperStatus> helperStatusOptional =
                     LibState.getInstance().getMeSharer().getSecret(secretId).getHelperStatuses().stream()
                             .filter(hs -> hs.getId().equals(receiverId))
@@ -480,7 +504,7 @@ class MessageFactory {
             }
         } else {
             privateSignatureKey =
-                    LibState.getInstance().getMeHelper().getMyLibId().getSignaturePrivateKey();
+                    LibState.getInstance().getMeHelper().getMyLibId().getPreparedSignaturePrivateKey();
             Optional<? extends SharerStatusImpl> sharerStatusOptional =
                     LibState.getInstance().getMeHelper().getSharers().stream()
                             .filter(ss -> ss.getId().equals(receiverId))
@@ -492,15 +516,24 @@ class MessageFactory {
                 return null;
             }
         }
+        return new PackagingKeys(
+                privateSignatureKey,
+                LibState.getInstance().getKeyCache().get(CryptoProvider.KeyUse.PUBLIC_ENCRYPTION, publicEncryptionKey));
+    }
 
-        staticLogger.debug("About to signThenEncrypt with privateSignatureKey=" + privateSignatureKey + ", "
-                + "publicEncryptionKey=" + publicEncryptionKey);
+    /**
+     * Signs and encrypts a message and prefixes it with the receiver's public key id. Reads no library state, so it
+     * can run on any thread.
+     *
+     * @param publicKeyId            public key id of the message recipient
+     * @param serializedDeRecMessage protobuf-serialized DeRecMessage
+     * @param keys                   keys found by findPackagingKeys
+     * @return byte[] containing the complete message to be sent
+     */
+    public static byte[] packageMessage(int publicKeyId, byte[] serializedDeRecMessage, PackagingKeys keys) {
         byte[] signedBytes = LibState.getInstance()
-                .getDerecCryptoImpl()
-                .signThenEncrypt(
-                        serializedDeRecMessage,
-                        Base64.getDecoder().decode(privateSignatureKey),
-                        Base64.getDecoder().decode(publicEncryptionKey));
+                .getCryptoProvider()
+                .signThenEncrypt(serializedDeRecMessage, keys.privateSignatureKey(), keys.publicEncryptionKey());
 
         byte[] withPublicKeyId = ByteBuffer.allocate(4 + signedBytes.length)
                 .putInt(publicKeyId)
@@ -517,37 +550,71 @@ class MessageFactory {
      */
     public static boolean parseAndProcessPackagedBytes(byte[] receivedMessage) {
         Logger staticLogger = LoggerFactory.getLogger(MessageFactory.class.getName());
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(receivedMessage);
-            // Extract the publicKeyId from the first 4 bytes
-            int extractedPublicKeyId = buffer.getInt();
-            LibIdentity myIdentity =
-                    LibState.getInstance().publicKeyIdToLibIdentityMap.get(extractedPublicKeyId);
-            if (myIdentity == null) {
-                staticLogger.debug(
-                        "Dropping message - Received a message with unknown publicKeyId: " + extractedPublicKeyId);
-                LibState.getInstance().printPublicKeyIdToIdentityMap();
-                return false;
-            }
+        if (receivedMessage.length < 4) {
+            staticLogger.debug("Dropping message - Received a message without a publicKeyId");
+            return false;
+        }
+        // Extract the publicKeyId from the first 4 bytes
+        int extractedPublicKeyId = ByteBuffer.wrap(receivedMessage).getInt();
+        // The crypto library only accepts whole arrays, so the encrypted part has to be copied out once here.
+        // Transports that read the publicKeyId separately avoid this copy by calling the overload below.
+        return parseAndProcessPackagedBytes(
+                extractedPublicKeyId, Arrays.copyOfRange(receivedMessage, 4, receivedMessage.length));
+    }
+
+    /**
+     * Parses a received message whose publicKeyId prefix has already been read. The message is decrypted, verified
+     * and parsed on the InboundDecoder's threads, and then handled in the lane of the secret (or, on the helper side,
+     * of the sharer) it belongs to.
+     *
+     * @param extractedPublicKeyId publicKeyId the message was sent to
+     * @param encryptedMessage     byte[] containing the encrypted message that followed the publicKeyId
+     * @return Whether the message was handed on for decoding
+     */
+    public static boolean parseAndProcessPackagedBytes(int extractedPublicKeyId, byte[] encryptedMessage) {
+        Logger staticLogger = LoggerFactory.getLogger(MessageFactory.class.getName());
+        LibIdentity myIdentity =
+                LibState.getInstance().publicKeyIdToLibIdentityMap.get(extractedPublicKeyId);
+        if (myIdentity == null) {
+            staticLogger.debug(
+                    "Dropping message - Received a message with unknown publicKeyId: " + extractedPublicKeyId);
+            LibState.getInstance().printPublicKeyIdToIdentityMap();
+            return false;
+        }
+        LibState.getInstance().getInboundDecoder().decode(extractedPublicKeyId, myIdentity, encryptedMessage);
+        return true;
+    }
 
-            // Process the remaining bytes now that we have extracted the publicKeyId
-            byte[] remainingBytes = new byte[receivedMessage.length - 4];
-            System.arraycopy(receivedMessage, 4, remainingBytes, 0, remainingBytes.length);
+    /**
+     * Decrypts a received message, verifies its signature and parses it. Reads no library state other than the
+     * identity maps, so it can run on any thread.
+     *
+     * @param myIdentity       LibIdentity the message was sent to
+     * @param encryptedMessage byte[] containing the encrypted message that followed the publicKeyId
+     * @return the parsed message, or null if the message could not be decrypted or parsed, its sender is not known,
+     *     or its signature does not verify
+     */
+    public static Derecmessage.DeRecMessage decodePackagedBytes(LibIdentity myIdentity, byte[] encryptedMessage) {
+        Logger staticLogger = LoggerFactory.getLogger(MessageFactory.class.getName());
+        try {
 
             Derecmessage.DeRecMessage derecmessage = null;
             byte[] decryptedMsg = LibState.getInstance()
-                    .getDerecCryptoImpl()
-                    .decrypt(remainingBytes, Base64.getDecoder().decode(myIdentity.getEncryptionPrivateKey()));
+                    .getCryptoProvider()
+                    .decrypt(encryptedMessage, myIdentity.getPreparedEncryptionPrivateKey());
             int signatureLength = 64;
-            byte[] signatureBytes = new byte[signatureLength];
-            byte[] msgToParse = new byte[decryptedMsg.length - signatureLength];
-            // Copy the first 64 bytes to signatureBytes
-            System.arraycopy(decryptedMsg, 0, signatureBytes, 0, signatureLength);
-            // Copy the remaining bytes to msgToParse
-            System.arraycopy(decryptedMsg, signatureLength, msgToParse, 0, msgToParse.length);
-            derecmessage = Derecmessage.DeRecMessage.parseFrom(msgToParse);
+            // The first 64 bytes are the signature, the rest is the serialized message. The message is copied once
+            // because verify needs it as a whole array; parsing then aliases it instead of copying the bytes fields
+            // (e.g. shares) out again.
+            byte[] signatureBytes = Arrays.copyOfRange(decryptedMsg, 0, signatureLength);
+            byte[] msgToParse = Arrays.copyOfRange(decryptedMsg, signatureLength, decryptedMsg.length);
+            CodedInputStream input = CodedInputStream.newInstance(msgToParse);
+            input.enableAliasing(true);
+            derecmessage = Derecmessage.DeRecMessage.parseFrom(input);
 
             String senderSignaturePublicKey = "";
+            // Keys taken from a message body are not authenticated yet, so they are not cached
+            boolean isKnownSender = false;
             // For PairRequest and PairResponse messages, the sender's signature key should be extracted from the
             // received message
             if (derecmessage.hasMessageBodies()
@@ -584,22 +651,29 @@ class MessageFactory {
                         .queryMessageHashAndSecretIdToIdentity(
                                 derecmessage.getSender(),
                                 new DeRecSecret.Id(derecmessage.getSecretId().toByteArray()));
+                if (senderDeRecIdentity == null) {
+                    staticLogger.debug("Dropping message - Received a message from an unknown sender");
+                    return null;
+                }
                 senderSignaturePublicKey = senderDeRecIdentity.getPublicSignatureKey();
+                isKnownSender = true;
                 logger.debug("Sender " + senderDeRecIdentity.getName() + " public signature key is "
                         + senderSignaturePublicKey);
             }
-            byte[] verificationResult = LibState.getInstance()
-                    .getDerecCryptoImpl()
-                    .verify(msgToParse, signatureBytes, Base64.getDecoder().decode(senderSignaturePublicKey));
-            staticLogger.debug("verify returned: " + verificationResult);
-            // TODO: check what Cryptography library is returning and drop the message if verification fails.
-
-            MessageParser mp = new MessageParser();
-            mp.parseMessage(extractedPublicKeyId, derecmessage);
-            return true;
+            CryptoProvider.PreparedKey senderKey = isKnownSender
+                    ? LibState.getInstance()
+                            .getKeyCache()
+                            .get(CryptoProvider.KeyUse.PUBLIC_SIGNATURE, senderSignaturePublicKey)
+                    : KeyCache.prepare(CryptoProvider.KeyUse.PUBLIC_SIGNATURE, senderSignaturePublicKey);
+            boolean verified = LibState.getInstance().getCryptoProvider().verify(msgToParse, signatureBytes, senderKey);
+            if (!verified) {
+                staticLogger.debug("Dropping message - signature verification failed");
+                return null;
+            }
+            return derecmessage;
         } catch (Exception ex) {
-            staticLogger.error("Exception in parseAndProcessPackagedBytes", ex);
-            return false;
+            staticLogger.error("Exception in decodePackagedBytes", ex);
+            return null;
         }
     }
 }
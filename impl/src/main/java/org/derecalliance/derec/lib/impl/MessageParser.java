@@ -39,7 +39,7 @@ import org.derecalliance.derec.protobuf.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class MessageParser {
+public class MessageParser {
     static Logger logger = LoggerFactory.getLogger(MessageParser.class.getName());
 
     /**
@@ -177,7 +177,7 @@ class MessageParser {
      * @param publicKeyId publicKeyId of the message receiver
      * @param message     Received message
      */
-    void parseMessage(int publicKeyId, Derecmessage.DeRecMessage message) {
+    public void parseMessage(int publicKeyId, Derecmessage.DeRecMessage message) {
         printDeRecMessage(message, "Received ");
         // Handles pause functionality for demo application
         if (LibState.getInstance().getMeHelper().isPaused()) {
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CryptoProvider backed by the native DeRec cryptography library, through derec-crypto-bridge. The bridge is loaded
+ * reflectively, so that the library can be built without it (see the native-crypto profile in the pom); on the module
+ * path it has to be resolved with --add-modules derec.crypto.bridge.
+ *
+ * <p>The bridge does not document how verify reports its outcome. The constructor learns it from a signature that is
+ * known to be valid and one that is known to be invalid, and fails if the bridge reports them alike; verify then only
+ * accepts a signature that the bridge reports as it reported the valid one.
+ */
+public class NativeCryptoProvider implements CryptoProvider {
+    static final String BRIDGE_CLASS = "org.derecalliance.derec.crypto.DerecCryptoImpl";
+    private static final int SIGNATURE_LENGTH = 64;
+    private final Object bridge;
+    private final MethodHandle shareMethod;
+    private final MethodHandle recoverMethod;
+    private final MethodHandle signThenEncryptMethod;
+    private final MethodHandle decryptMethod;
+    private final MethodHandle verifyMethod;
+    private final MethodHandle encryptionKeyGenMethod;
+    private final MethodHandle signatureKeyGenMethod;
+    // What verify returned for the valid probe signature, and whether that was the verified message itself rather
+    // than a fixed value
+    private final byte[] validSignatureResult;
+    private final boolean echoesVerifiedMessage;
+
+    /**
+     * Loads the bridge, links the native library, and checks how the bridge reports the outcome of verify
+     *
+     * @throws IllegalStateException if the bridge cannot be loaded, or does not report a valid and an invalid
+     *                               signature differently
+     * @throws LinkageError          if the native library cannot be linked
+     */
+    public NativeCryptoProvider() {
+        try {
+            Class<?> bridgeClass = Class.forName(BRIDGE_CLASS);
+            bridge = bridgeClass.getConstructor().newInstance();
+            shareMethod = method(bridgeClass, "share");
+            recoverMethod = method(bridgeClass, "recover");
+            signThenEncryptMethod = method(bridgeClass, "signThenEncrypt");
+            decryptMethod = method(bridgeClass, "decrypt");
+            verifyMethod = method(bridgeClass, "verify");
+            encryptionKeyGenMethod = method(bridgeClass, "encryptionKeyGen");
+            signatureKeyGenMethod = method(bridgeClass, "signatureKeyGen");
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not load " + BRIDGE_CLASS, ex);
+        }
+
+        byte[] probe = "DeRec signature probe".getBytes(StandardCharsets.UTF_8);
+        byte[] tampered = probe.clone();
+        tampered[0] ^= 1;
+        KeyPair signatureKeys = signatureKeyGen();
+        KeyPair encryptionKeys = encryptionKeyGen();
+        byte[] decrypted = decrypt(
+                signThenEncrypt(probe, signatureKeys.privateKey(), encryptionKeys.publicKey()),
+                encryptionKeys.privateKey());
+        byte[] signature = Arrays.copyOf(decrypted, SIGNATURE_LENGTH);
+        validSignatureResult = verifyResult(probe, signature, signatureKeys.publicKey());
+        echoesVerifiedMessage = Arrays.equals(validSignatureResult, probe);
+        byte[] invalidSignatureResult = verifyResult(tampered, signature, signatureKeys.publicKey());
+        if (!isValidResult(validSignatureResult, probe) || isValidResult(invalidSignatureResult, tampered)) {
+            throw new IllegalStateException("The bridge's verify reports a valid and an invalid signature alike");
+        }
+    }
+
+    private static MethodHandle method(Class<?> bridgeClass, String name) throws ReflectiveOperationException {
+        for (Method method : bridgeClass.getMethods()) {
+            if (method.getName().equals(name)) {
+                return MethodHandles.publicLookup().unreflect(method);
+            }
+        }
+        throw new NoSuchMethodException(BRIDGE_CLASS + "." + name);
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return ex instanceof RuntimeException ? (RuntimeException) ex : new IllegalStateException(ex);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<byte[]> share(byte[] secretId, int version, byte[] secret, int count, int threshold) {
+        try {
+            return (List<byte[]>) shareMethod.invoke(bridge, secretId, version, secret, count, threshold);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @Override
+    public byte[] recover(byte[] secretId, int version, List<byte[]> shares) {
+        try {
+            return (byte[]) recoverMethod.invoke(bridge, secretId, version, shares);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @Override
+    public byte[] signThenEncrypt(byte[] message, byte[] privateSignatureKey, byte[] publicEncryptionKey) {
+        try {
+            return (byte[]) signThenEncryptMethod.invoke(bridge, message, privateSignatureKey, publicEncryptionKey);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, byte[] privateEncryptionKey) {
+        try {
+            return (byte[]) decryptMethod.invoke(bridge, ciphertext, privateEncryptionKey);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] message, byte[] signature, byte[] publicSignatureKey) {
+        return isValidResult(verifyResult(message, signature, publicSignatureKey), message);
+    }
+
+    private byte[] verifyResult(byte[] message, byte[] signature, byte[] publicSignatureKey) {
+        try {
+            return (byte[]) verifyMethod.invoke(bridge, message, signature, publicSignatureKey);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private boolean isValidResult(byte[] result, byte[] message) {
+        return Arrays.equals(result, echoesVerifiedMessage ? message : validSignatureResult);
+    }
+
+    @Override
+    public KeyPair encryptionKeyGen() {
+        try {
+            Object[] keyPair = (Object[]) encryptionKeyGenMethod.invoke(bridge);
+            return new KeyPair((byte[]) keyPair[0], (byte[]) keyPair[1]);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @Override
+    public KeyPair signatureKeyGen() {
+        try {
+            Object[] keyPair = (Object[]) signatureKeyGenMethod.invoke(bridge);
+            return new KeyPair((byte[]) keyPair[0], (byte[]) keyPair[1]);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous outbound stage. Packaged messages are queued per destination address and sent on the configured
+ * Transport without blocking the command processor, so a slow or unreachable peer only delays the messages addressed
+ * to it.
+ */
+public class OutboundDispatcher {
+    private final ConcurrentHashMap<String, DestinationQueue> destinationQueues = new ConcurrentHashMap<>();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * A message waiting to be sent, with the future that reports its delivery status
+     */
+    private static class PendingMessage {
+        final byte[] msgBytes;
+        final CompletableFuture<Integer> future;
+
+        PendingMessage(byte[] msgBytes, CompletableFuture<Integer> future) {
+            this.msgBytes = msgBytes;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Bounded queue of messages for one destination. At most maxConnectionsPerDestination messages are in flight at a
+     * time; the rest wait here in FIFO order. The queue is removed from destinationQueues once it is idle.
+     */
+    private class DestinationQueue {
+        final String toUri;
+        final ArrayDeque<PendingMessage> pending = new ArrayDeque<>();
+        int inFlight = 0;
+        // Whether a thread is in the pump loop, and whether it must look at the queue again before leaving it
+        boolean pumping = false;
+        boolean repump = false;
+
+        DestinationQueue(String toUri) {
+            this.toUri = toUri;
+        }
+
+        synchronized boolean offer(PendingMessage message) {
+            if (pending.size() >= LibState.getInstance().getMaxOutboundQueueDepthPerDestination()) {
+                return false;
+            }
+            pending.add(message);
+            return true;
+        }
+
+        synchronized boolean isIdle() {
+            return pending.isEmpty() && inFlight == 0 && !pumping;
+        }
+
+        /**
+         * Sends queued messages while there are connections to spare. Only one thread runs the loop at a time; a
+         * send that completes synchronously (loopback, a failed connect, an open circuit) calls pump again from
+         * inside the loop, which then only asks the running loop to look again, so the stack does not grow with the
+         * number of queued messages.
+         */
+        void pump() {
+            synchronized (this) {
+                if (pumping) {
+                    repump = true;
+                    return;
+                }
+                pumping = true;
+            }
+            while (true) {
+                PendingMessage next;
+                synchronized (this) {
+                    if (inFlight >= LibState.getInstance().getMaxConnectionsPerDestination() || pending.isEmpty()) {
+                        if (repump) {
+                            repump = false;
+                            continue;
+                        }
+                        pumping = false;
+                        break;
+                    }
+                    next = pending.poll();
+                    inFlight++;
+                }
+                DestinationHealthTracker healthTracker = LibState.getInstance().getDestinationHealthTracker();
+                if (!healthTracker.tryAcquire(toUri)) {
+                    // The destination is backing off after repeated failures, fail fast
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    next.future.complete(503);
+                    continue;
+                }
+                sendSafely(next.msgBytes).whenComplete((status, ex) -> {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    healthTracker.recordResult(toUri, status, ex);
+                    if (ex != null) {
+                        logger.debug("Could not send message to " + toUri, ex);
+                        next.future.completeExceptionally(ex);
+                    } else {
+                        if (status != 200) {
+                            logger.debug("Response status code from " + toUri + ": " + status);
+                        }
+                        next.future.complete(status);
+                    }
+                    pump();
+                });
+            }
+            if (isIdle()) {
+                // Messages are only offered inside compute, so none can be added to the queue once it is removed
+                if (destinationQueues.computeIfPresent(toUri, (uri, queue) -> queue == this && isIdle() ? null : queue)
+                        == null) {
+                    LibState.getInstance().getDestinationHealthTracker().evictIfIdle(toUri);
+                }
+            }
+        }
+
+        CompletableFuture<Integer> sendSafely(byte[] msgBytes) {
+            try {
+                return LibState.getInstance().getTransport().send(toUri, msgBytes);
+            } catch (Exception ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+    }
+
+    /**
+     * Queues a packaged message for delivery to the given address. Returns immediately.
+     *
+     * @param toUri    URI of the receiver
+     * @param msgBytes packaged message bytes
+     * @return future completed with the transport status code once the message was delivered (503 without sending
+     *     if the destination's circuit is open), or completed exceptionally if it could not be queued or sent
+     */
+    public CompletableFuture<Integer> send(String toUri, byte[] msgBytes) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if (toUri == null || msgBytes == null) {
+            logger.debug("Not sending message: missing destination or message bytes");
+            future.completeExceptionally(new IllegalArgumentException("Missing destination or message bytes"));
+            return future;
+        }
+        PendingMessage message = new PendingMessage(msgBytes, future);
+        boolean[] queued = new boolean[1];
+        DestinationQueue queue = destinationQueues.compute(toUri, (uri, existing) -> {
+            DestinationQueue destinationQueue = existing != null ? existing : new DestinationQueue(uri);
+            queued[0] = destinationQueue.offer(message);
+            return destinationQueue;
+        });
+        if (!queued[0]) {
+            logger.debug("Outbound queue full for " + toUri + ", dropping message");
+            future.completeExceptionally(new RejectedExecutionException("Outbound queue full for " + toUri));
+            return future;
+        }
+        queue.pump();
+        return future;
+    }
+
+    /**
+     * Queues a packaged message for delivery using the library's dispatcher.
+     *
+     * @param toUri    URI of the receiver
+     * @param msgBytes packaged message bytes
+     * @return future of the delivery status
+     */
+    public static CompletableFuture<Integer> sendMessage(String toUri, byte[] msgBytes) {
+        return LibState.getInstance().getOutboundDispatcher().send(toUri, msgBytes);
+    }
+}
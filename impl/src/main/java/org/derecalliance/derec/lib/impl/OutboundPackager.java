@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.derecalliance.derec.protobuf.Derecmessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel stage between the command processors and the OutboundDispatcher that serializes, signs and encrypts
+ * outbound messages. The command processor looks up the keys and hands the message to a pool of packaging threads,
+ * so that the cryptography of a message fanned out to many helpers runs on all cores instead of the command thread.
+ * Packaged messages are handed to the dispatcher in the order they were submitted for each destination, whichever
+ * packaging thread finishes first. When the pool's queue is full, the submitting command thread packages the message
+ * itself, which slows down the producer.
+ */
+public class OutboundPackager {
+    // Completes when the last message submitted for a destination has been handed to the dispatcher
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> destinationTails = new ConcurrentHashMap<>();
+    private volatile ThreadPoolExecutor executor = null;
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * Packages a message on the packaging pool and queues it for delivery. Returns without waiting for either.
+     *
+     * @param toUri        URI of the receiver
+     * @param publicKeyId  public key id of the receiver
+     * @param deRecMessage DeRecMessage to send
+     * @param keys         keys found by MessageFactory.findPackagingKeys
+     * @return future of the delivery status, see OutboundDispatcher.send
+     */
+    public CompletableFuture<Integer> packageAndSend(
+            String toUri, int publicKeyId, Derecmessage.DeRecMessage deRecMessage, MessageFactory.PackagingKeys keys) {
+        CompletableFuture<byte[]> packaged = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            try {
+                packaged.complete(MessageFactory.packageMessage(publicKeyId, deRecMessage.toByteArray(), keys));
+            } catch (Exception ex) {
+                packaged.completeExceptionally(ex);
+            }
+        });
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        CompletableFuture<Void> handedOff = new CompletableFuture<>();
+        CompletableFuture<Void> previous = destinationTails.put(toUri, handedOff);
+        CompletableFuture<Void> turn = previous == null ? CompletableFuture.completedFuture(null) : previous;
+        turn.thenCompose(v -> packaged).whenComplete((msgBytes, ex) -> {
+            try {
+                if (ex != null) {
+                    logger.error("Could not package message for " + toUri, ex);
+                    result.completeExceptionally(ex);
+                } else {
+                    OutboundDispatcher.sendMessage(toUri, msgBytes).whenComplete((status, sendEx) -> {
+                        if (sendEx != null) {
+                            result.completeExceptionally(sendEx);
+                        } else {
+                            result.complete(status);
+                        }
+                    });
+                }
+            } finally {
+                handedOff.complete(null);
+                destinationTails.remove(toUri, handedOff);
+            }
+        });
+        return result;
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    LibState libState = LibState.getInstance();
+                    int threads = libState.getPackagingThreads();
+                    AtomicInteger threadCount = new AtomicInteger();
+                    executor = new ThreadPoolExecutor(
+                            threads,
+                            threads,
+                            60,
+                            TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(libState.getPackagingQueueCapacity()),
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "derec-packager-" + threadCount.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+                }
+                current = executor;
+            }
+        }
+        return current;
+    }
+}
@@ -19,13 +19,13 @@ package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.GetSecretIdsVersionsMessages.sendGetSecretIdsVersionsRequestMessage;
 import static org.derecalliance.derec.lib.impl.MessageFactory.createPairRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
 import com.google.protobuf.ByteString;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.*;
+import org.derecalliance.derec.lib.impl.commands.DeferredActionCommand;
 import org.derecalliance.derec.protobuf.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -131,11 +131,6 @@ class PairMessages {
             }
             String toUri = addressValue.get();
 
-            ResultOuterClass.Result result = ResultOuterClass.Result.newBuilder()
-                    .setStatus(ResultOuterClass.StatusEnum.OK)
-                    .setMemo("Thank you for pairing with me!")
-                    .build();
-
             Communicationinfo.CommunicationInfo communicationInfo =
                     buildCommunicationInfo(LibState.getInstance().getMeHelper().getMyLibId());
 
@@ -149,7 +144,8 @@ class PairMessages {
             LibState.getInstance().printPublicKeyIdToIdentityMap();
             SharerStatusImpl sharerStatus = new SharerStatusImpl(sharerId.get());
             sharerStatus.setRecovering(message.getSenderKind() == Pair.SenderKind.SHARER_RECOVERY);
-            LibState.getInstance().getMeHelper().addSharer(sharerStatus, new DeRecSecret.Id(secretId));
+            CompletableFuture<Void> sharerRecorded =
+                    LibState.getInstance().getMeHelper().addSharer(sharerStatus, new DeRecSecret.Id(secretId));
             staticLogger.debug("added sharer");
             LibState.getInstance().getMeHelper().addSecret(sharerStatus, new DeRecSecret.Id(secretId));
             staticLogger.debug("added secret");
@@ -178,29 +174,55 @@ class PairMessages {
                 LibState.getInstance().getMeHelper().printPublicKeyToLostSharerMap();
             }
 
-            // Send PairResponse
-            staticLogger.debug("About to send pair response with public signature key: "
-                    + LibState.getInstance().getMeHelper().getMyLibId().getSignaturePublicKey());
-            sendPairResponseMessage(
-                    receiverId,
-                    sharerStatus.getId(),
-                    new DeRecSecret.Id(secretId),
-                    toUri,
-                    LibState.getInstance().getMeHelper().getMyLibId().getPublicEncryptionKeyId(),
-                    result,
-                    Pair.SenderKind.HELPER,
-                    LibState.getInstance().getMeHelper().getMyLibId().getSignaturePublicKey(),
-                    communicationInfo,
-                    message.getNonce(),
-                    LibState.getInstance().getMeHelper().getParameterRange());
+            // Respond back to the sharer once the pairing is durable, so that a paired sharer survives a restart
+            Runnable respond = () -> {
+                boolean recorded = !sharerRecorded.isCompletedExceptionally();
+                ResultOuterClass.Result result = ResultOuterClass.Result.newBuilder()
+                        .setStatus(recorded ? ResultOuterClass.StatusEnum.OK : ResultOuterClass.StatusEnum.FAIL)
+                        .setMemo("Thank you for pairing with me!")
+                        .build();
 
-            DeRecHelper.NotificationResponse response = LibState.getInstance()
-                    .getMeHelper()
-                    .deliverNotification(
-                            DeRecHelper.Notification.StandardHelperNotificationType.PAIR_INDICATION,
-                            sharerId.get(),
-                            new DeRecSecret.Id(secretId),
-                            -1);
+                // Send PairResponse
+                staticLogger.debug("About to send pair response with public signature key: "
+                        + LibState.getInstance().getMeHelper().getMyLibId().getSignaturePublicKey());
+                sendPairResponseMessage(
+                        receiverId,
+                        sharerStatus.getId(),
+                        new DeRecSecret.Id(secretId),
+                        toUri,
+                        LibState.getInstance().getMeHelper().getMyLibId().getPublicEncryptionKeyId(),
+                        result,
+                        Pair.SenderKind.HELPER,
+                        LibState.getInstance().getMeHelper().getMyLibId().getSignaturePublicKey(),
+                        communicationInfo,
+                        message.getNonce(),
+                        LibState.getInstance().getMeHelper().getParameterRange());
+
+                if (recorded) {
+                    DeRecHelper.NotificationResponse response = LibState.getInstance()
+                            .getMeHelper()
+                            .deliverNotification(
+                                    DeRecHelper.Notification.StandardHelperNotificationType.PAIR_INDICATION,
+                                    sharerId.get(),
+                                    new DeRecSecret.Id(secretId),
+                                    -1);
+                }
+            };
+            if (sharerRecorded.isDone()) {
+                respond.run();
+            } else {
+                // Respond from the sharer's lane rather than the journal's writer thread
+                ByteString sharerKey = ByteString.copyFrom(sharerId.get().getPublicEncryptionKeyDigest());
+                sharerRecorded.whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        staticLogger.error(
+                                "Could not journal the pairing of "
+                                        + sharerId.get().getName(),
+                                ex);
+                    }
+                    LibState.getInstance().getCommandQueue().forward(new DeferredActionCommand(sharerKey, respond));
+                });
+            }
         } catch (Exception ex) {
             staticLogger.error("Exception in handlePairRequest", ex);
         }
@@ -224,6 +246,14 @@ class PairMessages {
         Logger staticLogger = LoggerFactory.getLogger(PairMessages.class.getName());
         try {
             staticLogger.debug("In handlePairResponse from " + senderId.getName());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(
+                            PendingRequests.RequestType.PAIR,
+                            senderId,
+                            new DeRecSecret.Id(secretId),
+                            message.getNonce(),
+                            message);
             var secret = (SecretImpl) LibState.getInstance().getMeSharer().getSecret(new DeRecSecret.Id(secretId));
             staticLogger.debug("In handlePairResponse - Secret is: " + secret);
             if (secret != null) {
@@ -314,8 +344,9 @@ class PairMessages {
      * @param communicationInfo   communicationInfo of the message sender
      * @param nonce               Nonce to identify pairing session
      * @param parameterRange      parameterRange of the message sender
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendPairRequestMessage(
+    public static CompletableFuture<Pair.PairResponseMessage> sendPairRequestMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -339,9 +370,11 @@ class PairMessages {
                 nonce,
                 parameterRange);
 
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), true, secretId, receiverId, false);
-        sendHttpRequest(toUri, msgBytes);
+        CompletableFuture<Pair.PairResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(PendingRequests.RequestType.PAIR, receiverId, secretId, nonce, toUri);
+        return PendingRequests.failOnDeliveryError(
+                response, MessageCoalescer.submit(deRecMessage, true, secretId, receiverId, toUri));
     }
 
     /**
@@ -356,8 +389,9 @@ class PairMessages {
      * @param communicationInfo  communicationInfo of the message sender
      * @param nonce              Nonce to identify pairing session
      * @param parameterRange     parameterRange of the message sender
+     * @return Future of the message's delivery status
      */
-    public static void sendPairResponseMessage(
+    public static CompletableFuture<Integer> sendPairResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -380,8 +414,6 @@ class PairMessages {
                 nonce,
                 parameterRange);
 
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), false, secretId, receiverId, false);
-        sendHttpRequest(toUri, msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, secretId, receiverId, toUri);
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of requests sent to peers that are waiting for a response. Each request is keyed by (peer, secret id, request
+ * type, discriminator), where the discriminator is the version for StoreShare and GetShare, the nonce for pairing and
+ * share verification, and 0 for the rest. The response handlers complete the request's future with the response
+ * message in O(1).
+ *
+ * <p>A request's future completes exceptionally with an IOException if the request could not be delivered, and with a
+ * TimeoutException if no response arrives within responseTimeout. Timeouts count as failures for the peer's address in
+ * the DestinationHealthTracker. A request sent again with the same key supersedes the earlier one, whose future is
+ * cancelled.
+ *
+ * <p>A failed or timed out request is not re-sent from here. Requests are re-sent by the sharer's periodic work (see
+ * PeriodicWorkItem), on its own schedule; the futures only let the sender react to the outcome, as sendShareToHelper
+ * does to release a share that was not delivered.
+ */
+public class PendingRequests {
+    /**
+     * Request message types that expect a response
+     */
+    public enum RequestType {
+        PAIR,
+        UNPAIR,
+        STORE_SHARE,
+        VERIFY_SHARE,
+        GET_SHARE,
+        GET_SECRET_IDS_VERSIONS
+    }
+
+    private record Key(RequestType type, String peer, DeRecSecret.Id secretId, long discriminator) {}
+
+    private final ConcurrentHashMap<Key, CompletableFuture<Object>> requests = new ConcurrentHashMap<>();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    private static Key key(RequestType type, DeRecIdentity peer, DeRecSecret.Id secretId, long discriminator) {
+        return new Key(type, peer.getPublicEncryptionKey(), secretId, discriminator);
+    }
+
+    /**
+     * Registers a request before it is sent
+     *
+     * @param type          type of the request
+     * @param peer          DeRecIdentity of the peer the request is sent to
+     * @param secretId      secret id the request is sent in the context of
+     * @param discriminator version or nonce that the response echoes back, or 0
+     * @param peerAddress   address the request is sent to, for health accounting on timeout
+     * @param <T>           type of the response message
+     * @return future completed with the response message
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> register(
+            RequestType type, DeRecIdentity peer, DeRecSecret.Id secretId, long discriminator, String peerAddress) {
+        Key key = key(type, peer, secretId, discriminator);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> previous = requests.put(key, future);
+        if (previous != null) {
+            previous.completeExceptionally(new CancellationException("Superseded by a new " + type + " request"));
+        }
+        future.orTimeout(LibState.getInstance().getResponseTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((response, ex) -> {
+                    requests.remove(key, future);
+                    if (ex instanceof TimeoutException) {
+                        logger.debug("No " + type + " response from " + peer.getName() + " within the timeout");
+                        LibState.getInstance().getDestinationHealthTracker().recordResult(peerAddress, null, ex);
+                    }
+                });
+        return (CompletableFuture<T>) future;
+    }
+
+    /**
+     * Fails a registered request as soon as its message turns out to be undeliverable, instead of waiting for the
+     * timeout
+     *
+     * @param response future returned by register
+     * @param delivery future of the request message's delivery status
+     * @param <T>      type of the response message
+     * @return the response future
+     */
+    static <T> CompletableFuture<T> failOnDeliveryError(
+            CompletableFuture<T> response, CompletableFuture<Integer> delivery) {
+        delivery.whenComplete((status, ex) -> {
+            if (ex != null) {
+                response.completeExceptionally(ex);
+            } else if (status != 200) {
+                response.completeExceptionally(new IOException("Request not delivered, status " + status));
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Completes the request a response answers
+     *
+     * @param type          type of the request
+     * @param peer          DeRecIdentity of the peer that sent the response
+     * @param secretId      secret id of the response
+     * @param discriminator version or nonce echoed in the response, or 0
+     * @param response      response message
+     * @return whether a pending request was completed
+     */
+    boolean complete(
+            RequestType type, DeRecIdentity peer, DeRecSecret.Id secretId, long discriminator, Object response) {
+        CompletableFuture<Object> future = requests.remove(key(type, peer, secretId, discriminator));
+        if (future == null) {
+            logger.debug("No pending " + type + " request for the response from " + peer.getName());
+            return false;
+        }
+        return future.complete(response);
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int size() {
+        return requests.size();
+    }
+}
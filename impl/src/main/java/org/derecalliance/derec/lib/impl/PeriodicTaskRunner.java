@@ -17,43 +17,171 @@
 
 package org.derecalliance.derec.lib.impl;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.derecalliance.derec.lib.api.DeRecSecret;
 import org.derecalliance.derec.lib.impl.commands.PeriodicWorkCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Drives the sharer's periodic work. Each tick advances the periodic work TimerWheel and runs only the work that has
+ * come due, grouped by secret, so idle secrets cost nothing. Ticks are self-coalescing: at most one tick is pending or
+ * running at a time, and the next tick is scheduled only once the previous one, including the per-secret work it
+ * fanned out, has completed. When the command processors fall behind, ticks are delayed rather than piling up; the
+ * delay is reported as the tick lag.
+ */
 public class PeriodicTaskRunner {
+    // Retry delay after a tick was rejected because the command queue was full
+    private static final Duration rejectedTickDelay = Duration.ofMillis(100);
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Time the pending tick was due to run
+    private Instant tickDueTime;
+    private Duration lastTickLag = Duration.ZERO;
+    private Duration maxTickLag = Duration.ZERO;
+    private long ticks = 0;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     public void startProcessing() {
-        final Runnable task = new Runnable() {
-            public void run() {
-                // Enqueue this message to the command queue
-                PeriodicWorkCommand command = new PeriodicWorkCommand(Instant.now());
-                LibState.getInstance().getCommandQueue().add(command);
-            }
-        };
+        scheduleTick(Duration.ZERO);
+    }
 
-        // Schedule the task to run every 1 second after an initial delay of 0 seconds
-        scheduler.scheduleAtFixedRate(task, 0, 1, TimeUnit.SECONDS);
+    /**
+     * Schedules the next tick
+     *
+     * @param delay delay from now
+     */
+    private void scheduleTick(Duration delay) {
+        synchronized (this) {
+            tickDueTime = Instant.now().plus(delay);
+        }
+        try {
+            scheduler.schedule(this::enqueueTick, delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            logger.debug("Periodic task runner stopped, not scheduling further ticks");
+        }
     }
 
-    public static void processPeriodicWork(Instant instant) {
-        Logger staticLogger = LoggerFactory.getLogger(PeriodicTaskRunner.class.getName());
+    private void enqueueTick() {
+        // Enqueue this message to the command queue
+        PeriodicWorkCommand command = new PeriodicWorkCommand(Instant.now(), this);
+        // If the queue is over capacity, retry shortly; the tick keeps its due time, so the wait counts as lag
+        if (!LibState.getInstance().getCommandQueue().offer(command)) {
+            logger.debug("Command queue full, delaying periodic work");
+            try {
+                scheduler.schedule(this::enqueueTick, rejectedTickDelay.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                logger.debug("Periodic task runner stopped, not scheduling further ticks");
+            }
+        }
+    }
 
-        if (LibState.getInstance().getMeSharer() == null) {
+    /**
+     * Runs a tick: records its lag, takes the work that has come due from the TimerWheel and fans it out as one
+     * PeriodicWorkCommand per secret. The next tick is scheduled once all of them have completed.
+     *
+     * @param instant time the tick was enqueued
+     */
+    public void processTick(Instant instant) {
+        Instant startTime = Instant.now();
+        recordTickLag(startTime);
+        LinkedHashMap<DeRecSecret.Id, List<PeriodicWorkItem>> dueWork = new LinkedHashMap<>();
+        try {
+            for (PeriodicWorkItem item :
+                    LibState.getInstance().getPeriodicWorkWheel().advance(startTime)) {
+                dueWork.computeIfAbsent(item.secretId(), id -> new ArrayList<>())
+                        .add(item);
+            }
+        } catch (Exception ex) {
+            logger.error("Exception in periodic task runner", ex);
+        }
+        if (dueWork.isEmpty()) {
+            tickCompleted(startTime);
             return;
         }
-        try {
-            for (DeRecSecret derecsecret : LibState.getInstance().getMeSharer().getSecrets()) {
-                staticLogger.info("About to call periodicWorkForSecret");
-                ((SecretImpl) derecsecret).periodicWorkForSecret();
+        AtomicInteger remaining = new AtomicInteger(dueWork.size());
+        Runnable onSecretDone = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                tickCompleted(startTime);
+            }
+        };
+        for (Map.Entry<DeRecSecret.Id, List<PeriodicWorkItem>> entry : dueWork.entrySet()) {
+            try {
+                SharerImpl sharer = LibState.getInstance().getMeSharer();
+                SecretImpl secret = sharer == null ? null : (SecretImpl) sharer.getSecret(entry.getKey());
+                if (secret == null) {
+                    // The secret was closed; its work is dropped
+                    onSecretDone.run();
+                    continue;
+                }
+                // Run each secret's periodic work in that secret's lane, so that secrets are processed in parallel
+                LibState.getInstance()
+                        .getCommandQueue()
+                        .forward(new PeriodicWorkCommand(instant, secret, entry.getValue(), onSecretDone));
+            } catch (Exception ex) {
+                logger.error("Exception in periodic task runner", ex);
+                onSecretDone.run();
             }
+        }
+    }
+
+    private synchronized void recordTickLag(Instant startTime) {
+        lastTickLag = tickDueTime == null ? Duration.ZERO : Duration.between(tickDueTime, startTime);
+        if (lastTickLag.compareTo(maxTickLag) > 0) {
+            maxTickLag = lastTickLag;
+        }
+        ticks++;
+        if (lastTickLag.compareTo(LibState.getInstance().getPeriodicWorkInterval()) > 0) {
+            logger.info("Periodic work is lagging by " + lastTickLag.toMillis() + " ms");
+        }
+    }
+
+    /**
+     * Schedules the next tick one period after the start of the completed one, or right away if the tick took longer
+     * than a period
+     *
+     * @param startTime time the completed tick started
+     */
+    private void tickCompleted(Instant startTime) {
+        Duration elapsed = Duration.between(startTime, Instant.now());
+        Duration delay = LibState.getInstance().getPeriodicWorkInterval().minus(elapsed);
+        scheduleTick(delay.isNegative() ? Duration.ZERO : delay);
+    }
+
+    /**
+     * @return how late the most recent tick started relative to when it was due
+     */
+    public synchronized Duration getLastTickLag() {
+        return lastTickLag;
+    }
+
+    /**
+     * @return the largest tick lag seen so far
+     */
+    public synchronized Duration getMaxTickLag() {
+        return maxTickLag;
+    }
+
+    /**
+     * @return the number of ticks run so far
+     */
+    public synchronized long getTickCount() {
+        return ticks;
+    }
+
+    public static void processPeriodicWorkForSecret(SecretImpl secret, List<PeriodicWorkItem> dueItems) {
+        Logger staticLogger = LoggerFactory.getLogger(PeriodicTaskRunner.class.getName());
+        try {
+            staticLogger.info("About to call periodicWorkForSecret");
+            secret.periodicWorkForSecret(dueItems);
         } catch (Exception ex) {
             staticLogger.error("Exception in periodic task runner", ex);
         }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import org.derecalliance.derec.lib.api.DeRecHelperStatus;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+
+/**
+ * A unit of the sharer's periodic work, scheduled on the periodic work TimerWheel: sending a share to a helper until
+ * it is confirmed, verifying a helper's share, or the secret-level maintenance (recovery requests, keep-list cleanup
+ * and creating shares for new versions).
+ *
+ * @param kind          kind of work
+ * @param secretId      secret the work is for
+ * @param versionNumber version the work is for, or 0 for SECRET_MAINTENANCE
+ * @param helperStatus  helper the work is for, or null for SECRET_MAINTENANCE
+ */
+public record PeriodicWorkItem(Kind kind, DeRecSecret.Id secretId, int versionNumber, DeRecHelperStatus helperStatus) {
+    public enum Kind {
+        SEND_SHARE,
+        VERIFY_SHARE,
+        SECRET_MAINTENANCE
+    }
+
+    static PeriodicWorkItem sendShare(DeRecSecret.Id secretId, int versionNumber, DeRecHelperStatus helperStatus) {
+        return new PeriodicWorkItem(Kind.SEND_SHARE, secretId, versionNumber, helperStatus);
+    }
+
+    static PeriodicWorkItem verifyShare(DeRecSecret.Id secretId, int versionNumber, DeRecHelperStatus helperStatus) {
+        return new PeriodicWorkItem(Kind.VERIFY_SHARE, secretId, versionNumber, helperStatus);
+    }
+
+    static PeriodicWorkItem secretMaintenance(DeRecSecret.Id secretId) {
+        return new PeriodicWorkItem(Kind.SECRET_MAINTENANCE, secretId, 0, null);
+    }
+}
@@ -18,42 +18,77 @@
 package org.derecalliance.derec.lib.impl;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpConnectTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
-import java.time.Duration;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Provides HTTP client interface to send HTTP messages
+ * Provides HTTP client interface to send HTTP messages. A single HttpClient is shared by all outbound messages so
+ * that connections to a peer are pooled and reused (and multiplexed over HTTP/2 when the peer supports it). The
+ * number of concurrent requests per destination is limited by OutboundDispatcher.
  */
 public class ProtobufHttpClient {
-    public static int sendHttpRequest(String toUri, byte[] msgBytes) {
-        Logger staticLogger = LoggerFactory.getLogger(ProtobufHttpClient.class.getName());
-        HttpRequest request = HttpRequest.newBuilder()
+    private static volatile HttpClient client = null;
+
+    /**
+     * Gets the shared HttpClient, creating it on first use from the settings in LibState.
+     *
+     * @return the shared HttpClient
+     */
+    static HttpClient getClient() {
+        if (client == null) {
+            synchronized (ProtobufHttpClient.class) {
+                if (client == null) {
+                    client = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .connectTimeout(LibState.getInstance().getHttpConnectTimeout())
+                            .followRedirects(HttpClient.Redirect.NEVER)
+                            .build();
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Builds the POST request carrying a packaged DeRec message.
+     *
+     * @param toUri    URI of the receiver
+     * @param msgBytes packaged message bytes
+     * @return HttpRequest
+     */
+    static HttpRequest buildRequest(String toUri, byte[] msgBytes) {
+        return HttpRequest.newBuilder()
                 .uri(URI.create(toUri))
                 .header("Content-Type", "application/x-protobuf")
+                .timeout(LibState.getInstance().getHttpRequestTimeout())
                 .POST(BodyPublishers.ofByteArray(msgBytes))
                 .build();
+    }
 
-        HttpClient client = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
-                .connectTimeout(Duration.ofSeconds(1))
-                .build();
-        HttpResponse<InputStream> response = null;
+    public static int sendHttpRequest(String toUri, byte[] msgBytes) {
+        Logger staticLogger = LoggerFactory.getLogger(ProtobufHttpClient.class.getName());
+        HttpRequest request = buildRequest(toUri, msgBytes);
+
+        HttpResponse<Void> response = null;
         try {
             staticLogger.debug("About to call client.send");
-            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            response = getClient().send(request, HttpResponse.BodyHandlers.discarding());
             staticLogger.debug("After the call to client.send");
-
         } catch (HttpConnectTimeoutException ex) {
             staticLogger.debug("Could not send http message to " + toUri);
             return (400);
+        } catch (HttpTimeoutException ex) {
+            staticLogger.debug("Timed out waiting for http response from " + toUri);
+            return (408);
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -65,4 +100,31 @@ public class ProtobufHttpClient {
         }
         return response.statusCode();
     }
+
+    /**
+     * Sends a message without blocking the caller. Connect failures complete the future with status 400 and request
+     * timeouts with 408, matching sendHttpRequest; any other I/O failure completes the future exceptionally.
+     *
+     * @param toUri    URI of the receiver
+     * @param msgBytes packaged message bytes
+     * @return future of the HTTP status code
+     */
+    public static CompletableFuture<Integer> sendHttpRequestAsync(String toUri, byte[] msgBytes) {
+        Logger staticLogger = LoggerFactory.getLogger(ProtobufHttpClient.class.getName());
+        HttpRequest request = buildRequest(toUri, msgBytes);
+        return getClient()
+                .sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenApply(HttpResponse::statusCode)
+                .exceptionally(ex -> {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    if (cause instanceof HttpConnectTimeoutException) {
+                        staticLogger.debug("Could not send http message to " + toUri);
+                        return 400;
+                    } else if (cause instanceof HttpTimeoutException) {
+                        staticLogger.debug("Timed out waiting for http response from " + toUri);
+                        return 408;
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
 }
@@ -24,7 +24,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import org.derecalliance.derec.lib.impl.commands.MessageReceivedCommand;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,9 +40,11 @@ public class ProtobufHttpServer {
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     public ProtobufHttpServer(URI uri) throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(uri.getPort()), 10);
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(uri.getPort()), LibState.getInstance().getHttpServerBacklog());
         server.createContext("/", new MyHandler());
-        server.setExecutor(null);
+        ExecutorService executor = LibState.getInstance().getHttpServerExecutor();
+        server.setExecutor(executor != null ? executor : createDefaultExecutor());
 
         Thread serverThread = new Thread(() -> {
             server.start();
@@ -46,22 +53,111 @@ public class ProtobufHttpServer {
         serverThread.start();
     }
 
+    /**
+     * Creates the executor that handles incoming requests: a virtual thread per request when the runtime supports
+     * virtual threads (JDK 21+), otherwise a bounded thread pool that pushes back on the dispatcher thread when full.
+     *
+     * @return ExecutorService for the HTTP server
+     */
+    ExecutorService createDefaultExecutor() {
+        try {
+            // Looked up reflectively since the library is compiled for releases without virtual threads
+            ExecutorService virtualThreadExecutor = (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("Http server using virtual threads");
+            return virtualThreadExecutor;
+        } catch (ReflectiveOperationException ex) {
+            int poolSize = LibState.getInstance().getHttpServerThreadPoolSize();
+            logger.debug("Http server using a thread pool of size " + poolSize);
+            return new ThreadPoolExecutor(
+                    poolSize,
+                    poolSize,
+                    60,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(LibState.getInstance().getHttpServerBacklog()),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
     static class MyHandler implements HttpHandler {
         Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             logger.info("In http MyHandler:: Received message");
-            if ("POST".equals(exchange.getRequestMethod())) {
-                InputStream is = exchange.getRequestBody();
-                byte[] msgBytes = is.readAllBytes();
-                exchange.sendResponseHeaders(200, -1);
-
-                // Enqueue this message to the command queue
-                MessageReceivedCommand command = new MessageReceivedCommand(msgBytes);
-                LibState.getInstance().getCommandQueue().add(command);
-            } else {
-                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            try {
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    int maxMessageSize = LibState.getInstance().getMaxInboundMessageSize();
+                    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+                    if (contentLength != null && Long.parseLong(contentLength) > maxMessageSize) {
+                        logger.debug("Rejecting message of size " + contentLength);
+                        exchange.sendResponseHeaders(413, -1); // Payload Too Large
+                        return;
+                    }
+                    InputStream is = exchange.getRequestBody();
+                    // Read the publicKeyId prefix on its own, so that the encrypted message can be read directly
+                    // into an array of its own and handed to the crypto library without further copies
+                    byte[] header = is.readNBytes(4);
+                    if (header.length < 4) {
+                        exchange.sendResponseHeaders(400, -1); // Bad Request
+                        return;
+                    }
+                    int publicKeyId = ByteBuffer.wrap(header).getInt();
+                    // Reject messages for unknown identities or over the rate limit before allocating their body
+                    String source = exchange.getRemoteAddress().getAddress().getHostAddress();
+                    int admission = LibState.getInstance().admitPublicKeyId(publicKeyId, source);
+                    if (admission != 200) {
+                        exchange.sendResponseHeaders(admission, -1);
+                        return;
+                    }
+                    // Hold room for the body in the command queue's byte budget before allocating it. Without a
+                    // Content-Length the largest message we accept is reserved until the body has been read.
+                    int reserved = contentLength != null
+                            ? Math.max((int) Long.parseLong(contentLength) - 4, 0)
+                            : maxMessageSize - 4;
+                    if (!LibState.getInstance().reserveReceivedBytes(reserved)) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                        exchange.sendResponseHeaders(503, -1); // Service Unavailable
+                        return;
+                    }
+                    try {
+                        byte[] encryptedMessage;
+                        if (contentLength != null) {
+                            encryptedMessage = new byte[reserved];
+                            if (is.readNBytes(encryptedMessage, 0, encryptedMessage.length) < encryptedMessage.length) {
+                                logger.debug("Message shorter than its Content-Length");
+                                exchange.sendResponseHeaders(400, -1); // Bad Request
+                                return;
+                            }
+                        } else {
+                            encryptedMessage = is.readNBytes(reserved + 1);
+                            if (encryptedMessage.length > reserved) {
+                                logger.debug("Rejecting message larger than " + maxMessageSize + " bytes");
+                                exchange.sendResponseHeaders(413, -1); // Payload Too Large
+                                return;
+                            }
+                            LibState.getInstance().releaseReceivedBytes(reserved - encryptedMessage.length);
+                            reserved = encryptedMessage.length;
+                        }
+                        // Enqueue this message to the command queue, or tell the sender to back off. Either way the
+                        // reservation is used up.
+                        int status = LibState.getInstance().deliverAdmittedMessage(publicKeyId, encryptedMessage);
+                        reserved = 0;
+                        if (status == 503) {
+                            exchange.getResponseHeaders().set("Retry-After", "1");
+                        }
+                        exchange.sendResponseHeaders(status, -1);
+                    } finally {
+                        // The body was not read in full
+                        LibState.getInstance().releaseReceivedBytes(reserved);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                }
+            } catch (NumberFormatException ex) {
+                exchange.sendResponseHeaders(400, -1); // Bad Request
+            } finally {
+                exchange.close();
             }
         }
     }
@@ -75,4 +171,14 @@ public class ProtobufHttpServer {
             staticLogger.error("Exception in handle", ex);
         }
     }
+
+    public static void processReceivedMesssage(int publicKeyId, byte[] encryptedMessage) {
+        Logger staticLogger = LoggerFactory.getLogger(ProtobufHttpServer.class.getName());
+
+        try {
+            boolean result = MessageFactory.parseAndProcessPackagedBytes(publicKeyId, encryptedMessage);
+        } catch (Exception ex) {
+            staticLogger.error("Exception in handle", ex);
+        }
+    }
 }
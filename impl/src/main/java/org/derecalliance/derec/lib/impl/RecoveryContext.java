@@ -20,6 +20,7 @@ package org.derecalliance.derec.lib.impl;
 import static org.derecalliance.derec.lib.impl.SecretImpl.parseSecretMessage;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.derecalliance.derec.lib.api.DeRecHelperStatus;
 import org.derecalliance.derec.lib.api.DeRecSecret;
 import org.derecalliance.derec.protobuf.Storeshare;
@@ -30,18 +31,18 @@ import org.slf4j.LoggerFactory;
  * Contains the methods and data structures necessary for recovering a secret.
  */
 public class RecoveryContext {
-    HashMap<DeRecSecret.Id, HashMap<Integer, ArrayList<DeRecHelperStatus>>> recoverableShares;
-    HashMap<DeRecSecret.Id, HashMap<Integer, ArrayList<DeRecHelperStatus>>> getShareRequestsSent;
-    HashMap<DeRecSecret.Id, ArrayList<Integer>> successfullyRecoveredVersions;
-    HashMap<DeRecSecret.Id, HashMap<Integer, HashMap<DeRecHelperStatus, Storeshare.CommittedDeRecShare>>>
+    ConcurrentHashMap<DeRecSecret.Id, HashMap<Integer, ArrayList<DeRecHelperStatus>>> recoverableShares;
+    ConcurrentHashMap<DeRecSecret.Id, HashMap<Integer, ArrayList<DeRecHelperStatus>>> getShareRequestsSent;
+    ConcurrentHashMap<DeRecSecret.Id, ArrayList<Integer>> successfullyRecoveredVersions;
+    ConcurrentHashMap<DeRecSecret.Id, HashMap<Integer, HashMap<DeRecHelperStatus, Storeshare.CommittedDeRecShare>>>
             retrievedCommittedDeRecShares;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     RecoveryContext() {
-        recoverableShares = new HashMap<>();
-        getShareRequestsSent = new HashMap<>();
-        successfullyRecoveredVersions = new HashMap<>();
-        retrievedCommittedDeRecShares = new HashMap<>();
+        recoverableShares = new ConcurrentHashMap<>();
+        getShareRequestsSent = new ConcurrentHashMap<>();
+        successfullyRecoveredVersions = new ConcurrentHashMap<>();
+        retrievedCommittedDeRecShares = new ConcurrentHashMap<>();
     }
 
     /**
@@ -261,7 +262,7 @@ public class RecoveryContext {
             logger.debug("created merkledVss");
             logger.debug("Dump 1" + toString());
             byte[] valueToProtect = LibState.getInstance()
-                    .getDerecCryptoImpl()
+                    .getCryptoProvider()
                     .recover(
                             secretId.getBytes(),
                             versionNumber,
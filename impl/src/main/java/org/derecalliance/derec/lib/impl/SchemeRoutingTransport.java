@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the transport for each address by its URI scheme. By default http and https addresses use HttpTransport,
+ * and derec+tcp addresses use TcpTransport.
+ */
+public class SchemeRoutingTransport implements Transport {
+    private final ConcurrentHashMap<String, Transport> transports = new ConcurrentHashMap<>();
+
+    public SchemeRoutingTransport() {
+        HttpTransport httpTransport = new HttpTransport();
+        register("http", httpTransport);
+        register("https", httpTransport);
+        register(TcpTransport.SCHEME, new TcpTransport());
+    }
+
+    /**
+     * Uses the given transport for addresses with the given scheme, replacing any previous one.
+     *
+     * @param scheme    URI scheme, e.g. "derec+tcp"
+     * @param transport Transport for the scheme
+     */
+    public void register(String scheme, Transport transport) {
+        transports.put(scheme.toLowerCase(Locale.ROOT), transport);
+    }
+
+    /**
+     * Gets the transport for an address
+     *
+     * @param address URI of the address
+     * @return Transport for the address' scheme, or null if there is none
+     */
+    public Transport getTransport(URI address) {
+        String scheme = address.getScheme();
+        return scheme == null ? null : transports.get(scheme.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public void startListening(URI address) throws IOException {
+        Transport transport = getTransport(address);
+        if (transport == null) {
+            throw new IOException("No transport for address " + address);
+        }
+        transport.startListening(address);
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(String toUri, byte[] msgBytes) {
+        Transport transport = getTransport(URI.create(toUri));
+        if (transport == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("No transport for address " + toUri));
+        }
+        return transport.send(toUri, msgBytes);
+    }
+}
@@ -18,7 +18,6 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.*;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 import static org.derecalliance.derec.lib.impl.utils.MiscUtils.*;
 import static org.derecalliance.derec.lib.impl.utils.MiscUtils.writeToByteArrayOutputStream;
 
@@ -27,12 +26,17 @@ import com.google.protobuf.Timestamp;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.security.MessageDigest;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import org.derecalliance.derec.lib.api.*;
 import org.derecalliance.derec.lib.impl.commands.AddHelpersCommand;
+import org.derecalliance.derec.lib.impl.commands.DeferredActionCommand;
 import org.derecalliance.derec.lib.impl.commands.RemoveHelpersCommand;
 import org.derecalliance.derec.lib.impl.commands.UpdateCommand;
 import org.derecalliance.derec.protobuf.Derecmessage;
@@ -44,16 +48,21 @@ public class SecretImpl implements DeRecSecret {
     LibIdentity libId;
     DeRecSecret.Id id;
     String description;
-    ArrayList<HelperStatusImpl> helperStatuses;
+    CopyOnWriteArrayList<HelperStatusImpl> helperStatuses;
     boolean isRecovering;
     boolean isClosed; // is this secret shut down/closed?
-    TreeMap<Integer, VersionImpl> versionsMap; // Semantically, this is the keepList from the sharer's side
+    // Semantically, this is the keepList from the sharer's side
+    ConcurrentSkipListMap<Integer, VersionImpl> versionsMap;
 
     // When a new version (n) is created, it gets confirmed after the helpers receive the shares.
     // When the version n is confirmed, we need to send a StoreShareRequestMessage just with the
     // keepList (but no share) so that the helpers can delete version (n-1). This map is used to record
     // the updated KeepList to send to individual helpers.
-    HashMap<HelperStatusImpl, List<Integer>> versionsToCleanupFromHelpers = new HashMap();
+    ConcurrentHashMap<HelperStatusImpl, List<Integer>> versionsToCleanupFromHelpers = new ConcurrentHashMap<>();
+    // Consecutive failures of each periodic work item. A failed item is retried after the periodic work interval,
+    // doubled for every further failure up to 2^MAX_WORK_BACKOFF_SHIFT times the interval.
+    private final ConcurrentHashMap<PeriodicWorkItem, Integer> periodicWorkFailures = new ConcurrentHashMap<>();
+    private static final int MAX_WORK_BACKOFF_SHIFT = 6;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     private static DeRecSecret.Id generateId(String description) {
@@ -86,29 +95,23 @@ public class SecretImpl implements DeRecSecret {
                     LibState.getInstance().getMeSharer().getName(),
                     LibState.getInstance().getMeSharer().getContact(),
                     LibState.getInstance().getMeSharer().getAddress());
-            logger.debug(
-                    "Adding myself (Sharer) " + libId.getMyId().getName() + " to messageHashAndSecretIdToIdentityMap");
-            LibState.getInstance()
-                    .registerMessageHashAndSecretIdToIdentity(
-                            ByteString.copyFrom(libId.getMyId().getPublicEncryptionKeyDigest()),
-                            secretId,
-                            libId.getMyId());
-
-            logger.debug("Adding myself (Sharer) " + libId.getMyId().getName() + " to publicKeyToIdentityMap");
-            LibState.getInstance().registerPublicKeyId(libId.getPublicEncryptionKeyId(), libId);
+            registerMyIdentity();
 
             // if there are helpers present in the list, pair with them for this secret
-            helperStatuses = new ArrayList<>();
+            helperStatuses = new CopyOnWriteArrayList<>();
             if (helperIds.size() > 0) {
                 addHelpersAsync(helperIds);
             }
-            versionsMap = new TreeMap<>();
+            versionsMap = new ConcurrentSkipListMap<>();
             // Create a version implicitly if there is data in bytesToProtect
             if (bytesToProtect != null && recovery == false) {
                 updateAsync(bytesToProtect);
             }
             isRecovering = recovery;
             isClosed = false;
+            if (recovery) {
+                scheduleWork(PeriodicWorkItem.secretMaintenance(id), Duration.ZERO);
+            }
         } catch (Exception ex) {
             logger.error("Exception in secret constructor", ex);
         }
@@ -118,6 +121,39 @@ public class SecretImpl implements DeRecSecret {
         this(description, bytesToProtect, new ArrayList<>(), recovery);
     }
 
+    /**
+     * Recreates a secret from the sharer's journal with its original keys. The journal adds the helpers and versions
+     * afterward.
+     *
+     * @param secretId    Secret id
+     * @param description Description of the secret
+     * @param libId       LibIdentity with the secret's keys
+     * @param recovery    Whether the secret is being recovered
+     */
+    SecretImpl(Id secretId, String description, LibIdentity libId, boolean recovery) {
+        this.id = secretId;
+        this.description = description;
+        this.libId = libId;
+        registerMyIdentity();
+        helperStatuses = new CopyOnWriteArrayList<>();
+        versionsMap = new ConcurrentSkipListMap<>();
+        isRecovering = recovery;
+        isClosed = false;
+    }
+
+    /**
+     * Registers the sharer's identity for this secret, so that messages to it can be decrypted and attributed
+     */
+    private void registerMyIdentity() {
+        logger.debug("Adding myself (Sharer) " + libId.getMyId().getName() + " to messageHashAndSecretIdToIdentityMap");
+        LibState.getInstance()
+                .registerMessageHashAndSecretIdToIdentity(
+                        ByteString.copyFrom(libId.getMyId().getPublicEncryptionKeyDigest()), id, libId.getMyId());
+
+        logger.debug("Adding myself (Sharer) " + libId.getMyId().getName() + " to publicKeyToIdentityMap");
+        LibState.getInstance().registerPublicKeyId(libId.getPublicEncryptionKeyId(), libId);
+    }
+
     @Override
     public void addHelpers(List<? extends DeRecIdentity> helperIds) {
         //            logger.debug("Not implemented: " + Thread.currentThread().getStackTrace()[2].getMethodName() +
@@ -162,6 +198,7 @@ public class SecretImpl implements DeRecSecret {
             // helper id that is scanned from the QR code
             var helperStatus = new HelperStatusImpl(this, helperId, fakeNonce);
             this.helperStatuses.add(helperStatus);
+            journalHelperStatus(helperStatus);
             ret.add(helperStatus);
             if (shouldStartPairing == true) {
                 helperStatus.startPairing(this.id, helperStatus.getId(), fakeNonce);
@@ -210,16 +247,16 @@ public class SecretImpl implements DeRecSecret {
             if (toBeRemoved.isPresent()) {
                 logger.debug(
                         "Found helper to remove: " + toBeRemoved.get().getId().getName());
-                Timer timer = new Timer();
-                TimerTask task = new TimerTask() {
-                    @Override
-                    public void run() {
-                        logger.debug("Timer expired in Secret");
-                        // remove the helper from the list of HelperStatus objects for this secret
-                        helperStatuses.remove(toBeRemoved.get());
-                    }
-                };
-                timer.schedule(task, 20000);
+                HelperStatusImpl helperToRemove = toBeRemoved.get();
+                LibState.getInstance()
+                        .scheduleCommand(
+                                new DeferredActionCommand(id, () -> {
+                                    logger.debug("Pending removal expired in Secret");
+                                    // remove the helper from the list of HelperStatus objects for this secret
+                                    helperStatuses.remove(helperToRemove);
+                                    journalHelperRemoved(helperToRemove.getId());
+                                }),
+                                LibState.getInstance().getPendingRemovalDelay());
 
                 UnpairMessages.sendUnpairRequestMessage(
                         libId.getMyId(),
@@ -357,6 +394,12 @@ public class SecretImpl implements DeRecSecret {
     public DeRecVersion processUpdateAsync(int versionNumber, byte[] bytesToProtect) {
         VersionImpl v = new VersionImpl(this, bytesToProtect, versionNumber);
         versionsMap.put(versionNumber, v);
+        SharerJournal journal = sharerJournal();
+        if (journal != null) {
+            journal.recordVersion(v);
+        }
+        // The shares of the new version are created by the next maintenance run
+        scheduleWork(PeriodicWorkItem.secretMaintenance(id), Duration.ZERO);
 
         updateKeepListIfNeeded();
         return null;
@@ -389,6 +432,24 @@ public class SecretImpl implements DeRecSecret {
      */
     public void deleteVersion(int versionNumber) {
         versionsMap.remove(versionNumber);
+        SharerJournal journal = sharerJournal();
+        if (journal != null) {
+            journal.recordVersionRemoved(id, versionNumber);
+        }
+    }
+
+    /**
+     * Gets the highest version number of this secret that is protected
+     *
+     * @return int highest protected version number, or 0 if no version is protected yet
+     */
+    public int getHighestProtectedVersionNumber() {
+        for (VersionImpl version : versionsMap.descendingMap().values()) {
+            if (version.isProtected()) {
+                return version.getVersionNumber();
+            }
+        }
+        return 0;
     }
 
     /**
@@ -434,6 +495,13 @@ public class SecretImpl implements DeRecSecret {
 
     public void setRecovering(boolean recovering) {
         isRecovering = recovering;
+        SharerJournal journal = sharerJournal();
+        if (journal != null) {
+            journal.recordSecret(this);
+        }
+        if (recovering) {
+            scheduleWork(PeriodicWorkItem.secretMaintenance(id), Duration.ZERO);
+        }
     }
 
     @Override
@@ -493,6 +561,7 @@ public class SecretImpl implements DeRecSecret {
                             + versionsToCleanupFromHelpers.get(helperStatus));
                 }
                 logger.debug("-- end of versionsToCleanupFromHelpers");
+                scheduleWork(PeriodicWorkItem.secretMaintenance(id), Duration.ZERO);
             }
         }
     }
@@ -535,6 +604,7 @@ public class SecretImpl implements DeRecSecret {
      */
     public void clearOneHelper(DeRecIdentity helperId) {
         helperStatuses.remove((HelperStatusImpl) getHelperStatusById(helperId));
+        journalHelperRemoved(helperId);
     }
 
     public void removeVersionFromKeepList(Integer versionNumber) {
@@ -743,54 +813,132 @@ public class SecretImpl implements DeRecSecret {
     }
 
     /**
-     * Periodic secret processing. Sends shares and verification requests to helpers.
+     * Schedules periodic work for this secret, replacing the item's previous deadline if it has one
+     *
+     * @param item  work item
+     * @param delay delay from now
+     */
+    void scheduleWork(PeriodicWorkItem item, Duration delay) {
+        LibState.getInstance().getPeriodicWorkWheel().schedule(item, delay);
+    }
+
+    /**
+     * Does the periodic work that has come due for this secret. Items for versions that have since been deleted are
+     * dropped. The wheel has already removed the due items, so an item that fails is scheduled again with a backoff.
+     *
+     * @param dueItems work items that have come due
+     */
+    public void periodicWorkForSecret(List<PeriodicWorkItem> dueItems) {
+        logger.debug("Processing secret: " + getSecretId() + " has #due items = " + dueItems.size());
+        for (PeriodicWorkItem item : dueItems) {
+            try {
+                doPeriodicWork(item);
+                periodicWorkFailures.remove(item);
+            } catch (Exception ex) {
+                int failures = periodicWorkFailures.merge(item, 1, Integer::sum);
+                Duration delay = LibState.getInstance()
+                        .getPeriodicWorkInterval()
+                        .multipliedBy(1L << Math.min(failures - 1, MAX_WORK_BACKOFF_SHIFT));
+                logger.error("Exception in periodicWorkForSecret, retrying " + item.kind() + " in " + delay, ex);
+                scheduleWork(item, delay);
+            }
+        }
+    }
+
+    /**
+     * Does one periodic work item
+     *
+     * @param item work item that has come due
+     */
+    private void doPeriodicWork(PeriodicWorkItem item) {
+        if (item.kind() == PeriodicWorkItem.Kind.SECRET_MAINTENANCE) {
+            maintainSecret();
+            return;
+        }
+        VersionImpl version = versionsMap.get(item.versionNumber());
+        if (version == null) {
+            return;
+        }
+        if (item.kind() == PeriodicWorkItem.Kind.SEND_SHARE) {
+            version.sendShareToHelper(item.helperStatus());
+        } else {
+            version.sendVerificationRequestToHelper(item.helperStatus());
+        }
+    }
+
+    /**
+     * Secret-level periodic work: sends GetShare requests while recovering, otherwise creates the shares of versions
+     * that do not have any yet and sends the updated keepList to helpers after versions were deleted.
      */
-    public void periodicWorkForSecret() {
-        logger.debug("Processing secret: " + getSecretId() + " has #versions = "
-                + getVersions().size());
-        NavigableMap<Integer, VersionImpl> versions = (NavigableMap<Integer, VersionImpl>) getVersions();
+    void maintainSecret() {
         if (isRecovering()) {
             LibState.getInstance().getMeSharer().getRecoveryContext().evaluateAndSendGetShareRequests(getSecretId());
-        } else {
-            List<Integer> versionsNumbersList = getVersions().keySet().stream().toList();
-            for (int versionNumber : versionsNumbersList) {
-                VersionImpl version = versions.get(versionNumber);
-                version.sendSharesToPairedHelpers();
-                version.sendVerificationRequestsToPairedHelpers();
+            scheduleWork(
+                    PeriodicWorkItem.secretMaintenance(id),
+                    LibState.getInstance().getPeriodicWorkInterval());
+            return;
+        }
+        for (VersionImpl version : versionsMap.values()) {
+            if (version.sharesMap.isEmpty()) {
+                version.createShares();
             }
+        }
 
-            if (!versionsToCleanupFromHelpers.isEmpty()) {
-                logger.debug("versionsToCleanupFromHelpers is not empty");
-                for (HelperStatusImpl helperStatus : versionsToCleanupFromHelpers.keySet()) {
-                    List<Integer> keepList = versionsToCleanupFromHelpers.get(helperStatus);
-                    logger.debug("KeepList " + keepList);
-                    for (Integer v : keepList) {
-                        logger.debug("Keeplist item: " + v);
-                    }
-
-                    Derecmessage.DeRecMessage deRecMessage = createStoreShareRequestMessageWithoutShare(
-                            libId.getMyId(), helperStatus.getId(), id, keepList);
-                    byte[] msgBytes = getPackagedBytes(
-                            helperStatus.getId().getPublicEncryptionKeyId(),
-                            deRecMessage.toByteArray(),
-                            true,
-                            id,
-                            helperStatus.getId(),
-                            true);
-                    logger.debug(
-                            "Finally sending the StoreShareRequestMessageWithoutShare - empty share with keeplist to "
-                                    + helperStatus.getId().getName() + ", keepList = " + keepList);
-                    sendHttpRequest(helperStatus.getId().getAddress(), msgBytes);
-                    logger.debug(
-                            "After sendHttpRequest after StoreShareRequestMessageWithoutShare - empty share with keeplist"
-                                    + helperStatus.getId().getName() + ", keepList = " + keepList);
+        if (!versionsToCleanupFromHelpers.isEmpty()) {
+            logger.debug("versionsToCleanupFromHelpers is not empty");
+            for (HelperStatusImpl helperStatus : versionsToCleanupFromHelpers.keySet()) {
+                List<Integer> keepList = versionsToCleanupFromHelpers.get(helperStatus);
+                logger.debug("KeepList " + keepList);
+                for (Integer v : keepList) {
+                    logger.debug("Keeplist item: " + v);
                 }
-                versionsToCleanupFromHelpers = new HashMap();
+
+                Derecmessage.DeRecMessage deRecMessage =
+                        createStoreShareRequestMessageWithoutShare(libId.getMyId(), helperStatus.getId(), id, keepList);
+                logger.debug("Finally sending the StoreShareRequestMessageWithoutShare - empty share with keeplist to "
+                        + helperStatus.getId().getName() + ", keepList = " + keepList);
+                MessageCoalescer.submit(
+                        deRecMessage,
+                        true,
+                        id,
+                        helperStatus.getId(),
+                        helperStatus.getId().getAddress());
+                logger.debug("After submitting StoreShareRequestMessageWithoutShare - empty share with keeplist"
+                        + helperStatus.getId().getName() + ", keepList = " + keepList);
             }
+            versionsToCleanupFromHelpers = new ConcurrentHashMap<>();
         }
     }
 
     public LibIdentity getLibId() {
         return libId;
     }
+
+    /**
+     * Records a change of a helper's status, such as its pairing status, in the sharer's journal
+     *
+     * @param helperStatus HelperStatus of one of this secret's helpers
+     */
+    void journalHelperStatus(HelperStatusImpl helperStatus) {
+        SharerJournal journal = sharerJournal();
+        if (journal != null) {
+            journal.recordHelperStatus(helperStatus);
+        }
+    }
+
+    private void journalHelperRemoved(DeRecIdentity helperId) {
+        SharerJournal journal = sharerJournal();
+        if (journal != null) {
+            journal.recordHelperRemoved(id, helperId);
+        }
+    }
+
+    /**
+     * @return the sharer's journal, or null if journaling is disabled or this secret is not (yet) one of the sharer's
+     *         secrets, such as a secret being rebuilt during recovery
+     */
+    private SharerJournal sharerJournal() {
+        SharerImpl sharer = LibState.getInstance().getMeSharer();
+        return sharer == null ? null : sharer.getJournal(this);
+    }
 }
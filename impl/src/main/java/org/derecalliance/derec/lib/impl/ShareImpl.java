@@ -17,8 +17,10 @@
 
 package org.derecalliance.derec.lib.impl;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import org.derecalliance.derec.lib.api.DeRecHelper;
 import org.derecalliance.derec.lib.api.DeRecSecret;
 import org.derecalliance.derec.protobuf.Storeshare;
@@ -29,6 +31,11 @@ public class ShareImpl implements DeRecHelper.Share {
     private DeRecSecret.Id secretId;
     private Storeshare.CommittedDeRecShare committedDeRecShare;
     private boolean isConfirmed;
+    // Send state of the StoreShareRequest carrying this share, on the sharer's side
+    private Instant lastSentAt = null;
+    private Instant resendTime = null;
+    private int sendAttempts = 0;
+    private long bytesInFlight = 0;
 
     public ShareImpl(
             DeRecSecret.Id secretId,
@@ -74,7 +81,7 @@ public class ShareImpl implements DeRecHelper.Share {
      *
      * @return boolean whether share is confirmed
      */
-    public boolean isConfirmed() {
+    public synchronized boolean isConfirmed() {
         return isConfirmed;
     }
 
@@ -83,8 +90,72 @@ public class ShareImpl implements DeRecHelper.Share {
      *
      * @param status boolean value for whether share has been confirmed
      */
-    public void updateConfirmation(boolean status) {
+    public synchronized void updateConfirmation(boolean status) {
         isConfirmed = status;
+        // Either the helper acknowledged the share, or it lost it and the share must be sent again right away
+        resetSendState();
+    }
+
+    /**
+     * Records that the share was sent to the Helper, and sets the time after which it is re-sent if it is not
+     * acknowledged. The acknowledgement timeout starts at shareAckTimeout and doubles with each attempt, up to
+     * maxShareAckTimeout, with jitter. The jitter is drawn once per send, so that every check of the resend time
+     * agrees.
+     *
+     * @param now time the share was sent
+     */
+    public synchronized void recordSend(Instant now) {
+        lastSentAt = now;
+        sendAttempts++;
+        bytesInFlight = committedDeRecShare.getSerializedSize();
+        LibState libState = LibState.getInstance();
+        long timeoutMillis = libState.getShareAckTimeout().toMillis() << Math.min(sendAttempts - 1, 30);
+        timeoutMillis = Math.min(timeoutMillis, libState.getMaxShareAckTimeout().toMillis());
+        double jitter = libState.getRetryBackoffJitter();
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        resendTime = now.plusMillis((long) (timeoutMillis * factor));
+    }
+
+    /**
+     * Records that the last send of the share was not delivered. The share is no longer in flight; it is re-sent
+     * when its acknowledgement timeout expires.
+     */
+    public synchronized void recordSendFailed() {
+        bytesInFlight = 0;
+    }
+
+    /**
+     * Clears the send state, so that the share is sent again without waiting
+     */
+    public synchronized void resetSendState() {
+        lastSentAt = null;
+        resendTime = null;
+        sendAttempts = 0;
+        bytesInFlight = 0;
+    }
+
+    /**
+     * Gets the time after which an unacknowledged send of this share is re-sent, as set by recordSend
+     *
+     * @return the time to re-send the share, or null if it has not been sent
+     */
+    public synchronized Instant getResendTime() {
+        return resendTime;
+    }
+
+    public synchronized Instant getLastSentAt() {
+        return lastSentAt;
+    }
+
+    public synchronized int getSendAttempts() {
+        return sendAttempts;
+    }
+
+    /**
+     * @return the size of the share sent and not yet acknowledged, or 0
+     */
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
     }
 
     @Override
@@ -18,6 +18,8 @@
 package org.derecalliance.derec.lib.impl;
 
 import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
@@ -43,9 +45,13 @@ public class SharerImpl implements DeRecSharer {
     Consumer<DeRecStatusNotification> listener;
     RecoveryContext recoveryContext;
     RecoveredState recoveredState;
+    // Journal of the sharer's state, null if journaling is disabled or while the journal is being replayed
+    private SharerJournal journal = null;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     public SharerImpl(String name, String contact, String address) {
+        // Fails here, rather than on first use, if no cryptography provider is available
+        LibState.getInstance().initCryptoProvider();
         this.name = name;
         this.contact = contact;
         this.address = address;
@@ -56,6 +62,21 @@ public class SharerImpl implements DeRecSharer {
         recoveredState = new RecoveredState();
 
         listener = notification -> {};
+
+        Path journalDirectory = LibState.getInstance().getJournalDirectory();
+        if (journalDirectory != null) {
+            // Resume with the secrets, versions and helpers from the journal, so that the helpers need not pair again
+            SharerJournal sharerJournal;
+            try {
+                sharerJournal = new SharerJournal(this, journalDirectory);
+            } catch (IOException ex) {
+                throw new RuntimeException("Could not open the journal in " + journalDirectory, ex);
+            }
+            sharerJournal.replaySecrets();
+            journal = sharerJournal;
+            logger.debug("Recovered " + secretsMap.size() + " secrets from the journal");
+            printSecretsMap();
+        }
         LibState.getInstance().init(contact, address);
     }
 
@@ -103,6 +124,9 @@ public class SharerImpl implements DeRecSharer {
         synchronized (secretsMap) {
             secretsMap.put(secret.getSecretId(), secret);
         }
+        if (journal != null) {
+            journal.recordSecret(secret);
+        }
         printSecretsMap();
         return secret;
     }
@@ -166,6 +190,9 @@ public class SharerImpl implements DeRecSharer {
      */
     public void installRecoveredSecret(SecretImpl secret) {
         secretsMap.put(secret.getSecretId(), secret);
+        if (journal != null) {
+            journal.recordSecret(secret);
+        }
     }
 
     @Override
@@ -234,6 +261,25 @@ public class SharerImpl implements DeRecSharer {
      */
     public void removeSecret(DeRecSecret.Id secretId) {
         secretsMap.remove(secretId);
+        if (journal != null) {
+            journal.recordSecretRemoved(secretId);
+        }
+    }
+
+    /**
+     * @param secret Secret
+     * @return the sharer's journal if the secret is one of the sharer's secrets, or null if it is not or journaling is
+     *         disabled
+     */
+    SharerJournal getJournal(SecretImpl secret) {
+        return journal != null && secretsMap.get(secret.getSecretId()) == secret ? journal : null;
+    }
+
+    /**
+     * @return the sharer's journal, or null if journaling is disabled
+     */
+    public SharerJournal getJournal() {
+        return journal;
     }
 
     /**
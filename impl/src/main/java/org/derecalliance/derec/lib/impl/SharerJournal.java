@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import static org.derecalliance.derec.lib.impl.Journal.readIdentity;
+import static org.derecalliance.derec.lib.impl.Journal.readKeys;
+import static org.derecalliance.derec.lib.impl.Journal.readString;
+import static org.derecalliance.derec.lib.impl.Journal.write;
+import static org.derecalliance.derec.lib.impl.Journal.writeBytes;
+import static org.derecalliance.derec.lib.impl.Journal.writeIdentity;
+import static org.derecalliance.derec.lib.impl.Journal.writeKeys;
+import static org.derecalliance.derec.lib.impl.Journal.writeString;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.intToByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readByteArray;
+import static org.derecalliance.derec.lib.impl.utils.MiscUtils.readInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecPairingStatus;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+
+/**
+ * Durable state of the sharer: its secrets with their keys, the versions of each secret, and the status of each
+ * secret's helpers. The state changes are appended to a Journal in LibState.journalDirectory, next to the Helper's,
+ * so that a restarted sharer resumes with the same secrets and helpers instead of creating its secrets and pairing
+ * again. The shares are not journaled: they are created again from the versions, and sent to the helpers, by the
+ * secrets' maintenance after the restart. Like the Helper's, the journal holds private keys in the clear.
+ */
+public class SharerJournal {
+    private static final byte SECRET = 1;
+    private static final byte HELPER = 2;
+    private static final byte VERSION = 3;
+    private static final byte HELPER_REMOVED = 4;
+    private static final byte VERSION_REMOVED = 5;
+    private static final byte SECRET_REMOVED = 6;
+    private final SharerImpl sharer;
+    private final Journal journal;
+    private final List<byte[]> recoveredRecords;
+
+    /**
+     * Opens the sharer's journal and reads the records to replay
+     *
+     * @param sharer    Sharer whose state is journaled
+     * @param directory journal directory
+     * @throws IOException if the journal could not be opened
+     */
+    SharerJournal(SharerImpl sharer, Path directory) throws IOException {
+        this.sharer = sharer;
+        this.journal = new Journal(directory, "sharer", this::snapshot);
+        this.recoveredRecords = journal.open();
+    }
+
+    /**
+     * Replays the journal into the sharer, and schedules the maintenance of the replayed secrets so that their shares
+     * are created and sent again. Must be called before the sharer starts journaling, since the replayed changes go
+     * through the secrets' regular methods.
+     */
+    void replaySecrets() {
+        for (byte[] record : recoveredRecords) {
+            ByteArrayInputStream in = new ByteArrayInputStream(record, 1, record.length - 1);
+            DeRecSecret.Id secretId = new DeRecSecret.Id(readByteArray(in));
+            SecretImpl secret = (SecretImpl) sharer.getSecret(secretId);
+            if (record[0] == SECRET) {
+                String description = readString(in);
+                boolean recovering = readInt(in) != 0;
+                if (secret == null) {
+                    LibIdentity libId = readKeys(in, sharer.getName(), sharer.getContact(), sharer.getAddress());
+                    sharer.installRecoveredSecret(new SecretImpl(secretId, description, libId, recovering));
+                } else {
+                    secret.isRecovering = recovering;
+                }
+            } else if (secret == null) {
+                // Records of a secret that was removed later
+                continue;
+            } else if (record[0] == HELPER) {
+                DeRecIdentity helperId = readIdentity(in);
+                DeRecPairingStatus.PairingStatus status = DeRecPairingStatus.PairingStatus.valueOf(readString(in));
+                HelperStatusImpl helperStatus = (HelperStatusImpl) secret.getHelperStatusById(helperId);
+                if (helperStatus == null) {
+                    helperStatus = (HelperStatusImpl) secret.processAddHelpersAsync(List.of(helperId), false)
+                            .get(0);
+                }
+                helperStatus.setStatus(status);
+            } else if (record[0] == VERSION) {
+                int versionNumber = readInt(in);
+                secret.addVersion(versionNumber, new VersionImpl(secret, readByteArray(in), versionNumber));
+            } else if (record[0] == HELPER_REMOVED) {
+                secret.clearOneHelper(readIdentity(in));
+            } else if (record[0] == VERSION_REMOVED) {
+                secret.deleteVersion(readInt(in));
+            } else if (record[0] == SECRET_REMOVED) {
+                sharer.removeSecret(secretId);
+            }
+        }
+        recoveredRecords.clear();
+        for (DeRecSecret secret : sharer.getSecrets()) {
+            ((SecretImpl) secret).scheduleWork(PeriodicWorkItem.secretMaintenance(secret.getSecretId()), Duration.ZERO);
+        }
+    }
+
+    /**
+     * Records a secret with its helpers and versions, as when it is added to the sharer
+     *
+     * @param secret Secret
+     * @return future completed once the records are durable
+     */
+    CompletableFuture<Void> recordSecret(SecretImpl secret) {
+        List<byte[]> records = new ArrayList<>();
+        addSecretRecords(records, secret);
+        CompletableFuture<Void> recorded = CompletableFuture.completedFuture(null);
+        for (byte[] record : records) {
+            recorded = journal.append(record);
+        }
+        // The records are written in order, so the last one is durable after all the others
+        return recorded;
+    }
+
+    CompletableFuture<Void> recordHelperStatus(HelperStatusImpl helperStatus) {
+        return journal.append(helperRecord(helperStatus));
+    }
+
+    CompletableFuture<Void> recordVersion(VersionImpl version) {
+        return journal.append(versionRecord(version));
+    }
+
+    CompletableFuture<Void> recordHelperRemoved(DeRecSecret.Id secretId, DeRecIdentity helperId) {
+        ByteArrayOutputStream out = newRecord(HELPER_REMOVED, secretId);
+        writeIdentity(out, helperId);
+        return journal.append(out.toByteArray());
+    }
+
+    CompletableFuture<Void> recordVersionRemoved(DeRecSecret.Id secretId, int versionNumber) {
+        ByteArrayOutputStream out = newRecord(VERSION_REMOVED, secretId);
+        write(out, intToByteArray(versionNumber));
+        return journal.append(out.toByteArray());
+    }
+
+    CompletableFuture<Void> recordSecretRemoved(DeRecSecret.Id secretId) {
+        return journal.append(newRecord(SECRET_REMOVED, secretId).toByteArray());
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return records recreating the sharer's current state
+     */
+    private List<byte[]> snapshot() {
+        List<byte[]> records = new ArrayList<>();
+        for (DeRecSecret secret : sharer.getSecrets()) {
+            addSecretRecords(records, (SecretImpl) secret);
+        }
+        return records;
+    }
+
+    private static void addSecretRecords(List<byte[]> records, SecretImpl secret) {
+        ByteArrayOutputStream out = newRecord(SECRET, secret.getSecretId());
+        writeString(out, secret.getDescription());
+        write(out, intToByteArray(secret.isRecovering() ? 1 : 0));
+        writeKeys(out, secret.getLibId());
+        records.add(out.toByteArray());
+        for (HelperStatusImpl helperStatus : secret.helperStatuses) {
+            records.add(helperRecord(helperStatus));
+        }
+        for (VersionImpl version : secret.versionsMap.values()) {
+            records.add(versionRecord(version));
+        }
+    }
+
+    private static byte[] helperRecord(HelperStatusImpl helperStatus) {
+        ByteArrayOutputStream out = newRecord(HELPER, helperStatus.getSecret().getSecretId());
+        writeIdentity(out, helperStatus.getId());
+        writeString(out, helperStatus.getStatus().name());
+        return out.toByteArray();
+    }
+
+    private static byte[] versionRecord(VersionImpl version) {
+        ByteArrayOutputStream out = newRecord(VERSION, version.getSecret().getSecretId());
+        write(out, intToByteArray(version.getVersionNumber()));
+        writeBytes(out, version.getProtectedValue());
+        return out.toByteArray();
+    }
+
+    /**
+     * Starts a record with its type and the secret id, the fields common to all records
+     */
+    private static ByteArrayOutputStream newRecord(byte type, DeRecSecret.Id secretId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(type);
+        writeBytes(out, secretId.getBytes());
+        return out;
+    }
+}
@@ -18,16 +18,17 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.createStoreShareRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.DeRecHelper;
 import org.derecalliance.derec.lib.api.DeRecHelperStatus;
 import org.derecalliance.derec.lib.api.DeRecIdentity;
 import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.lib.impl.commands.DeferredActionCommand;
 import org.derecalliance.derec.protobuf.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,17 +43,25 @@ public class StoreShareMessages {
      * @param secretId    Secret Id of the secret this message is being sent in the context of
      * @param publicKeyId The public key id of the message receiver
      * @param share       Share being sent
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendStoreShareRequestMessage(
+    public static CompletableFuture<Storeshare.StoreShareResponseMessage> sendStoreShareRequestMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
             int publicKeyId,
             ShareImpl share) {
         Derecmessage.DeRecMessage deRecMessage = createStoreShareRequestMessage(senderId, receiverId, secretId, share);
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), true, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        CompletableFuture<Storeshare.StoreShareResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(
+                        PendingRequests.RequestType.STORE_SHARE,
+                        receiverId,
+                        secretId,
+                        share.getVersionNumber(),
+                        receiverId.getAddress());
+        return PendingRequests.failOnDeliveryError(
+                response, MessageCoalescer.submit(deRecMessage, true, secretId, receiverId, receiverId.getAddress()));
     }
 
     /**
@@ -64,8 +73,9 @@ public class StoreShareMessages {
      * @param publicKeyId   The public key id of the message receiver
      * @param result        Handling status of the message
      * @param versionNumber Version number of the share stored
+     * @return Future of the message's delivery status
      */
-    public static void sendStoreShareResponseMessage(
+    public static CompletableFuture<Integer> sendStoreShareResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -78,9 +88,7 @@ public class StoreShareMessages {
                 MessageFactory.createStoreShareResponseMessage(senderId, receiverId, secretId, result, versionNumber);
         staticLogger.debug("Generated response: ");
         MessageParser.printDeRecMessage(deRecMessage, "Sending messsage ");
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), false, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, secretId, receiverId, receiverId.getAddress());
     }
 
     /**
@@ -118,6 +126,7 @@ public class StoreShareMessages {
             staticLogger.debug("Share: isEmpty = " + message.getShare().isEmpty());
             staticLogger.debug("Message version: " + message.getVersion());
             Storeshare.CommittedDeRecShare cds = null;
+            CompletableFuture<Void> shareStored = CompletableFuture.completedFuture(null);
             var sharerStatus = LibState.getInstance()
                     .getMeHelper()
                     .sharerStatuses
@@ -144,7 +153,9 @@ public class StoreShareMessages {
 
                 // Create a ShareImpl to store this received committedDeRecShare locally
                 ShareImpl share = new ShareImpl(secretId, message.getVersion(), sharerStatus, cds);
-                LibState.getInstance().getMeHelper().addShare(sharerStatus, secretId, message.getVersion(), share);
+                shareStored = LibState.getInstance()
+                        .getMeHelper()
+                        .addShare(sharerStatus, secretId, message.getVersion(), share);
                 staticLogger.debug("Will send sendStoreShareResponseMessage for secret " + share.getSecretId()
                         + ", version " + share.getVersionNumber());
             }
@@ -156,20 +167,37 @@ public class StoreShareMessages {
                     .getMeHelper()
                     .deleteCommittedDerecSharesBasedOnUpdatedKeepList(senderId, secretId, keepList);
 
-            // Respond back to the sharer
-            ResultOuterClass.Result result = ResultOuterClass.Result.newBuilder()
-                    .setStatus(cds == null ? ResultOuterClass.StatusEnum.FAIL : ResultOuterClass.StatusEnum.OK)
-                    .setMemo("Thank you for storing the share with me!")
-                    .build();
-
-            // Send StoreShareResponse
-            StoreShareMessages.sendStoreShareResponseMessage(
-                    receiverId,
-                    sharerStatus.getId(),
-                    secretId,
-                    LibState.getInstance().getMeHelper().getMyLibId().getPublicEncryptionKeyId(),
-                    result,
-                    message.getVersion());
+            // Respond back to the sharer once the share is durable, so that an acknowledged share survives a restart
+            boolean received = cds != null;
+            CompletableFuture<Void> durable = shareStored;
+            Runnable respond = () -> {
+                boolean stored = received && !durable.isCompletedExceptionally();
+                ResultOuterClass.Result result = ResultOuterClass.Result.newBuilder()
+                        .setStatus(stored ? ResultOuterClass.StatusEnum.OK : ResultOuterClass.StatusEnum.FAIL)
+                        .setMemo("Thank you for storing the share with me!")
+                        .build();
+
+                // Send StoreShareResponse
+                StoreShareMessages.sendStoreShareResponseMessage(
+                        receiverId,
+                        sharerStatus.getId(),
+                        secretId,
+                        LibState.getInstance().getMeHelper().getMyLibId().getPublicEncryptionKeyId(),
+                        result,
+                        message.getVersion());
+            };
+            if (durable.isDone()) {
+                respond.run();
+            } else {
+                // Respond from the sharer's lane rather than the journal's writer thread
+                ByteString sharerKey = ByteString.copyFrom(senderId.getPublicEncryptionKeyDigest());
+                durable.whenComplete((v, ex) -> {
+                    if (ex != null) {
+                        staticLogger.error("Could not journal the share of " + senderId.getName(), ex);
+                    }
+                    LibState.getInstance().getCommandQueue().forward(new DeferredActionCommand(sharerKey, respond));
+                });
+            }
 
         } catch (Exception ex) {
             staticLogger.error("Exception in handleStoreShareRequest", ex);
@@ -195,6 +223,10 @@ public class StoreShareMessages {
 
         try {
             staticLogger.debug("In handleStoreShareResponse from " + senderId.getName());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(
+                            PendingRequests.RequestType.STORE_SHARE, senderId, secretId, message.getVersion(), message);
             var secret = (SecretImpl) LibState.getInstance().getMeSharer().getSecret(secretId);
             staticLogger.debug("In handleStoreShareResponse - Secret is: " + secret);
             // Update confirmation of share storage for the Helper
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport over long-lived TCP connections, for addresses of the form derec+tcp://host:port. Each packaged message
+ * (publicKeyId followed by the encrypted message) is sent as a frame prefixed with its 4-byte length, and any number
+ * of frames are pipelined over one connection per destination. There is no per-message response: a send completes
+ * with status 200 once the frame is written to the socket, or 400 if the connection could not be established or was
+ * lost.
+ *
+ * <p>All sockets, inbound and outbound, are served by a single selector thread, so idle peers only cost a channel and
+ * an 8-byte header buffer each.
+ */
+public class TcpTransport implements Transport {
+    public static final String SCHEME = "derec+tcp";
+    private static final int FRAME_HEADER_LENGTH = 8; // frame length and publicKeyId
+    private static final int SKIP_BUFFER_SIZE = 8192; // read buffer for the bodies of rejected messages
+
+    private Selector selector = null;
+    private final ConcurrentLinkedQueue<IoTask> ioTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, OutboundConnection> connections = new ConcurrentHashMap<>();
+    private final Set<Integer> listeningPorts = ConcurrentHashMap.newKeySet();
+    Logger logger = LoggerFactory.getLogger(this.getClass().getName());
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+
+    @Override
+    public void startListening(URI address) throws IOException {
+        if (!listeningPorts.add(address.getPort())) {
+            return;
+        }
+        ensureStarted();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(address.getPort()));
+        server.configureBlocking(false);
+        runOnIoThread(() -> server.register(selector, SelectionKey.OP_ACCEPT));
+        logger.debug("Tcp transport listening on port " + address.getPort());
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(String toUri, byte[] msgBytes) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            ensureStarted();
+            URI uri = URI.create(toUri);
+            String destination = uri.getHost() + ":" + uri.getPort();
+            OutboundFrame frame = new OutboundFrame(msgBytes, future);
+            while (true) {
+                OutboundConnection connection = connections.computeIfAbsent(
+                        destination,
+                        d -> new OutboundConnection(d, new InetSocketAddress(uri.getHost(), uri.getPort())));
+                if (connection.enqueue(frame)) {
+                    break;
+                }
+                // The connection failed while we were looking it up, open a new one
+                connections.remove(destination, connection);
+            }
+        } catch (Exception ex) {
+            logger.debug("Could not send tcp message to " + toUri, ex);
+            future.complete(400);
+        }
+        return future;
+    }
+
+    /**
+     * Opens the selector and starts the I/O thread on first use
+     */
+    private synchronized void ensureStarted() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            Thread ioThread = new Thread(this::run, "derec-tcp-transport");
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+    }
+
+    /**
+     * Runs a task on the I/O thread. Channels may only be registered and have their interest changed from there.
+     */
+    private void runOnIoThread(IoTask task) {
+        ioTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select(1000);
+                IoTask task;
+                while ((task = ioTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (IOException ex) {
+                        logger.error("Exception in tcp transport task", ex);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+                long now = System.nanoTime();
+                for (OutboundConnection connection : connections.values()) {
+                    connection.checkConnectTimeout(now);
+                }
+            } catch (IOException ex) {
+                logger.error("Exception in tcp transport selector loop", ex);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Object attachment = key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    String source = ((InetSocketAddress) channel.getRemoteAddress())
+                            .getAddress()
+                            .getHostAddress();
+                    channel.register(selector, SelectionKey.OP_READ, new InboundConnection(channel, source));
+                }
+            } else if (attachment instanceof InboundConnection) {
+                ((InboundConnection) attachment).read();
+            } else if (attachment instanceof OutboundConnection) {
+                OutboundConnection connection = (OutboundConnection) attachment;
+                if (key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+        } catch (IOException ex) {
+            if (attachment instanceof OutboundConnection) {
+                ((OutboundConnection) attachment).fail(ex);
+            } else if (attachment instanceof InboundConnection) {
+                logger.debug("Closing tcp connection", ex);
+                ((InboundConnection) attachment).close();
+            } else {
+                logger.debug("Closing tcp connection", ex);
+                closeQuietly(key.channel());
+            }
+        }
+    }
+
+    private void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.debug("Exception closing channel", ex);
+        }
+    }
+
+    /**
+     * A frame waiting to be written: the length prefix followed by the packaged message
+     */
+    private static class OutboundFrame {
+        final ByteBuffer[] buffers;
+        final CompletableFuture<Integer> future;
+
+        OutboundFrame(byte[] msgBytes, CompletableFuture<Integer> future) {
+            this.buffers =
+                    new ByteBuffer[] {ByteBuffer.allocate(4).putInt(0, msgBytes.length), ByteBuffer.wrap(msgBytes)};
+            this.future = future;
+        }
+
+        boolean isWritten() {
+            return !buffers[1].hasRemaining() && !buffers[0].hasRemaining();
+        }
+    }
+
+    /**
+     * Connection to one destination, carrying all frames sent to it in order
+     */
+    private class OutboundConnection {
+        final String destination;
+        final InetSocketAddress address;
+        final ArrayDeque<OutboundFrame> writeQueue = new ArrayDeque<>();
+        final ByteBuffer discard = ByteBuffer.allocate(64);
+        boolean closed = false;
+        // Accessed only on the I/O thread
+        SocketChannel channel = null;
+        long connectDeadline = 0;
+
+        OutboundConnection(String destination, InetSocketAddress address) {
+            this.destination = destination;
+            this.address = address;
+        }
+
+        /**
+         * Queues a frame for writing
+         *
+         * @return false if the connection has already failed
+         */
+        boolean enqueue(OutboundFrame frame) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                writeQueue.add(frame);
+            }
+            runOnIoThread(() -> {
+                try {
+                    flush();
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            });
+            return true;
+        }
+
+        void flush() throws IOException {
+            if (channel == null) {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connectDeadline = System.nanoTime()
+                        + LibState.getInstance().getHttpConnectTimeout().toNanos();
+                if (channel.connect(address)) {
+                    channel.register(selector, SelectionKey.OP_READ, this);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    return;
+                }
+            }
+            if (!channel.isConnected()) {
+                return;
+            }
+            boolean pending;
+            while (true) {
+                OutboundFrame frame;
+                synchronized (this) {
+                    frame = writeQueue.peek();
+                }
+                if (frame == null) {
+                    pending = false;
+                    break;
+                }
+                channel.write(frame.buffers);
+                if (!frame.isWritten()) {
+                    pending = true;
+                    break;
+                }
+                synchronized (this) {
+                    writeQueue.poll();
+                }
+                frame.future.complete(200);
+            }
+            channel.keyFor(selector)
+                    .interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            flush();
+        }
+
+        /**
+         * Peers never write on connections we opened; reading only detects that the peer closed the connection
+         */
+        void read() throws IOException {
+            discard.clear();
+            if (channel.read(discard) < 0) {
+                throw new IOException("Connection closed by " + destination);
+            }
+        }
+
+        void checkConnectTimeout(long now) {
+            if (channel != null && channel.isConnectionPending() && now > connectDeadline) {
+                fail(new IOException("Timed out connecting to " + destination));
+            }
+        }
+
+        void fail(IOException ex) {
+            logger.debug("Tcp connection to " + destination + " failed", ex);
+            connections.remove(destination, this);
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            ArrayList<OutboundFrame> failed;
+            synchronized (this) {
+                closed = true;
+                failed = new ArrayList<>(writeQueue);
+                writeQueue.clear();
+            }
+            for (OutboundFrame frame : failed) {
+                frame.future.complete(400);
+            }
+        }
+    }
+
+    /**
+     * Connection accepted from a peer. Reads frames and hands each message to LibState as soon as it is complete.
+     */
+    private class InboundConnection {
+        final SocketChannel channel;
+        // Address of the peer, which received messages are rate limited by
+        final String source;
+        final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+        ByteBuffer body = null;
+        int publicKeyId;
+        // Bytes left of a rejected message, read into a small buffer and dropped rather than allocated
+        int skipRemaining = 0;
+        ByteBuffer skipBuffer = null;
+
+        InboundConnection(SocketChannel channel, String source) {
+            this.channel = channel;
+            this.source = source;
+        }
+
+        void read() throws IOException {
+            while (true) {
+                if (skipRemaining > 0) {
+                    skipBuffer.clear().limit(Math.min(skipRemaining, skipBuffer.capacity()));
+                    int read = channel.read(skipBuffer);
+                    if (read < 0) {
+                        closeQuietly(channel);
+                        return;
+                    }
+                    skipRemaining -= read;
+                    if (skipRemaining > 0) {
+                        return;
+                    }
+                    continue;
+                }
+                if (body == null) {
+                    if (channel.read(header) < 0) {
+                        closeQuietly(channel);
+                        return;
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    header.flip();
+                    int length = header.getInt();
+                    publicKeyId = header.getInt();
+                    header.clear();
+                    if (length < 4 || length > LibState.getInstance().getMaxInboundMessageSize()) {
+                        logger.debug("Closing tcp connection after a frame of invalid length " + length);
+                        closeQuietly(channel);
+                        return;
+                    }
+                    // Reject messages for unknown identities, over the rate limit or over the command queue's byte
+                    // budget before allocating their body. There is no response channel, so the rejected message is
+                    // skipped.
+                    int admission = LibState.getInstance().admitPublicKeyId(publicKeyId, source);
+                    if (admission == 200 && !LibState.getInstance().reserveReceivedBytes(length - 4)) {
+                        admission = 503;
+                    }
+                    if (admission != 200) {
+                        logger.debug("Dropped tcp message for publicKeyId " + publicKeyId + ", status " + admission);
+                        if (skipBuffer == null) {
+                            skipBuffer = ByteBuffer.allocate(SKIP_BUFFER_SIZE);
+                        }
+                        skipRemaining = length - 4;
+                        continue;
+                    }
+                    // The encrypted message is read straight into its own array, see ProtobufHttpServer
+                    body = ByteBuffer.allocate(length - 4);
+                }
+                if (channel.read(body) < 0) {
+                    close();
+                    return;
+                }
+                if (body.hasRemaining()) {
+                    return;
+                }
+                // There is no response channel: messages rejected by admission control are dropped. Either way the
+                // reservation of the body is used up.
+                int status = LibState.getInstance().deliverAdmittedMessage(publicKeyId, body.array());
+                if (status != 200) {
+                    logger.debug("Dropped tcp message for publicKeyId " + publicKeyId + ", status " + status);
+                }
+                body = null;
+            }
+        }
+
+        /**
+         * Closes the connection, returning the reservation of a body that was not read in full
+         */
+        void close() {
+            if (body != null) {
+                LibState.getInstance().releaseReceivedBytes(body.capacity());
+                body = null;
+            }
+            closeQuietly(channel);
+        }
+    }
+}
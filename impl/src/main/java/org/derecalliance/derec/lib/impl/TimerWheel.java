@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel holding one deadline per key. Scheduling and cancelling are O(1), and advancing the wheel
+ * only touches the slots that come due, so the cost of a tick does not depend on how many deadlines are far in the
+ * future. Deadlines are kept at the wheel's resolution and are never fired early.
+ *
+ * <p>The wheel has LEVELS levels of SLOTS slots; a deadline goes into the lowest level whose range covers it and is
+ * moved down a level each time the level below wraps around. Deadlines beyond the range of the top level are parked in
+ * the top level and re-placed when it wraps. Scheduling a key again replaces its previous deadline.
+ *
+ * @param <K> type of the keys
+ */
+public class TimerWheel<K> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private final long resolutionMillis;
+    private final long startMillis;
+    // All ticks up to and including currentTick have been processed
+    private long currentTick = 0;
+    private final ArrayList<Entry<K>>[][] wheel;
+    // The current entry of each scheduled key; entries in the wheel that are not current are stale and skipped
+    private final HashMap<K, Entry<K>> entries = new HashMap<>();
+
+    private static class Entry<K> {
+        final K key;
+        final long deadlineTick;
+
+        Entry(K key, long deadlineTick) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(Duration resolution) {
+        this.resolutionMillis = Math.max(resolution.toMillis(), 1);
+        this.startMillis = System.currentTimeMillis();
+        wheel = new ArrayList[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Schedules a key, replacing any deadline it already has
+     *
+     * @param key      key to schedule
+     * @param deadline time at which the key comes due
+     */
+    public synchronized void schedule(K key, Instant deadline) {
+        // Round up so that a deadline never fires early
+        long tick = -Math.floorDiv(startMillis - deadline.toEpochMilli(), resolutionMillis);
+        Entry<K> entry = new Entry<>(key, Math.max(tick, currentTick + 1));
+        entries.put(key, entry);
+        place(entry);
+    }
+
+    /**
+     * Schedules a key to come due after a delay, replacing any deadline it already has
+     *
+     * @param key   key to schedule
+     * @param delay delay from now
+     */
+    public void schedule(K key, Duration delay) {
+        schedule(key, Instant.now().plus(delay));
+    }
+
+    /**
+     * @param key key to cancel
+     */
+    public synchronized void cancel(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @param key key
+     * @return whether the key has a deadline
+     */
+    public synchronized boolean isScheduled(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return the number of scheduled keys
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Advances the wheel to the given time and removes the keys that have come due
+     *
+     * @param now current time
+     * @return the keys that came due, in deadline order
+     */
+    public synchronized List<K> advance(Instant now) {
+        long targetTick = Math.floorDiv(now.toEpochMilli() - startMillis, resolutionMillis);
+        ArrayList<K> due = new ArrayList<>();
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Move deadlines down from each level whose lower level has just wrapped around
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                ArrayList<Entry<K>> slot = wheel[level][slotIndex(currentTick, level)];
+                ArrayList<Entry<K>> cascaded = new ArrayList<>(slot);
+                slot.clear();
+                for (Entry<K> entry : cascaded) {
+                    if (entries.get(entry.key) == entry) {
+                        place(entry);
+                    }
+                }
+            }
+            ArrayList<Entry<K>> slot = wheel[0][slotIndex(currentTick, 0)];
+            for (Entry<K> entry : slot) {
+                if (entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                    due.add(entry.key);
+                }
+            }
+            slot.clear();
+        }
+        return due;
+    }
+
+    private void place(Entry<K> entry) {
+        long delta = entry.deadlineTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                wheel[level][slotIndex(entry.deadlineTick, level)].add(entry);
+                return;
+            }
+        }
+        // Too far in the future: park at the end of the top level, and re-place it when that slot is cascaded
+        long parkedTick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        wheel[LEVELS - 1][slotIndex(parkedTick, LEVELS - 1)].add(entry);
+    }
+
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    }
+}
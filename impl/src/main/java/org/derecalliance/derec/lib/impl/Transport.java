@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves packaged DeRec messages between peers. The library sends through the transport configured in LibState
+ * (SchemeRoutingTransport by default, which picks HttpTransport or TcpTransport by address scheme), and the transport
+ * hands every message it receives to LibState.deliverReceivedMessage, which enqueues it on the command queue if
+ * admission control lets it through. Transports that read the publicKeyId prefix on its own should instead check it,
+ * together with the sender's address that messages are rate limited by, with LibState.admitPublicKeyId before reading
+ * the rest of the message, and then call LibState.deliverAdmittedMessage. Transports that can answer the sender
+ * should report the status they return.
+ */
+public interface Transport {
+    /**
+     * Starts receiving messages addressed to the given address. Called from LibState.init for each sharer or helper
+     * initialized in this process.
+     *
+     * @param address address to receive messages at
+     * @throws IOException if the transport could not listen at the address
+     */
+    void startListening(URI address) throws IOException;
+
+    /**
+     * Sends a packaged message without blocking the caller.
+     *
+     * @param toUri    address of the receiver
+     * @param msgBytes packaged message bytes
+     * @return future of the delivery status, using HTTP status codes (200 when delivered)
+     */
+    CompletableFuture<Integer> send(String toUri, byte[] msgBytes);
+}
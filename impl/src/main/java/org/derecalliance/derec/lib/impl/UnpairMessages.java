@@ -18,15 +18,14 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.createUnpairRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import com.google.protobuf.ByteString;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.DeRecHelper;
 import org.derecalliance.derec.lib.api.DeRecIdentity;
 import org.derecalliance.derec.lib.api.DeRecPairingStatus;
 import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.lib.impl.commands.DeferredActionCommand;
 import org.derecalliance.derec.protobuf.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,16 +40,19 @@ public class UnpairMessages {
      * @param secretId    Secret Id of the secret this message is being sent in the context of
      * @param publicKeyId The public key id of the message receiver
      * @param memo        Reason for unpairing
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendUnpairRequestMessage(
+    public static CompletableFuture<Unpair.UnpairResponseMessage> sendUnpairRequestMessage(
             DeRecIdentity senderId, DeRecIdentity receiverId, DeRecSecret.Id secretId, int publicKeyId, String memo) {
         Logger staticLogger = LoggerFactory.getLogger(UnpairMessages.class.getName());
         staticLogger.debug("In sendUnpairRequestMessage");
         Derecmessage.DeRecMessage deRecMessage = createUnpairRequestMessage(senderId, receiverId, secretId, memo);
 
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), true, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        CompletableFuture<Unpair.UnpairResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(PendingRequests.RequestType.UNPAIR, receiverId, secretId, 0, receiverId.getAddress());
+        return PendingRequests.failOnDeliveryError(
+                response, MessageCoalescer.submit(deRecMessage, true, secretId, receiverId, receiverId.getAddress()));
     }
 
     /**
@@ -61,8 +63,9 @@ public class UnpairMessages {
      * @param secretId    Secret Id of the secret this message is being sent in the context of
      * @param publicKeyId The public key id of the message receiver
      * @param result      Handling status of the message
+     * @return Future of the message's delivery status
      */
-    public static void sendUnpairResponseMessage(
+    public static CompletableFuture<Integer> sendUnpairResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -75,9 +78,7 @@ public class UnpairMessages {
                 MessageFactory.createUnpairResponseMessage(senderId, receiverId, secretId, result);
         staticLogger.debug("Generated response: ");
         MessageParser.printDeRecMessage(deRecMessage, "Sending messsage ");
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), false, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, secretId, receiverId, receiverId.getAddress());
     }
 
     /**
@@ -128,20 +129,21 @@ public class UnpairMessages {
                         .get(secretId);
                 // Set the pairing status of the Sharer to PENDING_REMOVAL
                 sharerToUnpair.setPairingStatus(DeRecPairingStatus.PairingStatus.PENDING_REMOVAL);
-                // Remove the sharer after 20 seconds
-                Timer timer = new Timer();
-                TimerTask task = new TimerTask() {
-                    @Override
-                    public void run() {
-                        staticLogger.debug("Timer expired in Unpair messages");
-                        staticLogger.debug("Sharer statuses are:"
-                                + LibState.getInstance().getMeHelper().sharerStatusesToString());
-                        staticLogger.debug("Calling removeSharer for: " + senderId.getName() + "key: "
-                                + senderId.getPublicEncryptionKey() + "secretid: " + secretId);
-                        LibState.getInstance().getMeHelper().removeSharer(senderId, secretId);
-                    }
+                LibState.getInstance().getMeHelper().journalSharerStatus(sharerToUnpair, secretId);
+                // Remove the sharer after the pending removal delay, in the lane of the sharer's messages
+                Runnable removeSharer = () -> {
+                    staticLogger.debug("Pending removal expired in Unpair messages");
+                    staticLogger.debug("Sharer statuses are:"
+                            + LibState.getInstance().getMeHelper().sharerStatusesToString());
+                    staticLogger.debug("Calling removeSharer for: " + senderId.getName() + "key: "
+                            + senderId.getPublicEncryptionKey() + "secretid: " + secretId);
+                    LibState.getInstance().getMeHelper().removeSharer(senderId, secretId);
                 };
-                timer.schedule(task, 20000);
+                ByteString sharerKey = ByteString.copyFrom(senderId.getPublicEncryptionKeyDigest());
+                LibState.getInstance()
+                        .scheduleCommand(
+                                new DeferredActionCommand(sharerKey, removeSharer),
+                                LibState.getInstance().getPendingRemovalDelay());
             }
             ResultOuterClass.Result result = ResultOuterClass.Result.newBuilder()
                     .setStatus(requestOk ? ResultOuterClass.StatusEnum.OK : ResultOuterClass.StatusEnum.FAIL)
@@ -178,6 +180,9 @@ public class UnpairMessages {
 
         try {
             staticLogger.debug("In handleUnpairResponse from " + senderId.getName());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(PendingRequests.RequestType.UNPAIR, senderId, secretId, 0, message);
             // nothing to do
         } catch (Exception ex) {
             staticLogger.error("Exception in handleVerifyShareResponse", ex);
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+/**
+ * Which versions of a secret are verified with the helpers
+ */
+public enum VerificationMode {
+    // Every retained version is verified with every helper
+    ALL_VERSIONS,
+    // Only the highest protected version is verified. Newer versions are verified once they are protected, which is
+    // when the older ones are dropped.
+    LATEST_PROTECTED
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import org.derecalliance.derec.lib.api.DeRecHelperStatus;
+
+/**
+ * Decides how often each helper is verified and when an unresponsive helper becomes REFUSED or FAILED. For every
+ * helper it keeps an exponentially weighted moving average (EWMA) of the verification response latency and of the
+ * success rate. A helper that keeps answering correctly is verified on an interval that doubles with each success, up
+ * to maxVerificationInterval; a helper that missed or failed a verification is verified every verificationInterval
+ * until it answers again. The pairing status changes once a helper has been failing for helperRefusedAfter
+ * (helperFailedAfter) of wall-clock time, and only after at least minUnansweredVerifications unanswered requests, so
+ * that a helper verified rarely is not failed on the strength of a single missed request.
+ */
+public class VerificationPolicy {
+    // Weight of the newest sample in the EWMAs
+    private static final double EWMA_ALPHA = 0.2;
+    // Helpers whose success rate is below this are verified on the short interval
+    private static final double STABLE_SUCCESS_RATE = 0.9;
+    // The verification interval is never shorter than this many times the helper's average response latency, so
+    // that a slow helper has time to answer before the next request counts the previous one as unanswered
+    private static final int LATENCY_MULTIPLIER = 4;
+
+    /**
+     * Outcome of evaluating a helper's verification history
+     */
+    public enum Verdict {
+        HEALTHY,
+        REFUSED,
+        FAILED
+    }
+
+    /**
+     * Verification history of one helper of one secret
+     */
+    public static class Stats {
+        double ewmaLatencyMillis = 0;
+        double ewmaSuccessRate = 1.0;
+        int consecutiveSuccesses = 0;
+        int consecutiveUnanswered = 0;
+        // Time the first request of the current run of failed verifications was sent
+        Instant failingSince = null;
+        // Outstanding requests by version number, with the time they were sent
+        final HashMap<Integer, Instant> outstanding = new HashMap<>();
+
+        public synchronized double getEwmaLatencyMillis() {
+            return ewmaLatencyMillis;
+        }
+
+        public synchronized double getEwmaSuccessRate() {
+            return ewmaSuccessRate;
+        }
+
+        synchronized void recordFailure(Instant sentAt) {
+            ewmaSuccessRate = (1 - EWMA_ALPHA) * ewmaSuccessRate;
+            consecutiveSuccesses = 0;
+            consecutiveUnanswered++;
+            if (failingSince == null) {
+                failingSince = sentAt;
+            }
+        }
+    }
+
+    /**
+     * Records a verification request to a helper. If the previous request for the same version has not been
+     * answered, it is counted as failed.
+     *
+     * @param helperStatus  Helper the request is for
+     * @param versionNumber Version being verified
+     * @param now           time the request is sent
+     */
+    public void recordRequest(DeRecHelperStatus helperStatus, int versionNumber, Instant now) {
+        Stats stats = ((HelperStatusImpl) helperStatus).getVerificationStats();
+        synchronized (stats) {
+            Instant unansweredSentAt = stats.outstanding.put(versionNumber, now);
+            if (unansweredSentAt != null) {
+                stats.recordFailure(unansweredSentAt);
+            }
+        }
+    }
+
+    /**
+     * Records a verification response from a helper
+     *
+     * @param helperStatus  Helper that responded
+     * @param versionNumber Version that was verified
+     * @param now           time the response was received
+     * @param verified      whether the helper proved it still stores the share
+     */
+    public void recordResponse(DeRecHelperStatus helperStatus, int versionNumber, Instant now, boolean verified) {
+        Stats stats = ((HelperStatusImpl) helperStatus).getVerificationStats();
+        synchronized (stats) {
+            Instant sentAt = stats.outstanding.remove(versionNumber);
+            if (sentAt != null) {
+                double latencyMillis = Duration.between(sentAt, now).toMillis();
+                stats.ewmaLatencyMillis = stats.ewmaLatencyMillis == 0
+                        ? latencyMillis
+                        : EWMA_ALPHA * latencyMillis + (1 - EWMA_ALPHA) * stats.ewmaLatencyMillis;
+            }
+            if (verified) {
+                stats.ewmaSuccessRate = EWMA_ALPHA + (1 - EWMA_ALPHA) * stats.ewmaSuccessRate;
+                stats.consecutiveSuccesses++;
+                stats.consecutiveUnanswered = 0;
+                stats.failingSince = null;
+            } else {
+                stats.recordFailure(sentAt != null ? sentAt : now);
+            }
+        }
+    }
+
+    /**
+     * @param helperStatus Helper
+     * @return how long to wait before verifying the helper again
+     */
+    public Duration nextVerificationDelay(DeRecHelperStatus helperStatus) {
+        Stats stats = ((HelperStatusImpl) helperStatus).getVerificationStats();
+        LibState libState = LibState.getInstance();
+        long minMillis = libState.getVerificationInterval().toMillis();
+        long maxMillis = Math.max(libState.getMaxVerificationInterval().toMillis(), minMillis);
+        long delayMillis;
+        synchronized (stats) {
+            if (stats.consecutiveUnanswered > 0 || stats.ewmaSuccessRate < STABLE_SUCCESS_RATE) {
+                delayMillis = minMillis;
+            } else {
+                int doublings = Math.min(stats.consecutiveSuccesses, 30);
+                delayMillis = Math.min(minMillis << doublings, maxMillis);
+            }
+            delayMillis = Math.max(delayMillis, (long) (LATENCY_MULTIPLIER * stats.ewmaLatencyMillis));
+        }
+        return Duration.ofMillis(delayMillis);
+    }
+
+    /**
+     * Evaluates whether a helper has been failing its verifications long enough to change its pairing status
+     *
+     * @param helperStatus Helper
+     * @param now          current time
+     * @return FAILED or REFUSED if the helper has been failing for helperFailedAfter or helperRefusedAfter, otherwise
+     *     HEALTHY
+     */
+    public Verdict evaluate(DeRecHelperStatus helperStatus, Instant now) {
+        Stats stats = ((HelperStatusImpl) helperStatus).getVerificationStats();
+        LibState libState = LibState.getInstance();
+        synchronized (stats) {
+            if (stats.failingSince == null || stats.consecutiveUnanswered < libState.getMinUnansweredVerifications()) {
+                return Verdict.HEALTHY;
+            }
+            Duration failingFor = Duration.between(stats.failingSince, now);
+            if (failingFor.compareTo(libState.getHelperFailedAfter()) > 0) {
+                return Verdict.FAILED;
+            } else if (failingFor.compareTo(libState.getHelperRefusedAfter()) > 0) {
+                return Verdict.REFUSED;
+            }
+            return Verdict.HEALTHY;
+        }
+    }
+}
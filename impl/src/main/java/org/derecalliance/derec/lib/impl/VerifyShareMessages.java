@@ -18,10 +18,10 @@
 package org.derecalliance.derec.lib.impl;
 
 import static org.derecalliance.derec.lib.impl.MessageFactory.createVerifyShareRequestMessage;
-import static org.derecalliance.derec.lib.impl.MessageFactory.getPackagedBytes;
-import static org.derecalliance.derec.lib.impl.ProtobufHttpClient.sendHttpRequest;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
 import org.derecalliance.derec.lib.api.DeRecIdentity;
 import org.derecalliance.derec.lib.api.DeRecSecret;
 import org.derecalliance.derec.protobuf.Derecmessage;
@@ -40,9 +40,10 @@ public class VerifyShareMessages {
      * @param secretId      Secret Id of the secret this message is being sent in the context of
      * @param publicKeyId   The public key id of the message receiver
      * @param versionNumber Version number of the share being verified
-     * @param nonce         Challenge nonce
+     * @param nonce         Challenge nonce, which the response echoes and is correlated by
+     * @return Future of the response message; see PendingRequests
      */
-    public static void sendVerifyShareRequestMessage(
+    public static CompletableFuture<Verify.VerifyShareResponseMessage> sendVerifyShareRequestMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -51,9 +52,16 @@ public class VerifyShareMessages {
             byte[] nonce) {
         Derecmessage.DeRecMessage deRecMessage =
                 createVerifyShareRequestMessage(senderId, receiverId, secretId, versionNumber, nonce);
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), true, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        CompletableFuture<Verify.VerifyShareResponseMessage> response = LibState.getInstance()
+                .getPendingRequests()
+                .register(
+                        PendingRequests.RequestType.VERIFY_SHARE,
+                        receiverId,
+                        secretId,
+                        nonceDiscriminator(nonce),
+                        receiverId.getAddress());
+        return PendingRequests.failOnDeliveryError(
+                response, MessageCoalescer.submit(deRecMessage, true, secretId, receiverId, receiverId.getAddress()));
     }
 
     /**
@@ -67,8 +75,9 @@ public class VerifyShareMessages {
      * @param versionNumber Version number of the share being verified
      * @param nonce         Challenge nonce
      * @param hash          Challenge nonce + CommittedDeRecShare hash
+     * @return Future of the message's delivery status
      */
-    public static void sendVerifyShareResponseMessage(
+    public static CompletableFuture<Integer> sendVerifyShareResponseMessage(
             DeRecIdentity senderId,
             DeRecIdentity receiverId,
             DeRecSecret.Id secretId,
@@ -83,9 +92,18 @@ public class VerifyShareMessages {
                 senderId, receiverId, secretId, result, versionNumber, nonce, hash);
         staticLogger.debug("Generated sendVerifyShareResponseMessage: ");
         MessageParser.printDeRecMessage(deRecMessage, "Sending sendVerifyShareResponseMessage ");
-        byte[] msgBytes = getPackagedBytes(
-                receiverId.getPublicEncryptionKeyId(), deRecMessage.toByteArray(), false, secretId, receiverId, true);
-        sendHttpRequest(receiverId.getAddress(), msgBytes);
+        return MessageCoalescer.submit(deRecMessage, false, secretId, receiverId, receiverId.getAddress());
+    }
+
+    /**
+     * Gets the PendingRequests discriminator of a verification request. Requests are correlated by their nonce rather
+     * than the version, so that a late response to an earlier request does not complete a newer one.
+     *
+     * @param nonce Challenge nonce
+     * @return the nonce's first 8 bytes as a long, or 0 if it is shorter
+     */
+    static long nonceDiscriminator(byte[] nonce) {
+        return nonce.length >= Long.BYTES ? ByteBuffer.wrap(nonce).getLong() : 0;
     }
 
     /**
@@ -197,6 +215,14 @@ public class VerifyShareMessages {
 
         try {
             staticLogger.debug("In handleVerifyShareResponse from " + senderId.getName());
+            LibState.getInstance()
+                    .getPendingRequests()
+                    .complete(
+                            PendingRequests.RequestType.VERIFY_SHARE,
+                            senderId,
+                            secretId,
+                            nonceDiscriminator(message.getNonce().toByteArray()),
+                            message);
             var secret = (SecretImpl) LibState.getInstance().getMeSharer().getSecret(secretId);
             staticLogger.debug("In handleVerifyShareResponse - Secret is: " + secret);
             int versionNumber = message.getVersion();
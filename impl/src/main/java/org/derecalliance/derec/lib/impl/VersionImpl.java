@@ -21,8 +21,10 @@ import static org.derecalliance.derec.lib.impl.VerifyShareMessages.calculateVeri
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 import org.derecalliance.derec.lib.api.*;
 import org.derecalliance.derec.lib.api.DeRecHelperStatus;
@@ -38,7 +40,6 @@ public class VersionImpl implements DeRecVersion {
     byte[] protectedValue;
     boolean isProtectedStatus;
     HashMap<DeRecHelperStatus, ShareImpl> sharesMap;
-    HashMap<DeRecHelperStatus, Integer> unsuccessfulVerificationRequests;
     Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
     public VersionImpl(SecretImpl secret, byte[] protectedValue, int versionNumber) {
@@ -46,7 +47,6 @@ public class VersionImpl implements DeRecVersion {
         this.protectedValue = protectedValue;
         this.versionNumber = versionNumber;
         this.sharesMap = new HashMap<>();
-        unsuccessfulVerificationRequests = new HashMap<>();
         this.isProtectedStatus = false;
     }
 
@@ -126,7 +126,7 @@ public class VersionImpl implements DeRecVersion {
 
                 logger.debug("Creating shares for version " + versionNumber);
                 List<byte[]> committedDeRecSharesList = LibState.getInstance()
-                        .getDerecCryptoImpl()
+                        .getCryptoProvider()
                         .share(secret.getSecretId().getBytes(), versionNumber, valueToProtect, numPairedHelpers, (int)
                                 Math.max(
                                         (double) numPairedHelpers / 2,
@@ -146,10 +146,19 @@ public class VersionImpl implements DeRecVersion {
                             + drs.getVersion());
                     ShareImpl share = new ShareImpl(this.secret.getSecretId(), versionNumber, myStatus, cds);
                     sharesMap.put(pairedHelpers.get(i), share);
-                    if (!unsuccessfulVerificationRequests.containsKey(pairedHelpers.get(i))) {
-                        unsuccessfulVerificationRequests.put(pairedHelpers.get(i), 0);
-                    }
+                    // Send the new share, and start verifying it, on the next tick
+                    secret.scheduleWork(
+                            PeriodicWorkItem.sendShare(secret.getSecretId(), versionNumber, pairedHelpers.get(i)),
+                            Duration.ZERO);
+                    secret.scheduleWork(
+                            PeriodicWorkItem.verifyShare(secret.getSecretId(), versionNumber, pairedHelpers.get(i)),
+                            Duration.ZERO);
                 }
+            } else {
+                // Not enough helpers yet, try again later
+                secret.scheduleWork(
+                        PeriodicWorkItem.secretMaintenance(secret.getSecretId()),
+                        LibState.getInstance().getPeriodicWorkInterval());
             }
             logger.debug("Created shares. Sharesmap size: " + sharesMap.size());
         } catch (Exception ex) {
@@ -158,84 +167,156 @@ public class VersionImpl implements DeRecVersion {
     }
 
     /**
-     * Sends StoreShareRequest message to all paired Helpers.
+     * Sends StoreShareRequest message to a paired Helper if it has not confirmed its share yet. A share that was sent
+     * and not acknowledged is only re-sent once its acknowledgement timeout has expired, with backoff, so that in the
+     * normal case each helper receives the share once.
+     *
+     * @param helperStatus Helper to send the share to
      */
-    void sendSharesToPairedHelpers() {
-        logger.debug("in sendSharesToPairedHelpers - isPRotected=" + isProtected());
-        if (sharesMap.isEmpty()) {
-            createShares();
-        } else {
-            logger.debug("Sharesmap is not empty - not creating");
+    void sendShareToHelper(DeRecHelperStatus helperStatus) {
+        ShareImpl share = sharesMap.get(helperStatus);
+        if (share == null) {
+            // The shares were recreated without this helper
+            return;
         }
-        for (HashMap.Entry<DeRecHelperStatus, ShareImpl> entry : sharesMap.entrySet()) {
-            ShareImpl share = entry.getValue();
-            if (!share.isConfirmed()) {
-                logger.debug("************************************************ ************ *Sending share to "
-                        + entry.getKey().getId().getName());
-
-                StoreShareMessages.sendStoreShareRequestMessage(
+        if (share.isConfirmed()) {
+            logger.debug("ShareImpl is already confirmed");
+            return;
+        }
+        PeriodicWorkItem item = PeriodicWorkItem.sendShare(secret.getSecretId(), versionNumber, helperStatus);
+        Instant now = Instant.now();
+        Instant resendTime = share.getResendTime();
+        if (resendTime != null && now.isBefore(resendTime)) {
+            // Still waiting for the helper to acknowledge the previous send
+            secret.scheduleWork(item, Duration.between(now, resendTime));
+            return;
+        }
+        if (!isReachable(helperStatus)) {
+            logger.debug("Not sending share to " + helperStatus.getId().getName() + ": helper is backing off");
+            secret.scheduleWork(item, LibState.getInstance().getPeriodicWorkInterval());
+            return;
+        }
+        logger.debug(
+                "Sending share to " + helperStatus.getId().getName() + ", attempt " + (share.getSendAttempts() + 1));
+        share.recordSend(now);
+        StoreShareMessages.sendStoreShareRequestMessage(
                         secret.getLibId().getMyId(),
-                        entry.getKey().getId(),
+                        helperStatus.getId(),
                         secret.getSecretId(),
                         secret.getLibId().getPublicEncryptionKeyId(),
-                        share);
-            } else {
-                logger.debug("ShareImpl is already confirmed");
-            }
-        }
+                        share)
+                .whenComplete((response, ex) -> {
+                    // A request superseded by a later send of the share is not a failure; the later send is still in
+                    // flight
+                    if (ex != null && !(ex instanceof CancellationException)) {
+                        share.recordSendFailed();
+                    }
+                });
+        secret.scheduleWork(item, Duration.between(now, share.getResendTime()));
     }
 
     /**
-     * Sends VerifyShareMessage to all paired Helpers. Updates the pairing status of a Helper based on their
-     * responsiveness.
+     * Sends VerifyShareMessage to a paired Helper and schedules the next verification as decided by the
+     * VerificationPolicy. Updates the pairing status of the Helper based on its responsiveness.
+     *
+     * @param helperStatus Helper to verify
      */
-    void sendVerificationRequestsToPairedHelpers() {
-        logger.info("In sendVerificationRequestsToPairedHelpers");
-        for (HashMap.Entry<DeRecHelperStatus, ShareImpl> entry : sharesMap.entrySet()) {
-
-            long rand = new Random().nextLong();
-            byte[] nonce = ByteBuffer.allocate(8).putLong(rand).array();
+    void sendVerificationRequestToHelper(DeRecHelperStatus helperStatus) {
+        logger.info("In sendVerificationRequestToHelper");
+        if (!sharesMap.containsKey(helperStatus)) {
+            // The shares were recreated without this helper
+            return;
+        }
+        VerificationPolicy policy = LibState.getInstance().getVerificationPolicy();
+        if (!isVerified()) {
+            // Checked again on the short interval, so that verification starts soon after the version is protected
+            logger.debug("Not verifying unprotected version " + versionNumber + " with "
+                    + helperStatus.getId().getName());
+            secret.scheduleWork(
+                    PeriodicWorkItem.verifyShare(secret.getSecretId(), versionNumber, helperStatus),
+                    LibState.getInstance().getVerificationInterval());
+            return;
+        }
+        Instant now = Instant.now();
+        long rand = new Random().nextLong();
+        byte[] nonce = ByteBuffer.allocate(8).putLong(rand).array();
 
-            ShareImpl share = entry.getValue();
+        // Record the request even if it is not sent, so that an unreachable helper still moves to REFUSED and then
+        // FAILED
+        policy.recordRequest(helperStatus, versionNumber, now);
+        if (isReachable(helperStatus)) {
             VerifyShareMessages.sendVerifyShareRequestMessage(
                     secret.getLibId().getMyId(),
-                    entry.getKey().getId(),
+                    helperStatus.getId(),
                     secret.getSecretId(),
                     secret.getLibId().getPublicEncryptionKeyId(),
                     versionNumber,
                     nonce);
-            logger.debug("Sent VerifyShareRequestMessage to "
-                    + entry.getKey().getId().getName());
-            // Every time we send a verification request, increment the unsuccessful verification count by 1.
-            unsuccessfulVerificationRequests.put(
-                    entry.getKey(), unsuccessfulVerificationRequests.get(entry.getKey()) + 1);
-            logger.info("Incremented unsuccessfulVerificationRequests by 1 for "
-                    + entry.getKey().getId().getName());
+            logger.debug(
+                    "Sent VerifyShareRequestMessage to " + helperStatus.getId().getName());
+        } else {
+            logger.debug("Not sending VerifyShareRequestMessage to "
+                    + helperStatus.getId().getName() + ": helper is backing off");
+        }
 
-            if (unsuccessfulVerificationRequests.get(entry.getKey())
-                    > LibState.getInstance().thresholdToMarkHelperFailed) {
-                // If the number of unanswered/failed verification requests is greater than
-                // thresholdToMarkHelperFailed, set the helper status to FAILED, and recalculate shares.
-                if (entry.getKey().getStatus() == DeRecPairingStatus.PairingStatus.REFUSED) {
-                    ((HelperStatusImpl) entry.getKey()).setStatus(DeRecPairingStatus.PairingStatus.FAILED);
-                    secret.helperStatusChanged();
-                }
+        VerificationPolicy.Verdict verdict = policy.evaluate(helperStatus, now);
+        if (verdict == VerificationPolicy.Verdict.FAILED) {
+            // The helper has been failing verifications for longer than helperFailedAfter: set the helper status to
+            // FAILED, and recalculate shares. A helper verified on a long interval can get here without having been
+            // REFUSED first.
+            if (helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.REFUSED
+                    || helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.PAIRED) {
+                ((HelperStatusImpl) helperStatus).setStatus(DeRecPairingStatus.PairingStatus.FAILED);
+                secret.helperStatusChanged();
                 createShares();
-                logger.debug("HELPER FAILED VERIFICATION");
-            } else if (unsuccessfulVerificationRequests.get(entry.getKey())
-                    > LibState.getInstance().thresholdToMarkHelperRefused) {
-                // If the number of unanswered/failed verification requests is greater than
-                // thresholdToMarkHelperRefused, set that helper's pairing
-                // status to REFUSED. We hope that the helper can come back.
-                if (entry.getKey().getStatus() == DeRecPairingStatus.PairingStatus.PAIRED) {
-                    ((HelperStatusImpl) entry.getKey()).setStatus(DeRecPairingStatus.PairingStatus.REFUSED);
-                }
-                // createShares(); we don't recreate shares here
-                logger.debug("HELPER REFUSED VERIFICATION");
             }
+            logger.debug("HELPER FAILED VERIFICATION");
+        } else if (verdict == VerificationPolicy.Verdict.REFUSED) {
+            // The helper has been failing verifications for longer than helperRefusedAfter: set that helper's
+            // pairing status to REFUSED. We hope that the helper can come back.
+            if (helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.PAIRED) {
+                ((HelperStatusImpl) helperStatus).setStatus(DeRecPairingStatus.PairingStatus.REFUSED);
+            }
+            // createShares(); we don't recreate shares here
+            logger.debug("HELPER REFUSED VERIFICATION");
+        }
+        // Keep verifying a REFUSED helper, so that it either comes back or is declared FAILED
+        if (helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.PAIRED
+                || helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.REFUSED) {
+            secret.scheduleWork(
+                    PeriodicWorkItem.verifyShare(secret.getSecretId(), versionNumber, helperStatus),
+                    policy.nextVerificationDelay(helperStatus));
         }
     }
 
+    /**
+     * Decides whether this version is verified with the helpers. In LATEST_PROTECTED mode only the highest protected
+     * version is verified; newer versions are not verified until they are protected, which drops the older ones from
+     * the keepList. Until some version is protected, every version is verified.
+     *
+     * @return whether to verify this version
+     */
+    boolean isVerified() {
+        if (LibState.getInstance().getVerificationMode() == VerificationMode.ALL_VERSIONS) {
+            return true;
+        }
+        int highestProtectedVersion = secret.getHighestProtectedVersionNumber();
+        return highestProtectedVersion == 0 || versionNumber == highestProtectedVersion;
+    }
+
+    /**
+     * Checks whether messages to a Helper are currently being sent, or failing fast because the Helper's address has
+     * its circuit open.
+     *
+     * @param helperStatus Helper to check
+     * @return Whether the Helper's address is available
+     */
+    boolean isReachable(DeRecHelperStatus helperStatus) {
+        return LibState.getInstance()
+                .getDestinationHealthTracker()
+                .isAvailable(helperStatus.getId().getAddress());
+    }
+
     /**
      * Updates whether a Helper has confirmed storage of a share.
      *
@@ -245,6 +326,11 @@ public class VersionImpl implements DeRecVersion {
     public void updateConfirmationShareStorage(DeRecHelperStatus helperStatus, boolean status) {
         ShareImpl share = sharesMap.get(helperStatus);
         share.updateConfirmation(status);
+        if (!status) {
+            // The helper lost its share, send it again
+            secret.scheduleWork(
+                    PeriodicWorkItem.sendShare(secret.getSecretId(), versionNumber, helperStatus), Duration.ZERO);
+        }
         secret.updateKeepListIfNeeded();
     }
 
@@ -291,11 +377,12 @@ public class VersionImpl implements DeRecVersion {
                 "Expected hash: V(" + versionNumber + ") " + Base64.getEncoder().encodeToString(expectedHash));
         logger.debug("Received hash: V(" + messageVersionNumber + ") "
                 + Base64.getEncoder().encodeToString(messageHash));
+        VerificationPolicy policy = LibState.getInstance().getVerificationPolicy();
         if (Arrays.equals(expectedHash, messageHash)) {
             // Re-verify that this share is still confirmed
             updateConfirmationShareStorage(helperStatus, true);
             logger.debug("hashes matched");
-            unsuccessfulVerificationRequests.put(helperStatus, 0);
+            policy.recordResponse(helperStatus, messageVersionNumber, Instant.now(), true);
             if (helperStatus.getStatus() == DeRecPairingStatus.PairingStatus.REFUSED) {
                 ((HelperStatusImpl) helperStatus).setStatus(DeRecPairingStatus.PairingStatus.PAIRED);
             }
@@ -304,6 +391,7 @@ public class VersionImpl implements DeRecVersion {
         } else {
             updateConfirmationShareStorage(helperStatus, false);
             logger.debug("hashes not matched");
+            policy.recordResponse(helperStatus, messageVersionNumber, Instant.now(), false);
             return false;
         }
     }
@@ -78,4 +78,9 @@ public class AddHelpersCommand<T extends DeRecHelperStatus> implements Command {
     public List<CompletableFuture<T>> getFutures() {
         return futures.values().stream().toList();
     }
+
+    @Override
+    public Object getPartitionKey() {
+        return secret.getSecretId();
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl.commands;
+
+import org.derecalliance.derec.lib.impl.Command;
+import org.derecalliance.derec.lib.impl.CommandClass;
+
+/**
+ * Runs a deferred action, such as dropping a removed helper after its grace period, in the lane of the secret (or
+ * sharer) it belongs to. Scheduled with LibState.scheduleCommand.
+ */
+public class DeferredActionCommand implements Command {
+    private final Object partitionKey;
+    private final Runnable action;
+
+    /**
+     * @param partitionKey partition key of the state the action touches, see Command.getPartitionKey
+     * @param action       action to run
+     */
+    public DeferredActionCommand(Object partitionKey, Runnable action) {
+        this.partitionKey = partitionKey;
+        this.action = action;
+    }
+
+    @Override
+    public void execute() {
+        action.run();
+    }
+
+    @Override
+    public Object getPartitionKey() {
+        return partitionKey;
+    }
+
+    @Override
+    public CommandClass getCommandClass() {
+        return CommandClass.PERIODIC;
+    }
+}
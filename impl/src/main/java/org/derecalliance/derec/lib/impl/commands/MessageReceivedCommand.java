@@ -17,18 +17,58 @@
 
 package org.derecalliance.derec.lib.impl.commands;
 
+import java.nio.ByteBuffer;
 import org.derecalliance.derec.lib.impl.Command;
+import org.derecalliance.derec.lib.impl.CommandClass;
 import org.derecalliance.derec.lib.impl.ProtobufHttpServer;
 
 public class MessageReceivedCommand implements Command {
     private final byte[] msgBytes;
+    // Set when the transport read the publicKeyId prefix separately; msgBytes then holds only the encrypted message
+    private final Integer publicKeyId;
 
     public MessageReceivedCommand(byte[] msgBytes) {
         this.msgBytes = msgBytes;
+        this.publicKeyId = null;
+    }
+
+    public MessageReceivedCommand(int publicKeyId, byte[] encryptedMessage) {
+        this.msgBytes = encryptedMessage;
+        this.publicKeyId = publicKeyId;
     }
 
     @Override
     public void execute() {
-        ProtobufHttpServer.processReceivedMesssage(msgBytes);
+        if (publicKeyId == null) {
+            ProtobufHttpServer.processReceivedMesssage(msgBytes);
+        } else {
+            ProtobufHttpServer.processReceivedMesssage(publicKeyId, msgBytes);
+        }
+    }
+
+    /**
+     * Whether the message is a request or a response is only known after it has been decrypted
+     */
+    @Override
+    public CommandClass getCommandClass() {
+        return CommandClass.INBOUND_REQUEST;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return msgBytes.length;
+    }
+
+    /**
+     * Messages are handed to the InboundDecoder from the lane of the publicKeyId they are sent to, so that messages to
+     * one identity are passed on in the order they arrived
+     */
+    @Override
+    public Object getPartitionKey() {
+        return publicKeyId != null ? publicKeyId : partitionKeyFromPrefix();
+    }
+
+    private Object partitionKeyFromPrefix() {
+        return msgBytes.length < 4 ? null : ByteBuffer.wrap(msgBytes).getInt();
     }
 }
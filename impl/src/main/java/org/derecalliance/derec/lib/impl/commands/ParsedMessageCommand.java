@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl.commands;
+
+import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.lib.impl.Command;
+import org.derecalliance.derec.lib.impl.CommandClass;
+import org.derecalliance.derec.lib.impl.MessageParser;
+import org.derecalliance.derec.protobuf.Derecmessage;
+
+/**
+ * Handles a received message after it has been decrypted and parsed. Runs in the lane of the secret the message is
+ * about; on the helper side, in the lane of the sharer that sent it.
+ */
+public class ParsedMessageCommand implements Command {
+    private final int publicKeyId;
+    private final Derecmessage.DeRecMessage message;
+    private final Object partitionKey;
+    private final CommandClass commandClass;
+
+    public ParsedMessageCommand(int publicKeyId, Derecmessage.DeRecMessage message) {
+        this.publicKeyId = publicKeyId;
+        this.message = message;
+        boolean isSharerMessage =
+                message.hasMessageBodies() && message.getMessageBodies().hasSharerMessageBodies();
+        this.partitionKey = isSharerMessage
+                ? message.getSender()
+                : new DeRecSecret.Id(message.getSecretId().toByteArray());
+        this.commandClass =
+                message.hasMessageBodies() && message.getMessageBodies().hasHelperMessageBodies()
+                        ? CommandClass.INBOUND_RESPONSE
+                        : CommandClass.INBOUND_REQUEST;
+    }
+
+    @Override
+    public void execute() {
+        new MessageParser().parseMessage(publicKeyId, message);
+    }
+
+    @Override
+    public CommandClass getCommandClass() {
+        return commandClass;
+    }
+
+    @Override
+    public Object getPartitionKey() {
+        return partitionKey;
+    }
+}
@@ -18,18 +18,71 @@
 package org.derecalliance.derec.lib.impl.commands;
 
 import java.time.Instant;
+import java.util.List;
 import org.derecalliance.derec.lib.impl.Command;
+import org.derecalliance.derec.lib.impl.CommandClass;
 import org.derecalliance.derec.lib.impl.PeriodicTaskRunner;
+import org.derecalliance.derec.lib.impl.PeriodicWorkItem;
+import org.derecalliance.derec.lib.impl.SecretImpl;
 
 public class PeriodicWorkCommand implements Command {
     private final Instant instant;
+    private final PeriodicTaskRunner runner;
+    private final SecretImpl secret;
+    private final List<PeriodicWorkItem> dueItems;
+    private final Runnable onComplete;
 
-    public PeriodicWorkCommand(Instant instant) {
+    /**
+     * Periodic tick; fans out one PeriodicWorkCommand per secret with work due, each in its secret's lane
+     *
+     * @param instant time of the tick
+     * @param runner  PeriodicTaskRunner that scheduled the tick
+     */
+    public PeriodicWorkCommand(Instant instant, PeriodicTaskRunner runner) {
         this.instant = instant;
+        this.runner = runner;
+        this.secret = null;
+        this.dueItems = null;
+        this.onComplete = null;
+    }
+
+    /**
+     * Periodic work that has come due for one secret
+     *
+     * @param instant    time of the tick
+     * @param secret     secret to work on
+     * @param dueItems   work items that have come due
+     * @param onComplete called when the work is done, whether or not it succeeded
+     */
+    public PeriodicWorkCommand(
+            Instant instant, SecretImpl secret, List<PeriodicWorkItem> dueItems, Runnable onComplete) {
+        this.instant = instant;
+        this.runner = null;
+        this.secret = secret;
+        this.dueItems = dueItems;
+        this.onComplete = onComplete;
     }
 
     @Override
     public void execute() {
-        PeriodicTaskRunner.processPeriodicWork(instant);
+        if (secret == null) {
+            runner.processTick(instant);
+            return;
+        }
+        try {
+            PeriodicTaskRunner.processPeriodicWorkForSecret(secret, dueItems);
+        } finally {
+            onComplete.run();
+        }
+    }
+
+    @Override
+    public Object getPartitionKey() {
+        return secret == null ? null : secret.getSecretId();
+    }
+
+    @Override
+    public CommandClass getCommandClass() {
+        return CommandClass.PERIODIC;
     }
 }
@@ -62,4 +62,9 @@ public class RemoveHelpersCommand<T extends DeRecHelperStatus> implements Comman
     public List<CompletableFuture<T>> getFuture() {
         return futures.values().stream().toList();
     }
+
+    @Override
+    public Object getPartitionKey() {
+        return secret.getSecretId();
+    }
 }
@@ -42,4 +42,9 @@ public class UpdateCommand implements Command {
     public CompletableFuture<DeRecVersion> getFuture() {
         return future;
     }
+
+    @Override
+    public Object getPartitionKey() {
+        return secret.getSecretId();
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class CommandQueueTest {
+    private final CommandQueue queue = new CommandQueue(2);
+
+    private record TestCommand(CommandClass commandClass, Object partitionKey, long queuedBytes) implements Command {
+        TestCommand(CommandClass commandClass) {
+            this(commandClass, null, 0);
+        }
+
+        @Override
+        public void execute() {}
+
+        @Override
+        public CommandClass getCommandClass() {
+            return commandClass;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return partitionKey;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+    }
+
+    @AfterEach
+    void restoreDefaults() {
+        LibState libState = LibState.getInstance();
+        libState.setCommandStarvationTimeout(Duration.ofSeconds(2));
+        libState.setCommandQueueCapacity(10000);
+        libState.setCommandQueueMaxBytes(256L * 1024 * 1024);
+        libState.setCommandClassLimit(CommandClass.INBOUND_REQUEST, 10000);
+    }
+
+    @Test
+    void takesHigherPriorityClassesFirstAndEachClassInOrder() throws Exception {
+        Command periodic = new TestCommand(CommandClass.PERIODIC);
+        Command firstRequest = new TestCommand(CommandClass.INBOUND_REQUEST);
+        Command secondRequest = new TestCommand(CommandClass.INBOUND_REQUEST);
+        Command response = new TestCommand(CommandClass.INBOUND_RESPONSE);
+        Command userApi = new TestCommand(CommandClass.USER_API);
+        for (Command command : new Command[] {periodic, firstRequest, secondRequest, response, userApi}) {
+            assertTrue(queue.offer(command));
+        }
+
+        assertSame(userApi, queue.take(0));
+        assertSame(response, queue.take(0));
+        assertSame(firstRequest, queue.take(0));
+        assertSame(secondRequest, queue.take(0));
+        assertSame(periodic, queue.take(0));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void takesCommandThatWaitedPastTheStarvationTimeoutFirst() throws Exception {
+        LibState.getInstance().setCommandStarvationTimeout(Duration.ofMillis(50));
+        Command periodic = new TestCommand(CommandClass.PERIODIC);
+        queue.offer(periodic);
+        Thread.sleep(100);
+        Command userApi = new TestCommand(CommandClass.USER_API);
+        queue.offer(userApi);
+
+        assertSame(periodic, queue.take(0));
+        assertSame(userApi, queue.take(0));
+    }
+
+    @Test
+    void keepsCommandsWithTheSamePartitionKeyInOneLane() throws Exception {
+        Command first = new TestCommand(CommandClass.INBOUND_REQUEST, "secret", 0);
+        Command second = new TestCommand(CommandClass.INBOUND_REQUEST, "secret", 0);
+        queue.offer(first);
+        queue.offer(second);
+        int lane = queue.laneFor(first);
+
+        assertSame(first, queue.take(lane));
+        assertSame(second, queue.take(lane));
+    }
+
+    @Test
+    void rejectsCommandsOverTheQueueCapacityExceptUserApi() {
+        LibState.getInstance().setCommandQueueCapacity(2);
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST)));
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_RESPONSE)));
+        assertFalse(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST)));
+        assertTrue(queue.offer(new TestCommand(CommandClass.USER_API)));
+        queue.forward(new TestCommand(CommandClass.INBOUND_RESPONSE));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    void rejectsCommandsOverTheirClassLimit() {
+        LibState.getInstance().setCommandClassLimit(CommandClass.INBOUND_REQUEST, 1);
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST)));
+        assertFalse(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST)));
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_RESPONSE)));
+    }
+
+    @Test
+    void rejectsCommandsOverTheByteBudgetIncludingReservedBytes() throws Exception {
+        LibState.getInstance().setCommandQueueMaxBytes(1000);
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST, null, 600)));
+        assertFalse(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST, null, 600)));
+        queue.take(0);
+
+        assertTrue(queue.reserveBytes(700));
+        assertFalse(queue.reserveBytes(700));
+        assertFalse(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST, null, 400)));
+        // The reservation is handed over to the command it was made for
+        assertTrue(queue.offerReserved(new TestCommand(CommandClass.INBOUND_REQUEST, null, 700), 700));
+        queue.take(0);
+        assertTrue(queue.reserveBytes(1000));
+        queue.releaseBytes(1000);
+        assertTrue(queue.offer(new TestCommand(CommandClass.INBOUND_REQUEST, null, 1000)));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class DestinationHealthTrackerTest {
+    private final DestinationHealthTracker tracker = new DestinationHealthTracker();
+
+    @AfterEach
+    void restoreDefaults() {
+        LibState.getInstance().setRetryBackoffMax(Duration.ofMinutes(5));
+    }
+
+    @Test
+    void forgetsIdleDestinationWithClosedCircuit() {
+        tracker.tryAcquire("http://helper-1");
+        tracker.recordResult("http://helper-1", 200, null);
+        tracker.evictIfIdle("http://helper-1");
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    void keepsDestinationWithFailuresUntilItIsStale() throws Exception {
+        for (int i = 0; i < LibState.getInstance().getCircuitBreakerFailureThreshold(); i++) {
+            tracker.tryAcquire("http://helper-2");
+            tracker.recordResult("http://helper-2", null, new IOException("connection refused"));
+        }
+        tracker.evictIfIdle("http://helper-2");
+        assertEquals(1, tracker.size());
+        assertEquals(DestinationHealthTracker.State.OPEN, tracker.getState("http://helper-2"));
+
+        LibState.getInstance().setRetryBackoffMax(Duration.ofMillis(10));
+        Thread.sleep(50);
+        tracker.evictIfIdle("http://helper-3");
+        assertEquals(0, tracker.size());
+        assertEquals(DestinationHealthTracker.State.CLOSED, tracker.getState("http://helper-2"));
+    }
+}
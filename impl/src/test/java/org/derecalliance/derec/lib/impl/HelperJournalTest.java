@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.google.protobuf.ByteString;
+import java.nio.file.Path;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecSecret;
+import org.derecalliance.derec.protobuf.Storeshare;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HelperJournalTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void disableJournaling() {
+        LibState.getInstance().setJournalDirectory(null);
+    }
+
+    @Test
+    void restartedHelperResumesWithItsKeysSharersAndShares() throws Exception {
+        LibState.getInstance().setCryptoProvider(new JdkCryptoProvider());
+        LibState.getInstance().setTransport(new LoopbackTransport());
+        LibState.getInstance().setJournalDirectory(directory);
+        HelperImpl helper = new HelperImpl("helper", "helper@example.com", "loopback://journaled-helper");
+
+        DeRecIdentity sharerId = new LibIdentity("sharer", "sharer@example.com", "loopback://sharer").getMyId();
+        SharerStatusImpl sharerStatus = new SharerStatusImpl(sharerId);
+        DeRecSecret.Id secretId = new DeRecSecret.Id(new byte[] {1, 2, 3, 4});
+        helper.addSharer(sharerStatus, secretId).get();
+        helper.addSecret(sharerStatus, secretId);
+        Storeshare.CommittedDeRecShare first = committedShare("share of version 1");
+        Storeshare.CommittedDeRecShare second = committedShare("share of version 2");
+        helper.addShare(sharerStatus, secretId, 1, new ShareImpl(secretId, 1, sharerStatus, first))
+                .get();
+        helper.addShare(sharerStatus, secretId, 2, new ShareImpl(secretId, 2, sharerStatus, second))
+                .get();
+        helper.removeVersion(sharerStatus, secretId, 1);
+        // Closing waits for the records already appended
+        helper.getJournal().getJournal().close().get();
+
+        HelperImpl restarted = new HelperImpl("helper", "helper@example.com", "loopback://journaled-helper");
+        assertEquals(helper.getPublicEncryptionKey(), restarted.getPublicEncryptionKey());
+        assertEquals(helper.getPrivateSignatureKey(), restarted.getPrivateSignatureKey());
+        assertEquals(1, restarted.getSharers().size());
+        assertEquals(sharerId, restarted.getSharers().get(0).getId());
+        assertNull(restarted.getShare(sharerId, secretId, 1));
+        assertArrayEquals(
+                second.toByteArray(),
+                restarted
+                        .getShare(sharerId, secretId, 2)
+                        .getCommittedDeRecShare()
+                        .toByteArray());
+        restarted.getJournal().getJournal().close().get();
+    }
+
+    private static Storeshare.CommittedDeRecShare committedShare(String share) {
+        return Storeshare.CommittedDeRecShare.newBuilder()
+                .setDeRecShare(ByteString.copyFromUtf8(share))
+                .setCommitment(ByteString.copyFromUtf8("commitment"))
+                .build();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class InboundRateLimiterTest {
+    @Test
+    void floodingSourceDoesNotUseUpTheRateOfOthers() {
+        InboundRateLimiter<String> limiter = new InboundRateLimiter<>();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire("10.0.0.1", 1, 5));
+        }
+        assertFalse(limiter.tryAcquire("10.0.0.1", 1, 5));
+        assertTrue(limiter.tryAcquire("10.0.0.2", 1, 5));
+    }
+
+    @Test
+    void zeroRateAdmitsEveryMessageWithoutTrackingTheKey() {
+        InboundRateLimiter<Integer> limiter = new InboundRateLimiter<>();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(42, 0, 1));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void dropsRefilledBucketsOnceThereAreTooMany() {
+        InboundRateLimiter<Integer> limiter = new InboundRateLimiter<>();
+        // A very high rate refills every bucket right away
+        for (int source = 0; source < InboundRateLimiter.MAX_BUCKETS; source++) {
+            limiter.tryAcquire(source, 1e12, 1);
+        }
+        assertEquals(InboundRateLimiter.MAX_BUCKETS, limiter.size());
+        assertTrue(limiter.tryAcquire(-1, 1e12, 1));
+        assertEquals(1, limiter.size());
+    }
+}
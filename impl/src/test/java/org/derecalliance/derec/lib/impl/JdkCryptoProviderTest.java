@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class JdkCryptoProviderTest {
+    private static final byte[] SECRET_ID = {1, 2, 3, 4};
+    private final JdkCryptoProvider provider = new JdkCryptoProvider();
+
+    @Test
+    void anyThresholdOfSharesRecoversTheSecret() {
+        byte[] secret = "the secret to protect".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> shares = provider.share(SECRET_ID, 3, secret, 5, 3);
+        assertEquals(5, shares.size());
+
+        assertArrayEquals(secret, provider.recover(SECRET_ID, 3, shares));
+        assertArrayEquals(secret, provider.recover(SECRET_ID, 3, shares.subList(0, 3)));
+        assertArrayEquals(secret, provider.recover(SECRET_ID, 3, shares.subList(2, 5)));
+        assertArrayEquals(secret, provider.recover(SECRET_ID, 3, List.of(shares.get(4), shares.get(0), shares.get(2))));
+    }
+
+    @Test
+    void fewerSharesThanTheThresholdDoNotRecoverTheSecret() {
+        byte[] secret = "the secret to protect".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> shares = provider.share(SECRET_ID, 1, secret, 5, 3);
+
+        assertFalse(Arrays.equals(secret, provider.recover(SECRET_ID, 1, shares.subList(0, 2))));
+    }
+
+    @Test
+    void decryptsAndVerifiesASignedThenEncryptedMessage() {
+        CryptoProvider.KeyPair senderSignature = provider.signatureKeyGen();
+        CryptoProvider.KeyPair receiverEncryption = provider.encryptionKeyGen();
+        byte[] message = "a message".getBytes(StandardCharsets.UTF_8);
+
+        byte[] ciphertext =
+                provider.signThenEncrypt(message, senderSignature.privateKey(), receiverEncryption.publicKey());
+        byte[] decrypted = provider.decrypt(ciphertext, receiverEncryption.privateKey());
+        // The 64-byte signature is followed by the message
+        byte[] signature = Arrays.copyOfRange(decrypted, 0, 64);
+        assertArrayEquals(message, Arrays.copyOfRange(decrypted, 64, decrypted.length));
+        assertTrue(provider.verify(message, signature, senderSignature.publicKey()));
+    }
+
+    @Test
+    void rejectsASignatureFromAnotherKeyOrForAnotherMessage() {
+        CryptoProvider.KeyPair senderSignature = provider.signatureKeyGen();
+        CryptoProvider.KeyPair otherSignature = provider.signatureKeyGen();
+        CryptoProvider.KeyPair receiverEncryption = provider.encryptionKeyGen();
+        byte[] message = "a message".getBytes(StandardCharsets.UTF_8);
+
+        byte[] decrypted = provider.decrypt(
+                provider.signThenEncrypt(message, senderSignature.privateKey(), receiverEncryption.publicKey()),
+                receiverEncryption.privateKey());
+        byte[] signature = Arrays.copyOfRange(decrypted, 0, 64);
+        assertFalse(provider.verify(message, signature, otherSignature.publicKey()));
+        assertFalse(provider.verify(
+                "another message".getBytes(StandardCharsets.UTF_8), signature, senderSignature.publicKey()));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void restoreSnapshotThreshold() {
+        LibState.getInstance().setJournalSnapshotThreshold(64L * 1024 * 1024);
+    }
+
+    @Test
+    void replaysAppendedRecordsInOrder() throws Exception {
+        Journal journal = new Journal(directory, "test", ArrayList::new);
+        assertTrue(journal.open().isEmpty());
+        List<CompletableFuture<Void>> appended = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            appended.add(journal.append(record("record-" + i)));
+        }
+        CompletableFuture.allOf(appended.toArray(new CompletableFuture[0])).get();
+        journal.close().get();
+
+        List<byte[]> records = new Journal(directory, "test", ArrayList::new).open();
+        assertEquals(100, records.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("record-" + i, text(records.get(i)));
+        }
+    }
+
+    @Test
+    void dropsTornTailAndAppendsAfterTheLastValidRecord() throws Exception {
+        Journal journal = new Journal(directory, "test", ArrayList::new);
+        journal.open();
+        journal.append(record("first")).get();
+        journal.append(record("second")).get();
+        journal.close().get();
+
+        // A record whose header was written but whose payload was cut short by a crash
+        Files.write(
+                directory.resolve("test.journal"),
+                ByteBuffer.allocate(13).putInt(100).putInt(0).array(),
+                StandardOpenOption.APPEND);
+
+        Journal reopened = new Journal(directory, "test", ArrayList::new);
+        List<byte[]> records = reopened.open();
+        assertEquals(List.of("first", "second"), texts(records));
+        reopened.append(record("third")).get();
+        reopened.close().get();
+
+        assertEquals(List.of("first", "second", "third"), texts(new Journal(directory, "test", ArrayList::new).open()));
+    }
+
+    @Test
+    void stopsAtCorruptRecord() throws Exception {
+        Journal journal = new Journal(directory, "test", ArrayList::new);
+        journal.open();
+        journal.append(record("first")).get();
+        journal.append(record("second")).get();
+        journal.close().get();
+
+        // Flip the last byte of the second record's payload, so that its checksum no longer matches
+        Path journalPath = directory.resolve("test.journal");
+        byte[] bytes = Files.readAllBytes(journalPath);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(journalPath, bytes);
+
+        assertEquals(List.of("first"), texts(new Journal(directory, "test", ArrayList::new).open()));
+    }
+
+    @Test
+    void replaysSnapshotFollowedByLaterRecords() throws Exception {
+        LibState.getInstance().setJournalSnapshotThreshold(256);
+        List<byte[]> state = new ArrayList<>();
+        Journal journal = new Journal(directory, "test", () -> {
+            synchronized (state) {
+                return new ArrayList<>(state);
+            }
+        });
+        journal.open();
+        for (int i = 0; i < 50; i++) {
+            byte[] record = record("record-" + i);
+            // The state is changed before its record is appended, as the journal requires
+            synchronized (state) {
+                state.add(record);
+            }
+            journal.append(record).get();
+        }
+        journal.close().get();
+        assertTrue(journal.getSnapshotsWritten() > 0);
+        assertTrue(Files.size(directory.resolve("test.journal")) <= 256);
+
+        LibState.getInstance().setJournalSnapshotThreshold(64L * 1024 * 1024);
+        List<String> replayed = texts(new Journal(directory, "test", ArrayList::new).open());
+        // Records both in the snapshot and still in the journal are replayed twice, which idempotent records allow
+        assertEquals(50, replayed.stream().distinct().count());
+        assertEquals("record-49", replayed.get(replayed.size() - 1));
+        for (int i = 0; i < 50; i++) {
+            assertTrue(replayed.contains("record-" + i));
+        }
+    }
+
+    @Test
+    void createsFilesReadableByTheOwnerOnly() throws Exception {
+        Path journalDirectory = directory.resolve("journal");
+        Journal journal = new Journal(journalDirectory, "test", ArrayList::new);
+        journal.open();
+        journal.append(record("secret")).get();
+        journal.close().get();
+        if (journalDirectory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", permissions(journalDirectory.resolve("test.journal")));
+            assertEquals("rwx------", permissions(journalDirectory));
+        }
+    }
+
+    private static byte[] record(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] record) {
+        return new String(record, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(List<byte[]> records) {
+        List<String> texts = new ArrayList<>();
+        records.forEach(record -> texts.add(text(record)));
+        return texts;
+    }
+
+    private static String permissions(Path path) throws IOException {
+        return PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import org.derecalliance.derec.lib.api.DeRecIdentity;
+import org.derecalliance.derec.lib.api.DeRecPairingStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharerJournalTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void disableJournaling() {
+        LibState.getInstance().setJournalDirectory(null);
+    }
+
+    @Test
+    void restartedSharerResumesWithItsSecretsVersionsAndHelpers() throws Exception {
+        LibState.getInstance().setCryptoProvider(new JdkCryptoProvider());
+        LibState.getInstance().setTransport(new LoopbackTransport());
+        LibState.getInstance().setJournalDirectory(directory);
+        SharerImpl sharer = new SharerImpl("sharer", "sharer@example.com", "loopback://journaled-sharer");
+
+        SecretImpl secret = sharer.processNewSecret("journaled secret", null, false);
+        secret.processUpdateAsync(1, "version 1".getBytes(StandardCharsets.UTF_8));
+        secret.processUpdateAsync(2, "version 2".getBytes(StandardCharsets.UTF_8));
+        secret.deleteVersion(1);
+        DeRecIdentity pairedId = new LibIdentity("paired", "paired@example.com", "loopback://paired").getMyId();
+        DeRecIdentity removedId = new LibIdentity("removed", "removed@example.com", "loopback://removed").getMyId();
+        secret.processAddHelpersAsync(List.of(pairedId, removedId), false);
+        ((HelperStatusImpl) secret.getHelperStatusById(pairedId)).setStatus(DeRecPairingStatus.PairingStatus.PAIRED);
+        secret.clearOneHelper(removedId);
+        SecretImpl closed = sharer.processNewSecret("closed secret", null, false);
+        closed.close();
+        // Closing waits for the records already appended
+        sharer.getJournal().getJournal().close().get();
+
+        SharerImpl restarted = new SharerImpl("sharer", "sharer@example.com", "loopback://journaled-sharer");
+        assertEquals(1, restarted.getSecrets().size());
+        SecretImpl recovered = (SecretImpl) restarted.getSecret(secret.getSecretId());
+        assertEquals("journaled secret", recovered.getDescription());
+        assertEquals(
+                secret.getLibId().getEncryptionPrivateKey(),
+                recovered.getLibId().getEncryptionPrivateKey());
+        assertEquals(
+                secret.getLibId().getPublicEncryptionKeyId(),
+                recovered.getLibId().getPublicEncryptionKeyId());
+        assertEquals(List.of(2), List.copyOf(recovered.getVersions().keySet()));
+        assertArrayEquals(
+                "version 2".getBytes(StandardCharsets.UTF_8),
+                recovered.getVersionByNumber(2).getProtectedValue());
+        assertEquals(1, recovered.getHelperStatuses().size());
+        assertEquals(
+                DeRecPairingStatus.PairingStatus.PAIRED,
+                recovered.getHelperStatusById(pairedId).getStatus());
+        assertNull(recovered.getHelperStatusById(removedId));
+        restarted.getJournal().getJournal().close().get();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) DeRec Alliance and its Contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.derecalliance.derec.lib.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private static final Duration RESOLUTION = Duration.ofMillis(10);
+    private final TimerWheel<Integer> wheel = new TimerWheel<>(RESOLUTION);
+    private final Instant start = Instant.now();
+
+    @Test
+    void neverFiresEarlyAndFiresWithinOneTickAcrossTheCascades() {
+        // Deadlines in every level: below 64 ticks, below 4096, below 262144 and beyond
+        Map<Integer, Instant> deadlines = new HashMap<>();
+        Random random = new Random(1);
+        int[] ranges = {64, 4096, 262144, 1_000_000};
+        for (int key = 0; key < 400; key++) {
+            long offsetMillis = random.nextInt(ranges[key % ranges.length]) * RESOLUTION.toMillis()
+                    + random.nextInt((int) RESOLUTION.toMillis());
+            Instant deadline = start.plusMillis(offsetMillis);
+            deadlines.put(key, deadline);
+            wheel.schedule(key, deadline);
+        }
+        // Cascade boundaries are crossed one tick at a time, other stretches in larger steps
+        Instant now = start;
+        Instant end = start.plus(RESOLUTION.multipliedBy(1_000_010));
+        while (now.isBefore(end)) {
+            now = now.plus(RESOLUTION.multipliedBy(random.nextInt(200) + 1));
+            for (Integer key : wheel.advance(now)) {
+                Instant deadline = deadlines.remove(key);
+                assertFalse(deadline.isAfter(now), "key " + key + " fired early");
+            }
+            for (Map.Entry<Integer, Instant> pending : deadlines.entrySet()) {
+                assertTrue(
+                        now.isBefore(pending.getValue().plus(RESOLUTION).plus(RESOLUTION)),
+                        "key " + pending.getKey() + " did not fire");
+            }
+        }
+        assertTrue(deadlines.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void firesDeadlineParkedBeyondTheTopLevel() {
+        // 64^4 ticks is the range of the wheel
+        Instant deadline = start.plus(RESOLUTION.multipliedBy(20_000_000L));
+        wheel.schedule(1, deadline);
+        assertTrue(wheel.advance(deadline.minus(RESOLUTION).minusMillis(1)).isEmpty());
+        assertEquals(List.of(1), wheel.advance(deadline.plus(RESOLUTION)));
+    }
+
+    @Test
+    void reschedulingReplacesTheDeadline() {
+        wheel.schedule(1, start.plus(RESOLUTION.multipliedBy(5000)));
+        wheel.schedule(1, start.plus(RESOLUTION.multipliedBy(10)));
+        wheel.schedule(2, start.plus(RESOLUTION.multipliedBy(10)));
+        wheel.schedule(2, start.plus(RESOLUTION.multipliedBy(100)));
+
+        assertEquals(List.of(1), wheel.advance(start.plus(RESOLUTION.multipliedBy(50))));
+        assertEquals(List.of(2), wheel.advance(start.plus(RESOLUTION.multipliedBy(200))));
+        assertTrue(wheel.advance(start.plus(RESOLUTION.multipliedBy(6000))).isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cancelledKeyNeverFires() {
+        wheel.schedule(1, start.plus(RESOLUTION.multipliedBy(100)));
+        wheel.schedule(2, start.plus(RESOLUTION.multipliedBy(100)));
+        wheel.cancel(1);
+        assertFalse(wheel.isScheduled(1));
+        assertEquals(List.of(2), wheel.advance(start.plus(RESOLUTION.multipliedBy(200))));
+    }
+
+    @Test
+    void returnsDueKeysInDeadlineOrder() {
+        wheel.schedule(3, start.plus(RESOLUTION.multipliedBy(300)));
+        wheel.schedule(1, start.plus(RESOLUTION.multipliedBy(10)));
+        wheel.schedule(2, start.plus(RESOLUTION.multipliedBy(70)));
+        assertEquals(List.of(1, 2, 3), wheel.advance(start.plus(RESOLUTION.multipliedBy(400))));
+    }
+}